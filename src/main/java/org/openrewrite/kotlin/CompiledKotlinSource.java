@@ -18,9 +18,29 @@ package org.openrewrite.kotlin;
 import lombok.Value;
 import org.jetbrains.kotlin.fir.declarations.FirFile;
 import org.openrewrite.Parser;
+import org.openrewrite.internal.lang.Nullable;
+
+import java.nio.charset.Charset;
 
 @Value
 public class CompiledKotlinSource {
     Parser.Input input;
+
+    /**
+     * The position of the input among the inputs of its batch, which are compiled module by module.
+     */
+    int inputIndex;
+
+    /**
+     * The decoded text of the input, which is also the text the compiler analyzed.
+     * Null when the compiler loaded the input from disk, in which case it is decoded again when it is mapped.
+     */
+    @Nullable
+    String source;
+
+    @Nullable
+    Charset charset;
+
+    boolean charsetBomMarked;
     FirFile firFile;
 }
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2023 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openrewrite.kotlin;
+
+import org.jetbrains.kotlin.fir.FirSession;
+import org.jetbrains.kotlin.fir.resolve.LookupTagUtilsKt;
+import org.jetbrains.kotlin.fir.resolve.providers.FirSymbolProvider;
+import org.jetbrains.kotlin.fir.resolve.providers.FirSymbolProviderKt;
+import org.jetbrains.kotlin.fir.symbols.ConeClassLikeLookupTag;
+import org.jetbrains.kotlin.fir.symbols.impl.ConeClassLikeLookupTagImpl;
+import org.jetbrains.kotlin.fir.symbols.impl.FirClassLikeSymbol;
+import org.jetbrains.kotlin.fir.symbols.impl.FirRegularClassSymbol;
+import org.jetbrains.kotlin.fir.types.ConeClassLikeType;
+import org.jetbrains.kotlin.fir.types.ConeKotlinType;
+import org.jetbrains.kotlin.fir.types.TypeUtilsKt;
+import org.jetbrains.kotlin.fir.types.impl.ConeClassLikeTypeImpl;
+import org.jetbrains.kotlin.name.ClassId;
+import org.openrewrite.Incubating;
+import org.openrewrite.internal.lang.Nullable;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Resolves the class symbols that types refer to through the symbol provider of a {@link FirSession} once per class,
+ * rather than every time a signature or a type refers to the class.
+ * <p>
+ * One cache is shared by the type mapping, the signature builder and the parser visitor of every source in a session.
+ * Symbols are cached by {@link ClassId}, and only for lookup tags that are resolved by their class id alone. Local
+ * classes and error types are resolved every time.
+ * <p>
+ * The sources of a session may be mapped concurrently. The caches of the session's symbol provider are not thread-safe,
+ * so symbols that are not cached yet are resolved one at a time.
+ */
+@Incubating(since = "0.0")
+public class FirSymbolCache {
+    private final FirSession firSession;
+
+    /**
+     * Guards the symbol provider of the session.
+     */
+    private final Object providerLock = new Object();
+
+    private final Map<ClassId, Optional<FirClassLikeSymbol<?>>> symbols = new ConcurrentHashMap<>();
+
+    /**
+     * The regular classes of types after their type aliases are expanded.
+     */
+    private final Map<ClassId, Optional<FirRegularClassSymbol>> expandedSymbols = new ConcurrentHashMap<>();
+
+    /**
+     * The {@link KotlinTypeSignatureBuilder#convertClassIdToFqn(ClassId) FQNs} of the classes of the session, of which
+     * there are only as many as its sources refer to, so they are dropped along with the session.
+     */
+    private final Map<ClassId, String> fqns = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public FirSymbolCache(FirSession firSession) {
+        this.firSession = firSession;
+    }
+
+    public FirSession getFirSession() {
+        return firSession;
+    }
+
+    /**
+     * The same as {@link LookupTagUtilsKt#toSymbol(ConeClassLikeLookupTag, FirSession)}.
+     */
+    @Nullable
+    public FirClassLikeSymbol<?> toSymbol(ConeClassLikeLookupTag lookupTag) {
+        ClassId classId = cacheKey(lookupTag);
+        if (classId == null) {
+            synchronized (providerLock) {
+                return LookupTagUtilsKt.toSymbol(lookupTag, firSession);
+            }
+        }
+        return getClassLikeSymbolByClassId(classId);
+    }
+
+    /**
+     * The same as {@link FirSymbolProvider#getClassLikeSymbolByClassId(ClassId)} on the symbol provider of the session.
+     */
+    @Nullable
+    public FirClassLikeSymbol<?> getClassLikeSymbolByClassId(ClassId classId) {
+        if (classId.isLocal()) {
+            synchronized (providerLock) {
+                return FirSymbolProviderKt.getSymbolProvider(firSession).getClassLikeSymbolByClassId(classId);
+            }
+        }
+
+        Optional<FirClassLikeSymbol<?>> symbol = symbols.get(classId);
+        if (symbol == null) {
+            misses.increment();
+            synchronized (providerLock) {
+                symbol = Optional.ofNullable(FirSymbolProviderKt.getSymbolProvider(firSession).getClassLikeSymbolByClassId(classId));
+            }
+            symbols.put(classId, symbol);
+        } else {
+            hits.increment();
+        }
+        return symbol.orElse(null);
+    }
+
+    /**
+     * The same as {@link LookupTagUtilsKt#toFirRegularClassSymbol(ConeClassLikeLookupTag, FirSession)}.
+     */
+    @Nullable
+    public FirRegularClassSymbol toFirRegularClassSymbol(ConeClassLikeLookupTag lookupTag) {
+        FirClassLikeSymbol<?> symbol = toSymbol(lookupTag);
+        return symbol instanceof FirRegularClassSymbol ? (FirRegularClassSymbol) symbol : null;
+    }
+
+    /**
+     * The same as {@link TypeUtilsKt#toRegularClassSymbol(ConeKotlinType, FirSession)}.
+     */
+    @Nullable
+    public FirRegularClassSymbol toRegularClassSymbol(ConeKotlinType type) {
+        // The class a type alias expands to only depends on the alias, so the expansion is cached by the class id of the type.
+        ClassId classId = type instanceof ConeClassLikeTypeImpl ? cacheKey(((ConeClassLikeType) type).getLookupTag()) : null;
+        if (classId == null) {
+            synchronized (providerLock) {
+                return TypeUtilsKt.toRegularClassSymbol(type, firSession);
+            }
+        }
+
+        Optional<FirRegularClassSymbol> symbol = expandedSymbols.get(classId);
+        if (symbol == null) {
+            misses.increment();
+            synchronized (providerLock) {
+                symbol = Optional.ofNullable(TypeUtilsKt.toRegularClassSymbol(type, firSession));
+            }
+            expandedSymbols.put(classId, symbol);
+        } else {
+            hits.increment();
+        }
+        return symbol.orElse(null);
+    }
+
+    /**
+     * The same as {@link KotlinTypeSignatureBuilder#convertClassIdToFqn(ClassId)}.
+     */
+    public String fqn(ClassId classId) {
+        String fqn = fqns.get(classId);
+        if (fqn == null) {
+            fqn = KotlinTypeSignatureBuilder.convertClassIdToFqn(classId);
+            fqns.put(classId, fqn);
+        }
+        return fqn;
+    }
+
+    /**
+     * @return the number of lookups that were answered by the cache.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of lookups that were resolved by the symbol provider of the session.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Nullable
+    private static ClassId cacheKey(ConeClassLikeLookupTag lookupTag) {
+        if (!(lookupTag instanceof ConeClassLikeLookupTagImpl)) {
+            return null;
+        }
+        ClassId classId = lookupTag.getClassId();
+        return classId.isLocal() ? null : classId;
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2023 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openrewrite.kotlin;
+
+import org.jetbrains.kotlin.com.intellij.openapi.Disposable;
+import org.jetbrains.kotlin.load.kotlin.PackagePartProvider;
+import org.jetbrains.kotlin.name.ClassId;
+import org.jetbrains.kotlin.serialization.deserialization.ClassData;
+import org.openrewrite.internal.lang.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A {@link PackagePartProvider} that answers from an index on disk, so that a new JVM parsing against an unchanged
+ * classpath does not have to read the {@code META-INF/*.kotlin_module} metadata of every jar again.
+ * <p>
+ * The index is keyed by a fingerprint of the path, size and modification time of every classpath root, which a parser
+ * computes once, so changes to the classpath while a parser is in use are seen by the next parser. Lookups that
+ * miss the index are answered by the provider the compiler would otherwise have used, which is only created on the
+ * first miss. The answers are written back to the index when the compiler environment is disposed of.
+ */
+class IndexedPackagePartProvider implements PackagePartProvider, Disposable {
+    private static final int VERSION = 1;
+
+    private final Path indexFile;
+    private final Supplier<PackagePartProvider> delegateFactory;
+
+    @Nullable
+    private PackagePartProvider delegate;
+
+    private final Map<String, List<String>> packageParts = new HashMap<>();
+    private final Map<String, List<String>> moduleAnnotations = new HashMap<>();
+
+    /**
+     * Null until the delegate has been asked for the optional annotation classes, which is the only question that
+     * can not be answered from the index. Most classpaths have none.
+     */
+    @Nullable
+    private Boolean hasOptionalAnnotationClasses;
+
+    private boolean dirty;
+
+    /**
+     * @param fingerprint the {@link #fingerprint(Collection) fingerprint} of the classpath roots.
+     */
+    IndexedPackagePartProvider(Path indexDirectory, String fingerprint, Supplier<PackagePartProvider> delegateFactory) {
+        this.indexFile = indexDirectory.resolve(fingerprint + ".kotlin-classpath-index");
+        this.delegateFactory = delegateFactory;
+        load();
+    }
+
+    @Override
+    public synchronized List<String> findPackageParts(String packageFqName) {
+        List<String> parts = packageParts.get(packageFqName);
+        if (parts == null) {
+            parts = new ArrayList<>(delegate().findPackageParts(packageFqName));
+            packageParts.put(packageFqName, parts);
+            dirty = true;
+        }
+        return parts;
+    }
+
+    @Override
+    public synchronized List<ClassId> getAnnotationsOnBinaryModule(String moduleName) {
+        List<String> annotations = moduleAnnotations.get(moduleName);
+        if (annotations == null) {
+            annotations = new ArrayList<>();
+            for (ClassId classId : delegate().getAnnotationsOnBinaryModule(moduleName)) {
+                annotations.add(classId.asString());
+            }
+            moduleAnnotations.put(moduleName, annotations);
+            dirty = true;
+        }
+
+        List<ClassId> classIds = new ArrayList<>(annotations.size());
+        for (String annotation : annotations) {
+            classIds.add(ClassId.fromString(annotation));
+        }
+        return classIds;
+    }
+
+    @Override
+    public synchronized List<ClassData> getAllOptionalAnnotationClasses() {
+        if (Boolean.FALSE.equals(hasOptionalAnnotationClasses)) {
+            return Collections.emptyList();
+        }
+        List<ClassData> optionalAnnotationClasses = delegate().getAllOptionalAnnotationClasses();
+        if (hasOptionalAnnotationClasses == null) {
+            hasOptionalAnnotationClasses = !optionalAnnotationClasses.isEmpty();
+            dirty = true;
+        }
+        return optionalAnnotationClasses;
+    }
+
+    private PackagePartProvider delegate() {
+        if (delegate == null) {
+            delegate = delegateFactory.get();
+        }
+        return delegate;
+    }
+
+    /**
+     * Persist the index when the compiler environment that uses it is disposed of.
+     */
+    @Override
+    public synchronized void dispose() {
+        if (!dirty) {
+            return;
+        }
+
+        try {
+            Files.createDirectories(indexFile.getParent());
+            Path temp = Files.createTempFile(indexFile.getParent(), indexFile.getFileName().toString(), ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(VERSION);
+                out.writeByte(hasOptionalAnnotationClasses == null ? 0 : hasOptionalAnnotationClasses ? 1 : 2);
+                writeMultimap(out, packageParts);
+                writeMultimap(out, moduleAnnotations);
+            }
+            // Other processes may use the same index, and must never see a partially written one.
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        } catch (IOException ignored) {
+            // The index is only a cache, and will be rebuilt by the next parser.
+        }
+    }
+
+    private void load() {
+        if (!Files.isRegularFile(indexFile)) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            byte optionalAnnotationClasses = in.readByte();
+            hasOptionalAnnotationClasses = optionalAnnotationClasses == 0 ? null : optionalAnnotationClasses == 1;
+            readMultimap(in, packageParts);
+            readMultimap(in, moduleAnnotations);
+        } catch (IOException e) {
+            packageParts.clear();
+            moduleAnnotations.clear();
+            hasOptionalAnnotationClasses = null;
+        }
+    }
+
+    private static void writeMultimap(DataOutputStream out, Map<String, List<String>> multimap) throws IOException {
+        out.writeInt(multimap.size());
+        for (Map.Entry<String, List<String>> entry : multimap.entrySet()) {
+            out.writeUTF(entry.getKey());
+            writeStrings(out, entry.getValue());
+        }
+    }
+
+    private static void readMultimap(DataInputStream in, Map<String, List<String>> multimap) throws IOException {
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            multimap.put(in.readUTF(), readStrings(in));
+        }
+    }
+
+    private static void writeStrings(DataOutputStream out, Collection<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (String string : strings) {
+            out.writeUTF(string);
+        }
+    }
+
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        List<String> strings = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            strings.add(in.readUTF());
+        }
+        return strings;
+    }
+
+    /**
+     * @return a digest of the path, size and modification time of each classpath root, in classpath order. The
+     * size and modification time of a directory do not change with the files nested in it, so class directories are
+     * digested from the relative path, size and modification time of every file they contain.
+     */
+    static String fingerprint(Collection<File> classpathRoots) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (File root : classpathRoots) {
+                digest.update(root.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+                if (root.isDirectory()) {
+                    digestDirectory(digest, root.toPath());
+                } else {
+                    digest.update(longBytes(root.length()));
+                    digest.update(longBytes(root.lastModified()));
+                }
+            }
+
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void digestDirectory(MessageDigest digest, Path directory) {
+        try (Stream<Path> walk = Files.walk(directory)) {
+            List<Path> files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            for (Path file : files) {
+                digest.update(directory.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+                digest.update(longBytes(Files.size(file)));
+                digest.update(longBytes(Files.getLastModifiedTime(file).toMillis()));
+            }
+        } catch (IOException | UncheckedIOException e) {
+            // A directory that can not be read completely must never match an index of its earlier contents.
+            digest.update(UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static byte[] longBytes(long value) {
+        byte[] bytes = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            bytes[i] = (byte) value;
+            value >>>= 8;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2023 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openrewrite.kotlin;
+
+import lombok.Value;
+import org.jetbrains.kotlin.cli.jvm.compiler.KotlinCoreEnvironment;
+import org.jetbrains.kotlin.cli.jvm.compiler.VfsBasedProjectEnvironment;
+import org.jetbrains.kotlin.com.intellij.openapi.Disposable;
+import org.jetbrains.kotlin.com.intellij.openapi.util.Disposer;
+import org.jetbrains.kotlin.config.CompilerConfiguration;
+import org.jetbrains.kotlin.modules.Module;
+
+import java.util.List;
+
+/**
+ * A configured compiler environment: the project, VFS and package part provider that are built from the
+ * classpath, the modules and the language settings of a {@link KotlinParser}.
+ * <p>
+ * Nothing in the environment depends on the sources being parsed, so an environment may be reused by
+ * subsequent calls to {@link KotlinParser#parseInputs} that share the same configuration.
+ */
+@Value
+class KotlinCompilerEnvironment {
+    Disposable disposable;
+    CompilerConfiguration compilerConfiguration;
+    KotlinCoreEnvironment coreEnvironment;
+    VfsBasedProjectEnvironment projectEnvironment;
+    List<Module> modules;
+
+    void dispose() {
+        Disposer.dispose(disposable);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2023 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openrewrite.kotlin;
+
+import lombok.Value;
+import org.openrewrite.internal.lang.Nullable;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Keeps compiler environments warm between calls to {@link KotlinParser#parseInputs}.
+ * <p>
+ * Creating a {@link org.jetbrains.kotlin.cli.jvm.compiler.KotlinCoreEnvironment} and indexing the JDK and classpath roots
+ * is the most expensive part of parsing small batches of sources. Environments are keyed by classpath, module name,
+ * language settings and message logging, and are leased to one parse at a time. Idle environments are evicted in least
+ * recently used order once more than {@code maximumIdle} are held, or once they have not been used for {@code idleTimeout}.
+ * <p>
+ * A pool may be shared by several parsers. It must be {@link #close() closed} to release the environments it holds.
+ */
+public class KotlinEnvironmentPool implements AutoCloseable {
+    private final int maximumIdle;
+    private final long idleTimeoutNanos;
+
+    /**
+     * Access ordered, so the first key is the least recently used one.
+     */
+    private final LinkedHashMap<Key, Deque<IdleEnvironment>> idle = new LinkedHashMap<>(16, 0.75f, true);
+
+    private int idleCount;
+    private boolean closed;
+
+    public KotlinEnvironmentPool(int maximumIdle, Duration idleTimeout) {
+        if (maximumIdle < 1) {
+            throw new IllegalArgumentException("The pool must be able to hold at least one environment, but maximumIdle was " + maximumIdle);
+        }
+        if (idleTimeout.isNegative() || idleTimeout.isZero()) {
+            throw new IllegalArgumentException("The idle timeout must be positive, but was " + idleTimeout);
+        }
+        this.maximumIdle = maximumIdle;
+        this.idleTimeoutNanos = idleTimeout.toNanos();
+    }
+
+    /**
+     * @param key     the configuration the environment must match.
+     * @param factory creates a new environment when no idle environment matches the key.
+     * @return an environment that is leased to the caller until it is {@link #release(Key, KotlinCompilerEnvironment) released}.
+     */
+    KotlinCompilerEnvironment acquire(Key key, Supplier<KotlinCompilerEnvironment> factory) {
+        KotlinCompilerEnvironment environment = null;
+        List<KotlinCompilerEnvironment> expired;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("The Kotlin environment pool has been closed.");
+            }
+            expired = evictExpired(System.nanoTime());
+            Deque<IdleEnvironment> environments = idle.get(key);
+            if (environments != null) {
+                IdleEnvironment leased = environments.pollFirst();
+                if (leased != null) {
+                    idleCount--;
+                    environment = leased.getEnvironment();
+                }
+                if (environments.isEmpty()) {
+                    idle.remove(key);
+                }
+            }
+        }
+        dispose(expired);
+        return environment == null ? factory.get() : environment;
+    }
+
+    /**
+     * Return a leased environment to the pool. The environment is disposed of instead when the pool is closed.
+     */
+    void release(Key key, KotlinCompilerEnvironment environment) {
+        List<KotlinCompilerEnvironment> evicted;
+        synchronized (this) {
+            if (closed) {
+                evicted = Collections.singletonList(environment);
+            } else {
+                long now = System.nanoTime();
+                idle.computeIfAbsent(key, k -> new ArrayDeque<>()).addFirst(new IdleEnvironment(environment, now));
+                idleCount++;
+
+                evicted = evictExpired(now);
+                Iterator<Map.Entry<Key, Deque<IdleEnvironment>>> leastRecentlyUsed = idle.entrySet().iterator();
+                while (idleCount > maximumIdle && leastRecentlyUsed.hasNext()) {
+                    Deque<IdleEnvironment> environments = leastRecentlyUsed.next().getValue();
+                    while (idleCount > maximumIdle && !environments.isEmpty()) {
+                        evicted.add(environments.pollLast().getEnvironment());
+                        idleCount--;
+                    }
+                    if (environments.isEmpty()) {
+                        leastRecentlyUsed.remove();
+                    }
+                }
+            }
+        }
+        dispose(evicted);
+    }
+
+    /**
+     * @return the number of environments that are currently idle in the pool.
+     */
+    public synchronized int size() {
+        return idleCount;
+    }
+
+    @Override
+    public void close() {
+        List<KotlinCompilerEnvironment> environments = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            for (Deque<IdleEnvironment> idleEnvironments : idle.values()) {
+                for (IdleEnvironment idleEnvironment : idleEnvironments) {
+                    environments.add(idleEnvironment.getEnvironment());
+                }
+            }
+            idle.clear();
+            idleCount = 0;
+        }
+        dispose(environments);
+    }
+
+    private List<KotlinCompilerEnvironment> evictExpired(long now) {
+        List<KotlinCompilerEnvironment> expired = new ArrayList<>();
+        Iterator<Deque<IdleEnvironment>> keys = idle.values().iterator();
+        while (keys.hasNext()) {
+            Deque<IdleEnvironment> environments = keys.next();
+            // environments are released to the head of the deque, so the oldest are at the tail.
+            while (!environments.isEmpty() && now - environments.peekLast().getReleasedAt() > idleTimeoutNanos) {
+                expired.add(environments.pollLast().getEnvironment());
+                idleCount--;
+            }
+            if (environments.isEmpty()) {
+                keys.remove();
+            }
+        }
+        return expired;
+    }
+
+    private static void dispose(List<KotlinCompilerEnvironment> environments) {
+        for (KotlinCompilerEnvironment environment : environments) {
+            environment.dispose();
+        }
+    }
+
+    @Value
+    static class Key {
+        @Nullable
+        List<Path> classpath;
+
+        String moduleName;
+        List<KotlinParser.SourceModule> sourceModules;
+
+        @Nullable
+        Path classpathIndex;
+
+        String languageVersion;
+        String apiVersion;
+        boolean syntaxOnly;
+
+        /**
+         * Environments report compiler messages to a collector chosen by the parser that created them.
+         */
+        boolean logCompilationWarningsAndErrors;
+    }
+
+    @Value
+    private static class IdleEnvironment {
+        KotlinCompilerEnvironment environment;
+        long releasedAt;
+    }
+}
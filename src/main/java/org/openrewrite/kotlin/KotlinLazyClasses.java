@@ -0,0 +1,79 @@
+/*
+ * Copyright 2023 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openrewrite.kotlin;
+
+import org.openrewrite.ExecutionContext;
+import org.openrewrite.Incubating;
+import org.openrewrite.java.tree.JavaType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The lazily mapped class types of a batch whose bodies have not been mapped yet. Each of them holds on to the FIR of
+ * the batch, so the compiler environment of the batch is only disposed or returned to its pool once they are resolved.
+ */
+@Incubating(since = "0.0")
+public class KotlinLazyClasses {
+    private final ExecutionContext ctx;
+
+    private final Set<JavaType.Class> unresolved = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * @param ctx the execution context of the batch, which failures to map the body of a class are reported to.
+     */
+    public KotlinLazyClasses(ExecutionContext ctx) {
+        this.ctx = ctx;
+    }
+
+    synchronized void add(JavaType.Class clazz) {
+        unresolved.add(clazz);
+    }
+
+    synchronized void resolved(JavaType.Class clazz) {
+        unresolved.remove(clazz);
+    }
+
+    void failed(JavaType.Class clazz, Throwable t) {
+        resolved(clazz);
+        ctx.getOnError().accept(t);
+    }
+
+    public synchronized boolean isEmpty() {
+        return unresolved.isEmpty();
+    }
+
+    /**
+     * Map the bodies of the remaining classes, so that the compiler environment of the batch can be released.
+     * Failures are reported to the execution context of the batch, and the classes that failed throw when read.
+     */
+    public void resolveAll() {
+        List<JavaType.Class> remaining;
+        synchronized (this) {
+            remaining = new ArrayList<>(unresolved);
+        }
+        for (JavaType.Class clazz : remaining) {
+            try {
+                clazz.getMethods();
+            } catch (IllegalStateException ignored) {
+                // Already reported to the execution context.
+            }
+        }
+    }
+}
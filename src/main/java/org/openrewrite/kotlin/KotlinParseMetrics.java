@@ -0,0 +1,157 @@
+/*
+ * Copyright 2023 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openrewrite.kotlin;
+
+import org.openrewrite.internal.lang.Nullable;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time, allocations, files and lines attributed to each phase of parsing Kotlin sources.
+ * <p>
+ * Allocations are measured per thread with {@link com.sun.management.ThreadMXBean} and are reported as zero on JVMs
+ * that do not support it. Type mapping happens while files are mapped to LSTs, so its time and allocations are also
+ * part of those of {@link Phase#LST_MAPPING}.
+ * <p>
+ * Metrics are only collected when they are requested with
+ * {@link KotlinParsingExecutionContextView#setCollectParseMetrics(boolean)}, as measuring allocations is not free.
+ */
+public class KotlinParseMetrics {
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    public enum Phase {
+        ENVIRONMENT_SETUP,
+        FIR_ANALYSIS,
+        IR_CONVERSION,
+        LST_MAPPING,
+        TYPE_MAPPING
+    }
+
+    /**
+     * Takes no measurements, for the parses that do not collect metrics.
+     */
+    static final KotlinParseMetrics DISABLED = new KotlinParseMetrics(false);
+
+    private final Map<Phase, PhaseMetrics> phases = new EnumMap<>(Phase.class);
+    private final boolean enabled;
+
+    public KotlinParseMetrics() {
+        this(true);
+    }
+
+    private KotlinParseMetrics(boolean enabled) {
+        this.enabled = enabled;
+        for (Phase phase : Phase.values()) {
+            phases.put(phase, new PhaseMetrics());
+        }
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    public Duration getElapsed(Phase phase) {
+        return Duration.ofNanos(phases.get(phase).nanos.get());
+    }
+
+    public long getAllocatedBytes(Phase phase) {
+        return phases.get(phase).allocatedBytes.get();
+    }
+
+    public long getFiles(Phase phase) {
+        return phases.get(phase).files.get();
+    }
+
+    public long getLines(Phase phase) {
+        return phases.get(phase).lines.get();
+    }
+
+    /**
+     * @return a measurement of the current thread that is attributed to a phase by {@link #record(Phase, Measurement, long, long)},
+     * or null when metrics are not collected.
+     */
+    @Nullable
+    Measurement start() {
+        return enabled ? new Measurement(System.nanoTime(), currentThreadAllocatedBytes()) : null;
+    }
+
+    void record(Phase phase, @Nullable Measurement measurement, long files, long lines) {
+        if (measurement == null) {
+            return;
+        }
+        PhaseMetrics metrics = phases.get(phase);
+        metrics.nanos.addAndGet(System.nanoTime() - measurement.startNanos);
+        metrics.allocatedBytes.addAndGet(Math.max(0, currentThreadAllocatedBytes() - measurement.startAllocatedBytes));
+        metrics.files.addAndGet(files);
+        metrics.lines.addAndGet(lines);
+    }
+
+    void add(KotlinParseMetrics other) {
+        for (Phase phase : Phase.values()) {
+            PhaseMetrics metrics = phases.get(phase);
+            PhaseMetrics otherMetrics = other.phases.get(phase);
+            metrics.nanos.addAndGet(otherMetrics.nanos.get());
+            metrics.allocatedBytes.addAndGet(otherMetrics.allocatedBytes.get());
+            metrics.files.addAndGet(otherMetrics.files.get());
+            metrics.lines.addAndGet(otherMetrics.lines.get());
+        }
+    }
+
+    static long lines(String source) {
+        if (source.isEmpty()) {
+            return 0;
+        }
+        long lines = 1;
+        for (int i = 0; i < source.length(); i++) {
+            if (source.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    private static long currentThreadAllocatedBytes() {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+            if (sunThreads.isThreadAllocatedMemorySupported() && sunThreads.isThreadAllocatedMemoryEnabled()) {
+                return sunThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return 0;
+    }
+
+    static final class Measurement {
+        private final long startNanos;
+        private final long startAllocatedBytes;
+
+        private Measurement(long startNanos, long startAllocatedBytes) {
+            this.startNanos = startNanos;
+            this.startAllocatedBytes = startAllocatedBytes;
+        }
+    }
+
+    private static final class PhaseMetrics {
+        private final AtomicLong nanos = new AtomicLong();
+        private final AtomicLong allocatedBytes = new AtomicLong();
+        private final AtomicLong files = new AtomicLong();
+        private final AtomicLong lines = new AtomicLong();
+    }
+}
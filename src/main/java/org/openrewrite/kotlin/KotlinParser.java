@@ -20,6 +20,7 @@ import kotlin.annotation.AnnotationTarget;
 import kotlin.jvm.functions.Function2;
 import lombok.AccessLevel;
 import lombok.RequiredArgsConstructor;
+import lombok.Value;
 import org.intellij.lang.annotations.Language;
 import org.jetbrains.kotlin.KtSourceFile;
 import org.jetbrains.kotlin.KtVirtualFileSourceFile;
@@ -29,9 +30,9 @@ import org.jetbrains.kotlin.cli.common.config.ContentRoot;
 import org.jetbrains.kotlin.cli.common.config.KotlinSourceRoot;
 import org.jetbrains.kotlin.cli.common.messages.MessageCollector;
 import org.jetbrains.kotlin.cli.common.messages.PrintingMessageCollector;
+import org.jetbrains.kotlin.cli.common.modules.ModuleBuilder;
 import org.jetbrains.kotlin.cli.common.modules.ModuleChunk;
 import org.jetbrains.kotlin.cli.jvm.compiler.EnvironmentConfigFiles;
-import org.jetbrains.kotlin.cli.jvm.compiler.JvmPackagePartProvider;
 import org.jetbrains.kotlin.cli.jvm.compiler.KotlinCoreEnvironment;
 import org.jetbrains.kotlin.cli.jvm.compiler.VfsBasedProjectEnvironment;
 import org.jetbrains.kotlin.cli.jvm.compiler.pipeline.ModuleCompilerAnalyzedOutput;
@@ -44,26 +45,45 @@ import org.jetbrains.kotlin.com.intellij.openapi.vfs.StandardFileSystems;
 import org.jetbrains.kotlin.com.intellij.openapi.vfs.VirtualFile;
 import org.jetbrains.kotlin.com.intellij.openapi.vfs.VirtualFileManager;
 import org.jetbrains.kotlin.com.intellij.openapi.vfs.VirtualFileSystem;
+import org.jetbrains.kotlin.com.intellij.psi.PsiManager;
 import org.jetbrains.kotlin.com.intellij.psi.search.GlobalSearchScope;
 import org.jetbrains.kotlin.com.intellij.testFramework.LightVirtualFile;
 import org.jetbrains.kotlin.config.*;
 import org.jetbrains.kotlin.diagnostics.DiagnosticReporterFactory;
 import org.jetbrains.kotlin.diagnostics.impl.BaseDiagnosticsCollector;
+import org.jetbrains.kotlin.fir.FirElement;
+import org.jetbrains.kotlin.fir.FirModuleData;
+import org.jetbrains.kotlin.fir.FirModuleDataKt;
 import org.jetbrains.kotlin.fir.FirSession;
 import org.jetbrains.kotlin.fir.declarations.FirFile;
+import org.jetbrains.kotlin.fir.declarations.synthetic.FirSyntheticProperty;
+import org.jetbrains.kotlin.fir.declarations.synthetic.FirSyntheticPropertyAccessor;
+import org.jetbrains.kotlin.fir.pipeline.AnalyseKt;
+import org.jetbrains.kotlin.fir.pipeline.FirUtilsKt;
+import org.jetbrains.kotlin.fir.references.FirResolvedNamedReference;
+import org.jetbrains.kotlin.fir.resolve.providers.FirProviderKt;
+import org.jetbrains.kotlin.fir.resolve.providers.FirSymbolProvider;
+import org.jetbrains.kotlin.fir.symbols.FirBasedSymbol;
+import org.jetbrains.kotlin.fir.symbols.impl.FirCallableSymbol;
+import org.jetbrains.kotlin.fir.visitors.FirVisitorVoid;
 import org.jetbrains.kotlin.idea.KotlinFileType;
+import org.jetbrains.kotlin.load.kotlin.PackagePartProvider;
 import org.jetbrains.kotlin.modules.Module;
 import org.jetbrains.kotlin.modules.TargetId;
 import org.jetbrains.kotlin.platform.CommonPlatforms;
 import org.jetbrains.kotlin.platform.jvm.JvmPlatforms;
+import org.jetbrains.kotlin.psi.KtFile;
 import org.jetbrains.kotlin.utils.PathUtil;
 import org.openrewrite.ExecutionContext;
 import org.openrewrite.InMemoryExecutionContext;
 import org.openrewrite.Parser;
+import org.openrewrite.Recipe;
+import org.openrewrite.internal.EncodingDetectingInputStream;
 import org.openrewrite.internal.lang.Nullable;
 import org.openrewrite.java.JavaParser;
 import org.openrewrite.java.internal.JavaTypeCache;
 import org.openrewrite.kotlin.internal.KotlinParserVisitor;
+import org.openrewrite.kotlin.table.KotlinParseBatches;
 import org.openrewrite.kotlin.tree.K;
 import org.openrewrite.style.NamedStyles;
 import org.openrewrite.tree.ParsingEventListener;
@@ -71,15 +91,25 @@ import org.openrewrite.tree.ParsingExecutionContextView;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static java.util.Collections.emptyList;
+import static java.util.Collections.emptySet;
 import static java.util.stream.Collectors.toList;
 import static org.jetbrains.kotlin.cli.common.CLIConfigurationKeys.*;
 import static org.jetbrains.kotlin.cli.common.messages.MessageRenderer.PLAIN_FULL_PATHS;
@@ -93,9 +123,19 @@ import static org.jetbrains.kotlin.cli.jvm.config.JvmContentRootsKt.*;
 import static org.jetbrains.kotlin.config.CommonConfigurationKeys.*;
 import static org.jetbrains.kotlin.config.JVMConfigurationKeys.DO_NOT_CLEAR_BINDING_CONTEXT;
 import static org.jetbrains.kotlin.config.JVMConfigurationKeys.FRIEND_PATHS;
+import static org.jetbrains.kotlin.config.JVMConfigurationKeys.NO_JDK;
 
 @RequiredArgsConstructor(access = AccessLevel.PRIVATE)
-public class KotlinParser implements Parser<K.CompilationUnit> {
+public class KotlinParser implements Parser<K.CompilationUnit>, AutoCloseable {
+    private static final LanguageVersion LANGUAGE_VERSION = LanguageVersion.KOTLIN_1_7;
+    private static final ApiVersion API_VERSION = ApiVersion.KOTLIN_1_7;
+
+    /**
+     * The number of batches parsed with lazy type attribution whose compiler environments are kept open for the class
+     * types that have not been resolved yet.
+     */
+    private static final int MAXIMUM_RETAINED_ENVIRONMENTS = 2;
+
     @Nullable
     private final Collection<Path> classpath;
 
@@ -103,6 +143,73 @@ public class KotlinParser implements Parser<K.CompilationUnit> {
     private final boolean logCompilationWarningsAndErrors;
     private final JavaTypeCache typeCache;
     private final String moduleName;
+    private final List<SourceModule> sourceModules;
+    private final AnalysisDepth analysisDepth;
+
+    /**
+     * Directory of the on-disk indexes of classpath metadata, or null to scan the classpath in every new environment.
+     */
+    @Nullable
+    private final Path classpathIndex;
+
+    /**
+     * The fingerprint of the classpath that keys its index, which is computed once per parser rather than for every
+     * new environment, as it reads the metadata of every file in class directories.
+     */
+    @Nullable
+    private String classpathIndexFingerprint;
+
+    private final boolean diskBackedSources;
+
+    @Nullable
+    private final KotlinEnvironmentPool environmentPool;
+
+    /**
+     * True when the environment pool was created for this parser and should be closed along with it.
+     */
+    private final boolean closeEnvironmentPool;
+
+    /**
+     * Maps compiled sources to LSTs concurrently when present.
+     */
+    @Nullable
+    private final ExecutorService mappingExecutor;
+
+    private final boolean shutdownMappingExecutor;
+
+    /**
+     * Derive the ids of the nodes of each file from its path and source instead of generating random ids.
+     */
+    private final boolean deterministicIds;
+
+    /**
+     * Map the members of classes when they are first read rather than while the LST is built.
+     */
+    private final boolean lazyTypeAttribution;
+
+    /**
+     * Parse without the classpath and the JDK, and without type attribution.
+     */
+    private final boolean syntaxOnly;
+
+    /**
+     * The persisted classpath types the type cache was warmed with, which the types mapped by this parser are added to.
+     */
+    @Nullable
+    private final KotlinTypeTable typeTable;
+
+    /**
+     * Only map the members of classpath classes that the sources of a batch refer to.
+     */
+    private final boolean referencedMembersOnly;
+
+    /**
+     * The environments of the batches parsed with lazy type attribution whose class types have not all been resolved,
+     * oldest first. Their LSTs may still read types from them.
+     */
+    private final Deque<RetainedEnvironment> retainedEnvironments = new ArrayDeque<>();
+
+    private volatile boolean closed;
 
     @Override
     public List<K.CompilationUnit> parse(@Language("kotlin") String... sources) {
@@ -138,103 +245,362 @@ public class KotlinParser implements Parser<K.CompilationUnit> {
 
     @Override
     public List<K.CompilationUnit> parseInputs(Iterable<Input> sources, @Nullable Path relativeTo, ExecutionContext ctx) {
+        try (Stream<K.CompilationUnit> cus = parseInputsToStream(sources, relativeTo, ctx)) {
+            return cus.collect(toList());
+        }
+    }
+
+    /**
+     * Parse the sources, and map each compiled source to an LST only when the stream reaches it.
+     * <p>
+     * The parser drops its reference to the {@link FirFile} of a source once that source is mapped. Callers that
+     * process each LST before requesting the next one therefore never hold the LSTs of the whole batch at once.
+     * The stream should be closed to release the compiler environment when it is not consumed to the end.
+     */
+    public Stream<K.CompilationUnit> parseInputsToStream(Iterable<Input> sources, @Nullable Path relativeTo, ExecutionContext ctx) {
+        if (closed) {
+            throw new IllegalStateException("The Kotlin parser has been closed.");
+        }
         ParsingExecutionContextView pctx = ParsingExecutionContextView.view(ctx);
-        ParsingEventListener parsingListener = pctx.getParsingListener();
 
-        Disposable disposable = Disposer.newDisposable();
+        KotlinParseMetrics metrics = KotlinParsingExecutionContextView.view(ctx).isCollectParseMetrics() ?
+                new KotlinParseMetrics() : KotlinParseMetrics.DISABLED;
+        // Acquired outside of the try block, since a closed environment pool is a programming error rather than a compiler failure.
+        KotlinParseMetrics.Measurement environmentSetup = metrics.start();
+        KotlinCompilerEnvironment environment = acquireEnvironment();
+        metrics.record(KotlinParseMetrics.Phase.ENVIRONMENT_SETUP, environmentSetup, 0, 0);
         Map<FirSession, List<CompiledKotlinSource>> firSessionToCus;
         try {
-            firSessionToCus = parseInputsToCompilerAst(disposable, sources, relativeTo, pctx);
+            firSessionToCus = parseInputsToCompilerAst(environment, sources, relativeTo, pctx, metrics);
         } catch (Exception e) {
+            releaseEnvironment(environment, null, false);
+            publishMetrics(metrics, ctx);
             // TODO: associate the compiler exception to a specific source file.
             // https://github.com/openrewrite/rewrite-kotlin/issues/24
-            return emptyList();
+            return Stream.empty();
         }
 
-        FirSession firSession = (FirSession) firSessionToCus.keySet().toArray()[0];
-        List<CompiledKotlinSource> compilerCus = firSessionToCus.get(firSession);
-        List<K.CompilationUnit> cus = new ArrayList<>(firSessionToCus.get(firSession).size());
+        KotlinCompilerEnvironment compiledWith = environment;
+        KotlinLazyClasses lazyClasses = lazyTypeAttribution ? new KotlinLazyClasses(ctx) : null;
+        MappingIterator cus = new MappingIterator(firSessionToCus, relativeTo, pctx, metrics, lazyClasses, () -> {
+            releaseEnvironment(compiledWith, lazyClasses, true);
+            publishMetrics(metrics, ctx);
+        });
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cus, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(cus::close);
+    }
 
-        for (CompiledKotlinSource compiled : compilerCus) {
-            try {
-                KotlinParserVisitor mappingVisitor = new KotlinParserVisitor(
-                        compiled.getInput().getRelativePath(relativeTo),
-                        compiled.getInput().getFileAttributes(),
-                        compiled.getInput().getSource(ctx),
-                        typeCache,
-                        firSession,
-                        ctx
-                );
+    /**
+     * Maps compiled sources to LSTs in input order, either on demand or ahead of time on the mapping executor. Parsing
+     * events are always reported on the thread that consumes the iterator.
+     */
+    private class MappingIterator implements Iterator<K.CompilationUnit> {
+        private final List<CompiledKotlinSource> compiled = new ArrayList<>();
+        private final List<SessionSignatures> signatures = new ArrayList<>();
 
-                K.CompilationUnit kcu = (K.CompilationUnit) mappingVisitor.visitFile(compiled.getFirFile(), new InMemoryExecutionContext());
-                cus.add(kcu);
-                parsingListener.parsed(compiled.getInput(), kcu);
+        @Nullable
+        private final Set<String> referencedMembers;
+
+        /**
+         * The sources that are being mapped ahead of the consumer, of which there are at most {@link #window} at a time
+         * so that the LSTs of the whole batch are never held at once.
+         */
+        @Nullable
+        private final List<MappingTask> mapped;
+
+        /**
+         * Registers the iterator and every mapping task that has been submitted and not finished or been cancelled,
+         * so that the compiler environment is only released once no task reads its FIR.
+         */
+        private final Phaser inFlight = new Phaser(1);
+
+        private final int window;
+        private int submitted;
+
+        @Nullable
+        private final Path relativeTo;
+
+        private final ParsingExecutionContextView ctx;
+        private final ParsingEventListener parsingListener;
+        private final KotlinParseMetrics metrics;
+
+        @Nullable
+        private final KotlinLazyClasses lazyClasses;
+
+        private final Runnable release;
+
+        private int index;
+
+        @Nullable
+        private K.CompilationUnit next;
+
+        private boolean closed;
+
+        MappingIterator(Map<FirSession, List<CompiledKotlinSource>> firSessionToCus, @Nullable Path relativeTo,
+                        ParsingExecutionContextView ctx, KotlinParseMetrics metrics, @Nullable KotlinLazyClasses lazyClasses,
+                        Runnable release) {
+            // Modules are compiled in dependency order, and their sources are mapped in input order.
+            List<CompiledKotlinSource> inInputOrder = new ArrayList<>();
+            Map<CompiledKotlinSource, SessionSignatures> sessionSignaturesBySource = new IdentityHashMap<>();
+            for (Map.Entry<FirSession, List<CompiledKotlinSource>> sessionCus : firSessionToCus.entrySet()) {
+                // The class symbols and type signatures of a session are resolved once for all of its sources.
+                SessionSignatures sessionSignatures = new SessionSignatures(new FirSymbolCache(sessionCus.getKey()));
+                for (CompiledKotlinSource source : sessionCus.getValue()) {
+                    inInputOrder.add(source);
+                    sessionSignaturesBySource.put(source, sessionSignatures);
+                }
+            }
+            inInputOrder.sort(Comparator.comparingInt(CompiledKotlinSource::getInputIndex));
+            for (CompiledKotlinSource source : inInputOrder) {
+                compiled.add(source);
+                signatures.add(sessionSignaturesBySource.get(source));
+            }
+            this.referencedMembers = referencedMembersOnly ? referencedMembers(compiled) : null;
+            this.relativeTo = relativeTo;
+            this.ctx = ctx;
+            this.parsingListener = ctx.getParsingListener();
+            this.metrics = metrics;
+            this.lazyClasses = lazyClasses;
+            this.release = release;
+
+            if (mappingExecutor == null) {
+                this.mapped = null;
+                this.window = 0;
+            } else {
+                this.mapped = new ArrayList<>(Collections.nCopies(compiled.size(), null));
+                // Keep every thread busy while the consumer processes the LST it was handed.
+                this.window = 2 * (mappingExecutor instanceof ForkJoinPool ?
+                        ((ForkJoinPool) mappingExecutor).getParallelism() :
+                        Runtime.getRuntime().availableProcessors());
+                submitUpTo(window);
+            }
+        }
+
+        private void submitUpTo(int end) {
+            //noinspection ConstantConditions
+            for (; submitted < Math.min(end, compiled.size()); submitted++) {
+                MappingTask task = new MappingTask(compiled.get(submitted), signatures.get(submitted));
+                inFlight.register();
+                task.future = mappingExecutor.submit(task);
+                mapped.set(submitted, task);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && index < compiled.size()) {
+                next = map(index++);
+            }
+            if (next == null) {
+                close();
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public K.CompilationUnit next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            K.CompilationUnit cu = next;
+            next = null;
+            return cu;
+        }
+
+        @Nullable
+        private K.CompilationUnit map(int i) {
+            if (mapped != null) {
+                submitUpTo(i + 1 + window);
+            }
+            // Drop the reference to the FirFile, which is no longer needed once the source is mapped.
+            CompiledKotlinSource source = compiled.set(i, null);
+            try {
+                //noinspection ConstantConditions
+                K.CompilationUnit kcu = mapped == null ?
+                        mapCompilationUnit(source, relativeTo, signatures.get(i), referencedMembers, ctx, metrics, lazyClasses) :
+                        mapped.set(i, null).future.get();
+                parsingListener.parsed(source.getInput(), kcu);
+                return kcu;
+            } catch (InterruptedException e) {
+                close();
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while mapping Kotlin sources.", e);
             } catch (Throwable t) {
-                pctx.parseFailure(compiled.getInput(), relativeTo, this, t);
-                ctx.getOnError().accept(t);
+                Throwable cause = t instanceof ExecutionException && t.getCause() != null ? t.getCause() : t;
+                ctx.parseFailure(source.getInput(), relativeTo, KotlinParser.this, cause);
+                ctx.getOnError().accept(cause);
+                return null;
             }
         }
 
-        Disposer.dispose(disposable);
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (mapped != null) {
+                for (MappingTask remaining : mapped) {
+                    if (remaining != null) {
+                        remaining.cancel();
+                    }
+                }
+                // Tasks that have already started read the FIR of the environment until they finish.
+                inFlight.arriveAndAwaitAdvance();
+            }
+            compiled.clear();
+            signatures.clear();
+            release.run();
+        }
 
-        return cus;
-    }
+        private class MappingTask implements Callable<K.CompilationUnit> {
+            private final CompiledKotlinSource source;
+            private final SessionSignatures sessionSignatures;
 
-    /**
-     * @param disposable disposable to use for the compiler environment. THIS MUST BE DISPOSED BY THE CALLER.
-     * @param sources input sources to parse.
-     * @param relativeTo path to relativize input paths against.
-     * @param ctx Execution context to use for collecting parsing failures.
-     * @return FirSession associated to type attributing the CompiledKotlinSources.
-     */
-    Map<FirSession, List<CompiledKotlinSource>> parseInputsToCompilerAst(Disposable disposable, Iterable<Input> sources, @Nullable Path relativeTo, ExecutionContext ctx) {
-        CompilerConfiguration compilerConfiguration = compilerConfiguration();
+            /**
+             * Set once the task either starts or is cancelled.
+             */
+            private final AtomicBoolean claimed = new AtomicBoolean();
 
-        File buildFile = null;
-        K2JVMCompilerArguments arguments = new K2JVMCompilerArguments();
-        ModuleChunk moduleChunk = configureModuleChunk(compilerConfiguration, arguments, buildFile);
-        List<Module> chunk = moduleChunk.getModules();
+            @Nullable
+            Future<K.CompilationUnit> future;
 
-        if (classpath != null) {
-            for (Path path : classpath) {
-                File file;
+            MappingTask(CompiledKotlinSource source, SessionSignatures sessionSignatures) {
+                this.source = source;
+                this.sessionSignatures = sessionSignatures;
+            }
+
+            @Nullable
+            @Override
+            public K.CompilationUnit call() {
+                if (!claimed.compareAndSet(false, true)) {
+                    return null;
+                }
                 try {
-                    file = path.toFile();
-                } catch (UnsupportedOperationException ex) {
-                    continue;
+                    return mapCompilationUnit(source, relativeTo, sessionSignatures, referencedMembers, ctx, metrics, lazyClasses);
+                } finally {
+                    inFlight.arriveAndDeregister();
+                }
+            }
+
+            /**
+             * Cancel the task unless it has already started.
+             */
+            void cancel() {
+                if (claimed.compareAndSet(false, true)) {
+                    inFlight.arriveAndDeregister();
+                    //noinspection ConstantConditions
+                    future.cancel(false);
                 }
-                addJvmClasspathRoot(compilerConfiguration, file);
             }
         }
+    }
 
-        addJvmClasspathRoot(compilerConfiguration, PathUtil.getResourcePathForClass(AnnotationTarget.class));
+    /**
+     * The type signature builders of a session. A signature builder is not thread-safe, so each source that is being
+     * mapped borrows one of its own, and the builders keep the signatures they memoized for the next source.
+     */
+    @RequiredArgsConstructor
+    private static class SessionSignatures {
+        private final FirSymbolCache symbols;
+        private final Deque<KotlinTypeSignatureBuilder> idle = new ArrayDeque<>();
 
-        configureSourceRoots(compilerConfiguration, chunk, buildFile);
-        configureJdkClasspathRoots(compilerConfiguration);
+        synchronized KotlinTypeSignatureBuilder borrow() {
+            KotlinTypeSignatureBuilder signatures = idle.pollFirst();
+            return signatures == null ? new KotlinTypeSignatureBuilder(symbols) : signatures;
+        }
 
-        Map<FirSession, List<CompiledKotlinSource>> sessionToCus = new HashMap<>();
-        KotlinCoreEnvironment environment = KotlinCoreEnvironment.createForProduction(
-                disposable,
-                compilerConfiguration,
-                EnvironmentConfigFiles.JVM_CONFIG_FILES);
+        synchronized void giveBack(KotlinTypeSignatureBuilder signatures) {
+            idle.addFirst(signatures);
+        }
+    }
 
-        Project project = environment.getProject();
-        VirtualFileSystem fileSystem = VirtualFileManager.getInstance().getFileSystem(StandardFileSystems.FILE_PROTOCOL);
-        GlobalSearchScope globalScope = GlobalSearchScope.allScope(project);
-        JvmPackagePartProvider packagePartProvider = environment.createPackagePartProvider(globalScope);
-        Function<GlobalSearchScope, JvmPackagePartProvider> packagePartProviderFunction = globalSearchScope -> packagePartProvider;
-        VfsBasedProjectEnvironment projectEnvironment = new VfsBasedProjectEnvironment(
-                project,
-                fileSystem,
-                packagePartProviderFunction::apply);
+    private K.CompilationUnit mapCompilationUnit(CompiledKotlinSource compiled, @Nullable Path relativeTo, SessionSignatures sessionSignatures,
+                                                 @Nullable Set<String> referencedMembers, ExecutionContext ctx, KotlinParseMetrics metrics,
+                                                 @Nullable KotlinLazyClasses lazyClasses) {
+        KotlinParseMetrics.Measurement lstMapping = metrics.start();
+        String source = compiled.getSource();
+        Charset charset = compiled.getCharset();
+        boolean charsetBomMarked = compiled.isCharsetBomMarked();
+        if (source == null) {
+            EncodingDetectingInputStream is = compiled.getInput().getSource(ctx);
+            source = is.readFully();
+            charset = is.getCharset();
+            charsetBomMarked = is.isCharsetBomMarked();
+            if (source.indexOf('\r') >= 0) {
+                // Inputs with carriage returns are compiled from memory, so the file gained them after it was compiled.
+                throw new IllegalStateException(compiled.getInput().getPath() + " changed while it was being parsed.");
+            }
+        }
 
-        if (chunk.size() > 1) {
-            throw new IllegalStateException("Implement me. Expects chunk size of 1, but was " + chunk.size());
+        KotlinTypeSignatureBuilder signatures = sessionSignatures.borrow();
+        K.CompilationUnit cu;
+        try {
+            KotlinParserVisitor mappingVisitor = new KotlinParserVisitor(
+                    compiled.getInput().getRelativePath(relativeTo),
+                    compiled.getInput().getFileAttributes(),
+                    source,
+                    charset,
+                    charsetBomMarked,
+                    typeCache,
+                    signatures,
+                    metrics.isEnabled() ? metrics : null,
+                    deterministicIds,
+                    lazyClasses,
+                    syntaxOnly,
+                    typeTable,
+                    referencedMembers,
+                    ctx
+            );
+            cu = (K.CompilationUnit) mappingVisitor.visitFile(compiled.getFirFile(), new InMemoryExecutionContext());
+        } finally {
+            sessionSignatures.giveBack(signatures);
+        }
+        if (lstMapping != null) {
+            metrics.record(KotlinParseMetrics.Phase.LST_MAPPING, lstMapping, 1, KotlinParseMetrics.lines(source));
         }
+        return cu;
+    }
 
-        Module module = chunk.get(0);
-        CompilerConfiguration moduleConfiguration = applyModuleProperties(compilerConfiguration, module, buildFile);
-        moduleConfiguration.put(FRIEND_PATHS, module.getFriendPaths());
+    /**
+     * Add the metrics of a batch to those of the execution context, and record them in the {@link KotlinParseBatches} table.
+     */
+    private static void publishMetrics(KotlinParseMetrics metrics, ExecutionContext ctx) {
+        if (!metrics.isEnabled()) {
+            return;
+        }
+        KotlinParsingExecutionContextView.view(ctx).getParseMetrics().add(metrics);
+        new KotlinParseBatches(Recipe.noop()).insertRow(ctx, new KotlinParseBatches.Row(
+                metrics.getFiles(KotlinParseMetrics.Phase.LST_MAPPING),
+                metrics.getLines(KotlinParseMetrics.Phase.LST_MAPPING),
+                metrics.getElapsed(KotlinParseMetrics.Phase.ENVIRONMENT_SETUP).toMillis(),
+                metrics.getAllocatedBytes(KotlinParseMetrics.Phase.ENVIRONMENT_SETUP),
+                metrics.getElapsed(KotlinParseMetrics.Phase.FIR_ANALYSIS).toMillis(),
+                metrics.getAllocatedBytes(KotlinParseMetrics.Phase.FIR_ANALYSIS),
+                metrics.getElapsed(KotlinParseMetrics.Phase.IR_CONVERSION).toMillis(),
+                metrics.getAllocatedBytes(KotlinParseMetrics.Phase.IR_CONVERSION),
+                metrics.getElapsed(KotlinParseMetrics.Phase.LST_MAPPING).toMillis(),
+                metrics.getAllocatedBytes(KotlinParseMetrics.Phase.LST_MAPPING),
+                metrics.getElapsed(KotlinParseMetrics.Phase.TYPE_MAPPING).toMillis(),
+                metrics.getAllocatedBytes(KotlinParseMetrics.Phase.TYPE_MAPPING)
+        ));
+    }
+
+    /**
+     * @param disposable disposable to use for the compiler environment. THIS MUST BE DISPOSED BY THE CALLER.
+     * @param sources input sources to parse.
+     * @param relativeTo path to relativize input paths against.
+     * @param ctx Execution context to use for collecting parsing failures.
+     * @return FirSession associated to type attributing the CompiledKotlinSources.
+     */
+    Map<FirSession, List<CompiledKotlinSource>> parseInputsToCompilerAst(Disposable disposable, Iterable<Input> sources, @Nullable Path relativeTo, ExecutionContext ctx) {
+        return parseInputsToCompilerAst(createCompilerEnvironment(disposable), sources, relativeTo, ctx, KotlinParseMetrics.DISABLED);
+    }
+
+    Map<FirSession, List<CompiledKotlinSource>> parseInputsToCompilerAst(KotlinCompilerEnvironment environment, Iterable<Input> sources, @Nullable Path relativeTo,
+                                                                         ExecutionContext ctx, KotlinParseMetrics metrics) {
+        CompilerConfiguration compilerConfiguration = environment.getCompilerConfiguration();
+        Project project = environment.getCoreEnvironment().getProject();
 
         Set<KtSourceFile> platformSources = new LinkedHashSet<>();
         Set<KtSourceFile> commonSources = new LinkedHashSet<>();
@@ -256,66 +622,482 @@ public class KotlinParser implements Parser<K.CompilationUnit> {
 
         forAllFiles(roots, compilerConfiguration, project, null, sortFiles);
 
-        /*
-            Create a `LightVirtualFile` for each `Input` and add the virtual files as platform sources.
-            A platform source will result in an IR FirFile.
-
-            A `KtVirtualFileSourceFile` will have a different PSI than a file that is resolvable on disk.
-            For actual source files, the input may be resolved by `forAllFiles` using `ContentRootsKt#addKotlinSourceRoots(Path, false)`.
-
-            The benefit of `addKotlinSourceRoots` is a higher quality PSI element that backs the IR FirFile.
-            `LightVirtualFile` are created to support tests and in the future, Kotlin template.
-            We might want to extract the generation of `platformSources` later on.
-         */
-        List<Input> inputs = acceptedInputs(sources);
-        for (int i = 0; i < inputs.size(); i++) {
-            Input source = inputs.get(i);
-            String fileName = "openRewriteFile.kt".equals(source.getPath().toString()) ? "openRewriteFile.kt" + i : source.getPath().toString();
-            VirtualFile vFile = new LightVirtualFile(fileName, KotlinFileType.INSTANCE, source.getSource(ctx).readFully());
-            platformSources.add(new KtVirtualFileSourceFile(vFile));
-        }
-
-        ModuleCompilerInput compilerInput = new ModuleCompilerInput(
-                new TargetId(module.getModuleName(), module.getModuleType()),
-                CommonPlatforms.INSTANCE.getDefaultCommonPlatform(),
-                commonSources,
-                JvmPlatforms.INSTANCE.getUnspecifiedJvmPlatform(),
-                platformSources,
-                moduleConfiguration,
-                emptyList()
-        );
+        List<Module> modules = inDependencyOrder(environment.getModules());
+        List<Input> accepted = acceptedInputs(sources);
+        Map<Input, Integer> inputIndexes = new IdentityHashMap<>(accepted.size());
+        for (Input input : accepted) {
+            inputIndexes.putIfAbsent(input, inputIndexes.size());
+        }
+        Map<Module, List<Input>> moduleInputs = inputsByModule(modules, accepted);
 
         BaseDiagnosticsCollector diagnosticsReporter = DiagnosticReporterFactory.INSTANCE.createReporter(false);
-        ModuleCompilerEnvironment compilerEnvironment = new ModuleCompilerEnvironment(projectEnvironment, diagnosticsReporter);
+        ModuleCompilerEnvironment compilerEnvironment = new ModuleCompilerEnvironment(environment.getProjectEnvironment(), diagnosticsReporter);
         CommonCompilerPerformanceManager performanceManager = compilerConfiguration.get(PERF_MANAGER);
-        ModuleCompilerAnalyzedOutput output = compileModuleToAnalyzedFir(
-                compilerInput,
-                compilerEnvironment,
-                emptyList(),
-                null,
-                diagnosticsReporter,
-                performanceManager
+
+        Map<FirSession, List<CompiledKotlinSource>> sessionToCus = new LinkedHashMap<>();
+        Map<String, FirSession> moduleSessions = new HashMap<>();
+        int fileIndex = 0;
+        for (Module module : modules) {
+            List<Input> inputs = moduleInputs.get(module);
+            if (inputs.isEmpty() && platformSources.isEmpty() && commonSources.isEmpty()) {
+                continue;
+            }
+
+            /*
+                Create a `LightVirtualFile` for each `Input` and add the virtual files as platform sources.
+                A platform source will result in an IR FirFile.
+
+                A `KtVirtualFileSourceFile` will have a different PSI than a file that is resolvable on disk.
+                For actual source files, the input may be resolved by `forAllFiles` using `ContentRootsKt#addKotlinSourceRoots(Path, false)`.
+
+                The benefit of `addKotlinSourceRoots` is a higher quality PSI element that backs the IR FirFile.
+                `LightVirtualFile` are created to support tests and in the future, Kotlin template.
+                We might want to extract the generation of `platformSources` later on.
+             */
+            Set<KtSourceFile> modulePlatformSources = new LinkedHashSet<>(platformSources);
+            List<EncodingDetectingInputStream> decodedInputs = new ArrayList<>(inputs.size());
+            List<String> sourceTexts = new ArrayList<>(inputs.size());
+            long lines = 0;
+            for (Input source : inputs) {
+                String fileName = "openRewriteFile.kt".equals(source.getPath().toString()) ? "openRewriteFile.kt" + fileIndex : source.getPath().toString();
+                fileIndex++;
+
+                VirtualFile diskFile = diskBackedSources ? localFile(source) : null;
+                if (diskFile != null) {
+                    // The compiler loads the file through the local file system, and the mapping decodes it on demand.
+                    decodedInputs.add(null);
+                    sourceTexts.add(null);
+                    modulePlatformSources.add(new KtVirtualFileSourceFile(diskFile));
+                    continue;
+                }
+
+                // The decoded text is shared by the compiler and the LST mapping, so each input is only read once.
+                EncodingDetectingInputStream is = source.getSource(ctx);
+                String sourceText = is.readFully();
+                decodedInputs.add(is);
+                sourceTexts.add(sourceText);
+                if (metrics.isEnabled()) {
+                    lines += KotlinParseMetrics.lines(sourceText);
+                }
+
+                VirtualFile vFile = new LightVirtualFile(fileName, KotlinFileType.INSTANCE, sourceText);
+                modulePlatformSources.add(new KtVirtualFileSourceFile(vFile));
+            }
+
+            // Sources found in the content roots belong to the first module that is compiled.
+            Set<KtSourceFile> moduleCommonSources = new LinkedHashSet<>(commonSources);
+            platformSources.clear();
+            commonSources.clear();
+
+            CompilerConfiguration moduleConfiguration = applyModuleProperties(compilerConfiguration, module, null);
+            moduleConfiguration.put(FRIEND_PATHS, module.getFriendPaths());
+
+            // Modules see the sources of the modules they depend on, and the internal declarations of their friends.
+            List<FirSymbolProvider> dependencySymbolProviders = new ArrayList<>();
+            List<FirModuleData> friendModules = new ArrayList<>();
+            SourceModule sourceModule = sourceModule(module);
+            if (sourceModule != null) {
+                for (String dependency : transitiveDependencies(sourceModule)) {
+                    FirSession dependencySession = moduleSessions.get(dependency);
+                    if (dependencySession != null) {
+                        dependencySymbolProviders.add(FirProviderKt.getFirProvider(dependencySession).getSymbolProvider());
+                    }
+                }
+                for (String friend : sourceModule.getFriendModules()) {
+                    FirSession friendSession = moduleSessions.get(friend);
+                    if (friendSession != null) {
+                        friendModules.add(FirModuleDataKt.getModuleData(friendSession));
+                    }
+                }
+            }
+
+            ModuleCompilerInput compilerInput = new ModuleCompilerInput(
+                    new TargetId(module.getModuleName(), module.getModuleType()),
+                    CommonPlatforms.INSTANCE.getDefaultCommonPlatform(),
+                    moduleCommonSources,
+                    JvmPlatforms.INSTANCE.getUnspecifiedJvmPlatform(),
+                    modulePlatformSources,
+                    moduleConfiguration,
+                    friendModules
+            );
+
+            KotlinParseMetrics.Measurement firAnalysis = metrics.start();
+            FirSession session;
+            List<FirFile> firFiles;
+            if (syntaxOnly) {
+                // Diagnostics are not needed to map the syntax of the sources, so the FIR is resolved without running the
+                // checkers, in the session of a module compiled without sources.
+                ModuleCompilerAnalyzedOutput output = compileModuleToAnalyzedFir(
+                        new ModuleCompilerInput(
+                                new TargetId(module.getModuleName(), module.getModuleType()),
+                                CommonPlatforms.INSTANCE.getDefaultCommonPlatform(),
+                                emptySet(),
+                                JvmPlatforms.INSTANCE.getUnspecifiedJvmPlatform(),
+                                emptySet(),
+                                moduleConfiguration,
+                                friendModules
+                        ),
+                        compilerEnvironment,
+                        dependencySymbolProviders,
+                        null,
+                        diagnosticsReporter,
+                        performanceManager
+                );
+                session = output.getSession();
+                List<KtSourceFile> moduleSources = new ArrayList<>(moduleCommonSources);
+                moduleSources.addAll(modulePlatformSources);
+                firFiles = FirUtilsKt.buildFirFromKtFiles(session, ktFiles(project, moduleSources));
+                AnalyseKt.runResolution(session, firFiles);
+                metrics.record(KotlinParseMetrics.Phase.FIR_ANALYSIS, firAnalysis, inputs.size(), lines);
+            } else {
+                ModuleCompilerAnalyzedOutput output = compileModuleToAnalyzedFir(
+                        compilerInput,
+                        compilerEnvironment,
+                        dependencySymbolProviders,
+                        null,
+                        diagnosticsReporter,
+                        performanceManager
+                );
+                session = output.getSession();
+                firFiles = output.getFir();
+                // Lines of disk-backed sources are only counted once they are decoded for the LST mapping.
+                metrics.record(KotlinParseMetrics.Phase.FIR_ANALYSIS, firAnalysis, inputs.size(), lines);
+
+                if (analysisDepth == AnalysisDepth.IR) {
+                    KotlinParseMetrics.Measurement irConversion = metrics.start();
+                    try {
+                        convertAnalyzedFirToIr(compilerInput, output, compilerEnvironment);
+                    } catch (Throwable ignored) {
+                        // Defer the exception until the Source that caused the compilation error is parsed to create a PlainText for the input.
+                    }
+                    metrics.record(KotlinParseMetrics.Phase.IR_CONVERSION, irConversion, inputs.size(), lines);
+                }
+            }
+
+            assert firFiles.size() == inputs.size();
+
+            List<CompiledKotlinSource> cus = new ArrayList<>();
+            for (int j = 0; j < inputs.size(); j++) {
+                Input input = inputs.get(j);
+                FirFile firFile = firFiles.get(j);
+                EncodingDetectingInputStream is = decodedInputs.get(j);
+                int inputIndex = inputIndexes.get(input);
+                cus.add(is == null ?
+                        new CompiledKotlinSource(input, inputIndex, null, null, false, firFile) :
+                        new CompiledKotlinSource(input, inputIndex, sourceTexts.get(j), is.getCharset(), is.isCharsetBomMarked(), firFile));
+            }
+
+            sessionToCus.put(session, cus);
+            moduleSessions.put(module.getModuleName(), session);
+        }
+
+        return sessionToCus;
+    }
+
+    private static List<KtFile> ktFiles(Project project, Collection<KtSourceFile> sources) {
+        PsiManager psiManager = PsiManager.getInstance(project);
+        List<KtFile> ktFiles = new ArrayList<>(sources.size());
+        for (KtSourceFile source : sources) {
+            VirtualFile file = ((KtVirtualFileSourceFile) source).getVirtualFile();
+            ktFiles.add((KtFile) psiManager.findFile(file));
+        }
+        return ktFiles;
+    }
+
+    /**
+     * @return the file of the input in the local file system, or null when the input has to be compiled from memory.
+     * The VFS converts the line separators of the files it loads, which would shift the offsets of the FIR of a file with
+     * carriage returns, so such a file is compiled from its decoded text instead.
+     */
+    @Nullable
+    private static VirtualFile localFile(Input input) {
+        if (input.isSynthetic() || !Files.isRegularFile(input.getPath()) || containsCarriageReturn(input.getPath())) {
+            return null;
+        }
+        return VirtualFileManager.getInstance()
+                .getFileSystem(StandardFileSystems.FILE_PROTOCOL)
+                .findFileByPath(input.getPath().toAbsolutePath().normalize().toString().replace('\\', '/'));
+    }
+
+    private static boolean containsCarriageReturn(Path path) {
+        try (InputStream is = Files.newInputStream(path)) {
+            byte[] buffer = new byte[8192];
+            for (int read; (read = is.read(buffer)) != -1; ) {
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\r') {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } catch (IOException e) {
+            // The input is read through its own source instead.
+            return true;
+        }
+    }
+
+    @Nullable
+    private SourceModule sourceModule(Module module) {
+        for (SourceModule sourceModule : sourceModules) {
+            if (sourceModule.getName().equals(module.getModuleName())) {
+                return sourceModule;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the names of the modules whose sources are visible to the module, including friend modules.
+     */
+    private Set<String> transitiveDependencies(SourceModule sourceModule) {
+        Set<String> dependencies = new LinkedHashSet<>();
+        Deque<SourceModule> toVisit = new ArrayDeque<>();
+        toVisit.add(sourceModule);
+        while (!toVisit.isEmpty()) {
+            SourceModule next = toVisit.poll();
+            for (String dependency : next.dependenciesAndFriends()) {
+                SourceModule dependencyModule = sourceModuleNamed(dependency);
+                if (dependencies.add(dependency)) {
+                    toVisit.add(dependencyModule);
+                }
+            }
+        }
+        return dependencies;
+    }
+
+    private SourceModule sourceModuleNamed(String name) {
+        for (SourceModule sourceModule : sourceModules) {
+            if (sourceModule.getName().equals(name)) {
+                return sourceModule;
+            }
+        }
+        throw new IllegalArgumentException("No module named " + name + " has been added to the parser.");
+    }
+
+    /**
+     * Order the modules so that each module is compiled after the modules it depends on.
+     */
+    private List<Module> inDependencyOrder(List<Module> modules) {
+        if (modules.size() == 1) {
+            return modules;
+        }
+
+        Map<String, Module> byName = new LinkedHashMap<>();
+        for (Module module : modules) {
+            byName.put(module.getModuleName(), module);
+        }
+
+        List<Module> ordered = new ArrayList<>(modules.size());
+        Set<String> visited = new HashSet<>();
+        Set<String> visiting = new LinkedHashSet<>();
+        for (Module module : modules) {
+            visitModule(module.getModuleName(), byName, visiting, visited, ordered);
+        }
+        return ordered;
+    }
+
+    private void visitModule(String name, Map<String, Module> byName, Set<String> visiting, Set<String> visited, List<Module> ordered) {
+        if (visited.contains(name)) {
+            return;
+        }
+        if (!visiting.add(name)) {
+            throw new IllegalStateException("Modules may not depend on each other in a cycle: " + String.join(" -> ", visiting) + " -> " + name);
+        }
+        for (String dependency : sourceModuleNamed(name).dependenciesAndFriends()) {
+            visitModule(dependency, byName, visiting, visited, ordered);
+        }
+        visiting.remove(name);
+        visited.add(name);
+        ordered.add(byName.get(name));
+    }
+
+    /**
+     * Inputs belong to the first module with a source directory that contains them. Any other input belongs to the first module.
+     */
+    private Map<Module, List<Input>> inputsByModule(List<Module> modules, List<Input> inputs) {
+        Map<Module, List<Input>> moduleInputs = new LinkedHashMap<>();
+        for (Module module : modules) {
+            moduleInputs.put(module, new ArrayList<>());
+        }
+
+        nextInput:
+        for (Input input : inputs) {
+            Path path = input.getPath().normalize();
+            for (Module module : modules) {
+                SourceModule sourceModule = sourceModule(module);
+                if (sourceModule != null && sourceModule.contains(path)) {
+                    moduleInputs.get(module).add(input);
+                    continue nextInput;
+                }
+            }
+            moduleInputs.get(sourceModules.isEmpty() ? modules.get(0) : byName(modules, sourceModules.get(0).getName())).add(input);
+        }
+        return moduleInputs;
+    }
+
+    private static Module byName(List<Module> modules, String name) {
+        for (Module module : modules) {
+            if (module.getModuleName().equals(name)) {
+                return module;
+            }
+        }
+        throw new IllegalArgumentException("No module named " + name + " is part of the module chunk.");
+    }
+
+    private KotlinCompilerEnvironment acquireEnvironment() {
+        if (environmentPool == null) {
+            return createCompilerEnvironment(Disposer.newDisposable());
+        }
+        return environmentPool.acquire(environmentKey(), () -> createCompilerEnvironment(Disposer.newDisposable()));
+    }
+
+    /**
+     * An environment is kept while the lazily mapped classes of its batch are unresolved, as they still refer to its FIR.
+     * Only the environments of the last {@link #MAXIMUM_RETAINED_ENVIRONMENTS} such batches are kept, and the classes
+     * of older batches are resolved so that their environments can be released.
+     *
+     * @param lazyClasses the lazily mapped classes of the batch, or null when types are mapped eagerly.
+     * @param reusable    false when the compiler failed while using the environment, in which case it is not returned to the pool.
+     */
+    private void releaseEnvironment(KotlinCompilerEnvironment environment, @Nullable KotlinLazyClasses lazyClasses, boolean reusable) {
+        if (!reusable) {
+            environment.dispose();
+            return;
+        }
+
+        List<RetainedEnvironment> released = new ArrayList<>();
+        synchronized (retainedEnvironments) {
+            RetainedEnvironment retained = new RetainedEnvironment(environment, lazyClasses);
+            if (retained.isInUse()) {
+                retainedEnvironments.addLast(retained);
+            } else {
+                released.add(retained);
+            }
+            for (Iterator<RetainedEnvironment> iter = retainedEnvironments.iterator(); iter.hasNext(); ) {
+                RetainedEnvironment r = iter.next();
+                if (!r.isInUse()) {
+                    iter.remove();
+                    released.add(r);
+                }
+            }
+            while (retainedEnvironments.size() > MAXIMUM_RETAINED_ENVIRONMENTS) {
+                released.add(retainedEnvironments.removeFirst());
+            }
+        }
+
+        for (RetainedEnvironment r : released) {
+            if (r.lazyClasses != null) {
+                r.lazyClasses.resolveAll();
+            }
+            if (environmentPool != null) {
+                environmentPool.release(environmentKey(), r.environment);
+            } else {
+                r.environment.dispose();
+            }
+        }
+    }
+
+    @RequiredArgsConstructor
+    private static class RetainedEnvironment {
+        private final KotlinCompilerEnvironment environment;
+
+        @Nullable
+        private final KotlinLazyClasses lazyClasses;
+
+        boolean isInUse() {
+            return lazyClasses != null && !lazyClasses.isEmpty();
+        }
+    }
+
+    private KotlinEnvironmentPool.Key environmentKey() {
+        return new KotlinEnvironmentPool.Key(
+                classpath == null || syntaxOnly ? null : new ArrayList<>(classpath),
+                moduleName,
+                sourceModules,
+                classpathIndex,
+                LANGUAGE_VERSION.getVersionString(),
+                API_VERSION.getVersionString(),
+                syntaxOnly,
+                logCompilationWarningsAndErrors
         );
+    }
 
-        try {
-            convertAnalyzedFirToIr(compilerInput, output, compilerEnvironment);
-        } catch (Throwable ignored) {
-            // Defer the exception until the Source that caused the compilation error is parsed to create a PlainText for the input.
+    private KotlinCompilerEnvironment createCompilerEnvironment(Disposable disposable) {
+        CompilerConfiguration compilerConfiguration = compilerConfiguration();
+
+        File buildFile = null;
+        List<Module> chunk;
+        if (sourceModules.isEmpty()) {
+            K2JVMCompilerArguments arguments = new K2JVMCompilerArguments();
+            ModuleChunk moduleChunk = configureModuleChunk(compilerConfiguration, arguments, buildFile);
+            chunk = moduleChunk.getModules();
+        } else {
+            chunk = new ArrayList<>(sourceModules.size());
+            for (SourceModule sourceModule : sourceModules) {
+                ModuleBuilder module = new ModuleBuilder(sourceModule.getName(), "", "java-production");
+                for (Path friendPath : sourceModule.getFriendPaths()) {
+                    module.addFriendDir(friendPath.toString());
+                }
+                chunk.add(module);
+            }
+        }
+
+        List<File> classpathRoots = classpathRoots(classpath, syntaxOnly);
+        for (File classpathRoot : classpathRoots) {
+            addJvmClasspathRoot(compilerConfiguration, classpathRoot);
         }
 
-        List<FirFile> firFiles = output.getFir();
-        assert firFiles.size() == inputs.size();
+        configureSourceRoots(compilerConfiguration, chunk, buildFile);
+        configureJdkClasspathRoots(compilerConfiguration);
+
+        KotlinCoreEnvironment environment = KotlinCoreEnvironment.createForProduction(
+                disposable,
+                compilerConfiguration,
+                EnvironmentConfigFiles.JVM_CONFIG_FILES);
 
-        List<CompiledKotlinSource> cus = new ArrayList<>();
-        for (int j = 0; j < inputs.size(); j++) {
-            Input input = inputs.get(j);
-            FirFile firFile = firFiles.get(j);
-            cus.add(new CompiledKotlinSource(input, firFile));
+        Project project = environment.getProject();
+        VirtualFileSystem fileSystem = VirtualFileManager.getInstance().getFileSystem(StandardFileSystems.FILE_PROTOCOL);
+        GlobalSearchScope globalScope = GlobalSearchScope.allScope(project);
+        PackagePartProvider packagePartProvider;
+        if (classpathIndex == null) {
+            packagePartProvider = environment.createPackagePartProvider(globalScope);
+        } else {
+            IndexedPackagePartProvider indexedProvider = new IndexedPackagePartProvider(classpathIndex, classpathIndexFingerprint(classpathRoots),
+                    () -> environment.createPackagePartProvider(globalScope));
+            Disposer.register(disposable, indexedProvider);
+            packagePartProvider = indexedProvider;
         }
+        Function<GlobalSearchScope, PackagePartProvider> packagePartProviderFunction = globalSearchScope -> packagePartProvider;
+        VfsBasedProjectEnvironment projectEnvironment = new VfsBasedProjectEnvironment(
+                project,
+                fileSystem,
+                packagePartProviderFunction::apply);
 
-        sessionToCus.put(output.getSession(), cus);
+        return new KotlinCompilerEnvironment(disposable, compilerConfiguration, environment, projectEnvironment, chunk);
+    }
 
-        return sessionToCus;
+    private synchronized String classpathIndexFingerprint(List<File> classpathRoots) {
+        if (classpathIndexFingerprint == null) {
+            classpathIndexFingerprint = IndexedPackagePartProvider.fingerprint(classpathRoots);
+        }
+        return classpathIndexFingerprint;
+    }
+
+    private static List<File> classpathRoots(@Nullable Collection<Path> classpath, boolean syntaxOnly) {
+        List<File> classpathRoots = new ArrayList<>();
+        if (classpath != null && !syntaxOnly) {
+            for (Path path : classpath) {
+                File file;
+                try {
+                    file = path.toFile();
+                } catch (UnsupportedOperationException ex) {
+                    continue;
+                }
+                classpathRoots.add(file);
+            }
+        }
+        classpathRoots.add(PathUtil.getResourcePathForClass(AnnotationTarget.class));
+        return classpathRoots;
     }
 
     private CompilerConfiguration compilerConfiguration() {
@@ -326,18 +1108,57 @@ public class KotlinParser implements Parser<K.CompilationUnit> {
                 new PrintingMessageCollector(System.err, PLAIN_FULL_PATHS, true) :
                 MessageCollector.Companion.getNONE());
 
-        compilerConfiguration.put(LANGUAGE_VERSION_SETTINGS, new LanguageVersionSettingsImpl(LanguageVersion.KOTLIN_1_7, ApiVersion.KOTLIN_1_7));
+        compilerConfiguration.put(LANGUAGE_VERSION_SETTINGS, new LanguageVersionSettingsImpl(LANGUAGE_VERSION, API_VERSION));
 
         compilerConfiguration.put(USE_FIR, true);
         compilerConfiguration.put(DO_NOT_CLEAR_BINDING_CONTEXT, true);
         compilerConfiguration.put(ALLOW_ANY_SCRIPTS_IN_SOURCE_ROOTS, true);
         compilerConfiguration.put(INCREMENTAL_COMPILATION, true);
 
-        addJvmSdkRoots(compilerConfiguration, PathUtil.getJdkClassesRootsFromCurrentJre());
+        if (syntaxOnly) {
+            compilerConfiguration.put(NO_JDK, true);
+        } else {
+            addJvmSdkRoots(compilerConfiguration, PathUtil.getJdkClassesRootsFromCurrentJre());
+        }
 
         return compilerConfiguration;
     }
 
+    /**
+     * @return the names of the functions, properties and constructors that the compiled sources refer to, which
+     * include the operators and iterators that the compiler calls implicitly, and the accessor methods of the
+     * properties of Java classes.
+     */
+    private static Set<String> referencedMembers(List<CompiledKotlinSource> compiled) {
+        Set<String> names = new HashSet<>();
+        FirVisitorVoid collector = new FirVisitorVoid() {
+            @Override
+            public void visitElement(FirElement element) {
+                if (element instanceof FirResolvedNamedReference) {
+                    FirBasedSymbol<?> symbol = ((FirResolvedNamedReference) element).getResolvedSymbol();
+                    if (symbol instanceof FirCallableSymbol) {
+                        names.add(((FirCallableSymbol<?>) symbol).getCallableId().getCallableName().asString());
+                        Object fir = symbol.getFir();
+                        if (fir instanceof FirSyntheticProperty) {
+                            // A property of a Java class is read and written through its getter and setter.
+                            FirSyntheticProperty property = (FirSyntheticProperty) fir;
+                            names.add(property.getGetter().getDelegate().getName().asString());
+                            FirSyntheticPropertyAccessor setter = property.getSetter();
+                            if (setter != null) {
+                                names.add(setter.getDelegate().getName().asString());
+                            }
+                        }
+                    }
+                }
+                element.acceptChildren(this);
+            }
+        };
+        for (CompiledKotlinSource source : compiled) {
+            source.getFirFile().accept(collector);
+        }
+        return names;
+    }
+
     @Override
     public boolean accept(Path path) {
         return path.toString().endsWith(".kt");
@@ -349,6 +1170,36 @@ public class KotlinParser implements Parser<K.CompilationUnit> {
         return this;
     }
 
+    /**
+     * Release the compiler environments and threads held by this parser. A shared {@link KotlinEnvironmentPool} or
+     * {@link ExecutorService} passed to the builder is left open and must be closed by its owner.
+     * The classpath types mapped by the parser are written to its type table.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        List<RetainedEnvironment> retained;
+        synchronized (retainedEnvironments) {
+            retained = new ArrayList<>(retainedEnvironments);
+            retainedEnvironments.clear();
+        }
+        for (RetainedEnvironment r : retained) {
+            // The class types of the LSTs remain readable after the parser is closed.
+            //noinspection ConstantConditions
+            r.lazyClasses.resolveAll();
+            r.environment.dispose();
+        }
+        if (typeTable != null) {
+            typeTable.write();
+        }
+        if (environmentPool != null && closeEnvironmentPool) {
+            environmentPool.close();
+        }
+        if (mappingExecutor != null && shutdownMappingExecutor) {
+            mappingExecutor.shutdown();
+        }
+    }
+
     @Override
     public Path sourcePathFromSourceText(Path prefix, String sourceCode) {
         return prefix.resolve("openRewriteFile.kt");
@@ -358,6 +1209,65 @@ public class KotlinParser implements Parser<K.CompilationUnit> {
         return new Builder();
     }
 
+    /**
+     * A module of a multi-module chunk. The modules of a chunk share one compiler environment and are compiled in
+     * dependency order, each to its own {@link FirSession}.
+     */
+    @Value
+    public static class SourceModule {
+        String name;
+
+        /**
+         * Inputs with a path in one of these directories are compiled as part of this module.
+         */
+        List<Path> sourceDirectories;
+
+        /**
+         * Modules whose sources this module depends on.
+         */
+        List<String> dependsOn;
+
+        /**
+         * Modules whose internal declarations are visible to this module, like the main module is to a test module.
+         */
+        List<String> friendModules;
+
+        /**
+         * Compiled output of friend modules on the classpath, whose internal declarations are visible to this module.
+         */
+        List<Path> friendPaths;
+
+        boolean contains(Path path) {
+            for (Path sourceDirectory : sourceDirectories) {
+                if (path.startsWith(sourceDirectory.normalize())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        Set<String> dependenciesAndFriends() {
+            Set<String> dependencies = new LinkedHashSet<>(dependsOn);
+            dependencies.addAll(friendModules);
+            return dependencies;
+        }
+    }
+
+    /**
+     * How far the compiler pipeline is run before the compiled sources are mapped to LSTs.
+     */
+    public enum AnalysisDepth {
+        /**
+         * Stop once the FIR is resolved, which is all that is needed to build the LST.
+         */
+        FIR,
+
+        /**
+         * Also convert the resolved FIR to IR, as the compiler would before generating bytecode.
+         */
+        IR
+    }
+
     public static class Builder extends Parser.Builder {
         @Nullable
         private Collection<Path> classpath = JavaParser.runtimeClasspath();
@@ -366,6 +1276,31 @@ public class KotlinParser implements Parser<K.CompilationUnit> {
         private boolean logCompilationWarningsAndErrors;
         private final List<NamedStyles> styles = new ArrayList<>();
         private String moduleName = "main";
+        private final List<SourceModule> sourceModules = new ArrayList<>();
+        private AnalysisDepth analysisDepth = AnalysisDepth.FIR;
+
+        @Nullable
+        private Path classpathIndex;
+
+        private boolean diskBackedSources;
+
+        @Nullable
+        private KotlinEnvironmentPool environmentPool;
+
+        private boolean closeEnvironmentPool;
+
+        @Nullable
+        private ExecutorService mappingExecutor;
+
+        private boolean shutdownMappingExecutor;
+        private boolean deterministicIds;
+        private boolean lazyTypeAttribution;
+        private boolean syntaxOnly;
+
+        @Nullable
+        private Path typeTable;
+
+        private boolean referencedMembersOnly;
 
         public Builder() {
             super(K.CompilationUnit.class);
@@ -386,6 +1321,10 @@ public class KotlinParser implements Parser<K.CompilationUnit> {
             return this;
         }
 
+        /**
+         * @param typeCache the cache of the types that are mapped by the parser. A parser that lives as long as the
+         *                  process can use a {@link KotlinTypeCache} to bound the number of types it holds.
+         */
         public Builder typeCache(JavaTypeCache typeCache) {
             this.typeCache = typeCache;
             return this;
@@ -403,8 +1342,162 @@ public class KotlinParser implements Parser<K.CompilationUnit> {
             return this;
         }
 
+        /**
+         * Parse the inputs as a chunk of modules rather than as the single module named by {@link #moduleName(String)}.
+         * Inputs that are not in the source directories of any module are compiled as part of the first module added.
+         */
+        public Builder addModule(SourceModule module) {
+            this.sourceModules.add(module);
+            return this;
+        }
+
+        public Builder analysisDepth(AnalysisDepth analysisDepth) {
+            this.analysisDepth = analysisDepth;
+            return this;
+        }
+
+        /**
+         * Keep an index of the Kotlin package metadata found on the classpath in the given directory, so that later
+         * parsers, including those in other JVMs, skip scanning the jars of an unchanged classpath.
+         */
+        public Builder classpathIndex(Path directory) {
+            this.classpathIndex = directory;
+            return this;
+        }
+
+        /**
+         * Let the compiler load inputs that exist on disk through its local file system, which loads file contents
+         * lazily, rather than decoding every input onto the heap before analysis starts. Each input is then decoded
+         * again only when it is mapped to an LST.
+         * <p>
+         * The compiler normalizes line separators of files it loads from disk, so inputs that contain carriage returns
+         * are still decoded onto the heap and compiled from memory.
+         */
+        public Builder diskBackedSources(boolean diskBackedSources) {
+            this.diskBackedSources = diskBackedSources;
+            return this;
+        }
+
+        /**
+         * Keep compiler environments warm between calls to {@link KotlinParser#parseInputs} rather than creating and
+         * disposing of a new environment for each call. The environments are released by {@link KotlinParser#close()}.
+         *
+         * @param maximumIdle the maximum number of idle environments to keep, evicted in least recently used order.
+         * @param idleTimeout how long an environment may stay idle before it is disposed of.
+         */
+        public Builder pooledEnvironments(int maximumIdle, Duration idleTimeout) {
+            this.environmentPool = new KotlinEnvironmentPool(maximumIdle, idleTimeout);
+            this.closeEnvironmentPool = true;
+            return this;
+        }
+
+        /**
+         * Share a pool of warm compiler environments between parsers. The pool is not closed by {@link KotlinParser#close()}.
+         */
+        public Builder environmentPool(KotlinEnvironmentPool environmentPool) {
+            this.environmentPool = environmentPool;
+            this.closeEnvironmentPool = false;
+            return this;
+        }
+
+        /**
+         * Map compiled sources to LSTs on a {@link ForkJoinPool} with the given parallelism. The pool is shut down
+         * by {@link KotlinParser#close()}.
+         */
+        public Builder mappingParallelism(int parallelism) {
+            this.mappingExecutor = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+            this.shutdownMappingExecutor = true;
+            return this;
+        }
+
+        /**
+         * Map compiled sources to LSTs on an executor owned by the caller.
+         */
+        public Builder mappingExecutor(ExecutorService mappingExecutor) {
+            this.mappingExecutor = mappingExecutor;
+            this.shutdownMappingExecutor = false;
+            return this;
+        }
+
+        /**
+         * Number the nodes of each file from a hash of its path and source, instead of giving them random ids.
+         * Identical inputs are then parsed to identical LSTs, and creating ids is cheaper. Ids are only unique
+         * across files with different paths or sources.
+         */
+        public Builder deterministicIds(boolean deterministicIds) {
+            this.deterministicIds = deterministicIds;
+            return this;
+        }
+
+        /**
+         * Map the supertypes, annotations, fields and methods of class types when they are first read, rather than
+         * when the class is first referenced, for recipes that rarely look at types. The names, kinds and flags of
+         * classes, and the types of methods and variables, are still mapped while the LST is built.
+         * <p>
+         * Class types keep the FIR of their class until they are resolved, so the compiler environment of a batch is
+         * only disposed or returned to its pool once all of its class types are resolved. The environments of the last
+         * two such batches are kept open; the remaining class types of older batches, and of every batch when the parser
+         * is closed, are resolved then. A class type whose members cannot be mapped reports the failure to the
+         * {@link ExecutionContext} of its batch and throws when it is read.
+         */
+        public Builder lazyTypeAttribution(boolean lazyTypeAttribution) {
+            this.lazyTypeAttribution = lazyTypeAttribution;
+            return this;
+        }
+
+        /**
+         * Parse for the syntax of the sources alone, for formatting and other recipes that do not read types. The
+         * compiler environment is created without the classpath and the JDK, and every type except primitives is
+         * {@link org.openrewrite.java.tree.JavaType.Unknown}. Calls to declarations outside of the sources and the
+         * Kotlin standard library are mapped from their unresolved references. The FIR is resolved without running the
+         * compiler's checkers, so no diagnostics are reported, and the {@link AnalysisDepth} is ignored.
+         */
+        public Builder syntaxOnly(boolean syntaxOnly) {
+            this.syntaxOnly = syntaxOnly;
+            return this;
+        }
+
+        /**
+         * Keep the types of the classpath that parsers map in the given directory, so that later parsers, including
+         * those in other JVMs, start with them in their type cache rather than mapping the Kotlin standard library and
+         * the dependencies of an unchanged classpath again. The types are written when the parser is {@link KotlinParser#close() closed}.
+         * A table is only read with the same classpath, JDK and versions of rewrite and the Kotlin compiler that wrote it.
+         */
+        public Builder typeTable(Path directory) {
+            this.typeTable = directory;
+            return this;
+        }
+
+        /**
+         * Only include the fields and methods that the sources of a batch refer to in the types of classes from the
+         * classpath, rather than every member of every class they reference, for recipes that only look at the types
+         * of the declarations that are used. Classes declared in the sources keep all of their members.
+         * <p>
+         * A classpath class is cached with the members referred to by the batch in which it was first mapped, and the
+         * members that later batches, or parsers sharing the type cache, refer to are added to it as they are mapped.
+         * Such classes are not written to the {@link #typeTable(Path) type table} unless a parser that maps every member
+         * completes them. Classpath classes are not mapped lazily in this mode.
+         */
+        public Builder referencedMembersOnly(boolean referencedMembersOnly) {
+            this.referencedMembersOnly = referencedMembersOnly;
+            return this;
+        }
+
         public KotlinParser build() {
-            return new KotlinParser(classpath, styles, logCompilationWarningsAndErrors, typeCache, moduleName);
+            KotlinTypeTable table = null;
+            List<File> libraryRoots = typeTable == null || syntaxOnly ? null : KotlinTypeTable.libraryRoots();
+            if (libraryRoots != null) {
+                List<File> roots = classpathRoots(classpath, false);
+                roots.addAll(PathUtil.getJdkClassesRootsFromCurrentJre());
+                roots.addAll(libraryRoots);
+                //noinspection ConstantConditions
+                table = KotlinTypeTable.load(typeTable, IndexedPackagePartProvider.fingerprint(roots));
+                table.warm(typeCache);
+            }
+            return new KotlinParser(classpath, styles, logCompilationWarningsAndErrors, typeCache, moduleName,
+                    new ArrayList<>(sourceModules), analysisDepth, classpathIndex, diskBackedSources,
+                    environmentPool, closeEnvironmentPool, mappingExecutor, shutdownMappingExecutor, deterministicIds,
+                    lazyTypeAttribution, syntaxOnly, table, referencedMembersOnly);
         }
 
         @Override
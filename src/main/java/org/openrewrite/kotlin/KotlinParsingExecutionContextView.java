@@ -0,0 +1,55 @@
+/*
+ * Copyright 2023 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openrewrite.kotlin;
+
+import org.openrewrite.DelegatingExecutionContext;
+import org.openrewrite.ExecutionContext;
+
+public class KotlinParsingExecutionContextView extends DelegatingExecutionContext {
+    private static final String PARSE_METRICS = "org.openrewrite.kotlin.parseMetrics";
+    private static final String COLLECT_PARSE_METRICS = "org.openrewrite.kotlin.collectParseMetrics";
+
+    public KotlinParsingExecutionContextView(ExecutionContext delegate) {
+        super(delegate);
+    }
+
+    public static KotlinParsingExecutionContextView view(ExecutionContext ctx) {
+        if (ctx instanceof KotlinParsingExecutionContextView) {
+            return (KotlinParsingExecutionContextView) ctx;
+        }
+        return new KotlinParsingExecutionContextView(ctx);
+    }
+
+    /**
+     * Measure the time and allocations of each phase of the parses that use this context, and record each batch in
+     * the {@link org.openrewrite.kotlin.table.KotlinParseBatches} table. Off by default.
+     */
+    public KotlinParsingExecutionContextView setCollectParseMetrics(boolean collectParseMetrics) {
+        putMessage(COLLECT_PARSE_METRICS, collectParseMetrics);
+        return this;
+    }
+
+    public boolean isCollectParseMetrics() {
+        return getMessage(COLLECT_PARSE_METRICS, false);
+    }
+
+    /**
+     * @return the metrics of every batch of Kotlin sources parsed with this context so far.
+     */
+    public KotlinParseMetrics getParseMetrics() {
+        return computeMessageIfAbsent(PARSE_METRICS, key -> new KotlinParseMetrics());
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2023 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openrewrite.kotlin;
+
+import org.openrewrite.Incubating;
+import org.openrewrite.internal.lang.Nullable;
+import org.openrewrite.java.internal.JavaTypeCache;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link JavaTypeCache} that holds at most {@code maximumSize} types strongly, for parsers that live as long as the
+ * process that uses them.
+ * <p>
+ * The least recently used types are evicted once the cache is full. An evicted type is still reachable from the trees
+ * that were built with it, so it is only weakly referenced rather than dropped: a type that is still referenced by a
+ * tree is returned again, and moved back into the cache, the next time it is looked up. The identity of the types in
+ * trees that have already been built is preserved, and only types that no tree refers to are mapped again.
+ * <p>
+ * The cache is bounded by the number of types rather than by their size in memory.
+ */
+@Incubating(since = "0.0")
+public class KotlinTypeCache extends JavaTypeCache {
+    private final int maximumSize;
+
+    /**
+     * Access ordered, so the first entry is the least recently used one.
+     */
+    private final LinkedHashMap<String, Object> types;
+
+    private final Map<String, EvictedType> evicted = new HashMap<>();
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long resurrections;
+
+    public KotlinTypeCache(int maximumSize) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("The cache must be able to hold at least one type, but maximumSize was " + maximumSize);
+        }
+        this.maximumSize = maximumSize;
+        this.types = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    @Nullable
+    public synchronized <T> T get(String signature) {
+        Object type = types.get(signature);
+        if (type == null) {
+            EvictedType evictedType = evicted.remove(signature);
+            type = evictedType == null ? null : evictedType.get();
+            if (type == null) {
+                misses++;
+                return null;
+            }
+            resurrections++;
+            types.put(signature, type);
+            evictLeastRecentlyUsed();
+        }
+        hits++;
+        return (T) type;
+    }
+
+    @Override
+    public synchronized void put(String signature, Object o) {
+        evicted.remove(signature);
+        types.put(signature, o);
+        evictLeastRecentlyUsed();
+    }
+
+    private void evictLeastRecentlyUsed() {
+        expungeCollected();
+        Iterator<Map.Entry<String, Object>> leastRecentlyUsed = types.entrySet().iterator();
+        while (types.size() > maximumSize) {
+            Map.Entry<String, Object> entry = leastRecentlyUsed.next();
+            evicted.put(entry.getKey(), new EvictedType(entry.getKey(), entry.getValue(), collected));
+            leastRecentlyUsed.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Drop the evicted types that are no longer referenced by any tree.
+     */
+    private void expungeCollected() {
+        EvictedType evictedType;
+        while ((evictedType = (EvictedType) collected.poll()) != null) {
+            // The signature may have been evicted again since, with a type that has not been collected.
+            evicted.remove(evictedType.signature, evictedType);
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        types.clear();
+        evicted.clear();
+        while (collected.poll() != null) {
+            // The references of a cleared cache are no longer tracked.
+        }
+    }
+
+    /**
+     * @return the number of types that the cache holds strongly, which is at most the maximum size.
+     */
+    @Override
+    public synchronized int size() {
+        return types.size();
+    }
+
+    /**
+     * @return the number of types that were evicted, and which are still reachable from trees that have been built.
+     */
+    public synchronized int evictedSize() {
+        expungeCollected();
+        return evicted.size();
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * @return the number of lookups that found a type, including those that found an evicted type.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the number of lookups that found an evicted type that was still referenced, and moved it back into the cache.
+     */
+    public synchronized long getResurrections() {
+        return resurrections;
+    }
+
+    /**
+     * @return a cache with the same maximum size that holds the same types strongly. Evicted types are not copied.
+     */
+    @Override
+    public synchronized KotlinTypeCache clone() {
+        KotlinTypeCache clone = new KotlinTypeCache(maximumSize);
+        clone.types.putAll(types);
+        return clone;
+    }
+
+    private static class EvictedType extends WeakReference<Object> {
+        private final String signature;
+
+        EvictedType(String signature, Object type, ReferenceQueue<Object> queue) {
+            super(type, queue);
+            this.signature = signature;
+        }
+    }
+}
@@ -15,6 +15,16 @@
  */
 package org.openrewrite.kotlin;
 
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.type.WritableTypeId;
+import com.fasterxml.jackson.databind.BeanProperty;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.jsontype.TypeIdResolver;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import lombok.Value;
 import org.jetbrains.kotlin.KtFakeSourceElementKind;
 import org.jetbrains.kotlin.descriptors.ClassKind;
 import org.jetbrains.kotlin.descriptors.Modality;
@@ -28,7 +38,6 @@ import org.jetbrains.kotlin.fir.java.declarations.FirJavaMethod;
 import org.jetbrains.kotlin.fir.java.declarations.FirJavaValueParameter;
 import org.jetbrains.kotlin.fir.references.FirResolvedNamedReference;
 import org.jetbrains.kotlin.fir.resolve.LookupTagUtilsKt;
-import org.jetbrains.kotlin.fir.resolve.providers.FirSymbolProviderKt;
 import org.jetbrains.kotlin.fir.symbols.FirBasedSymbol;
 import org.jetbrains.kotlin.fir.symbols.impl.*;
 import org.jetbrains.kotlin.fir.types.*;
@@ -45,11 +54,13 @@ import org.openrewrite.java.internal.JavaTypeCache;
 import org.openrewrite.java.tree.JavaType;
 import org.openrewrite.java.tree.TypeUtils;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import static org.openrewrite.java.tree.JavaType.GenericTypeVariable.Variance.*;
-import static org.openrewrite.kotlin.KotlinTypeSignatureBuilder.convertClassIdToFqn;
 import static org.openrewrite.kotlin.KotlinTypeSignatureBuilder.convertKotlinFqToJavaFq;
 
 @Incubating(since = "0.0")
@@ -57,14 +68,80 @@ public class KotlinTypeMapping implements JavaTypeMapping<Object> {
     private final KotlinTypeSignatureBuilder signatureBuilder;
     private final JavaTypeCache typeCache;
     private final FirSession firSession;
+    private final FirSymbolCache symbols;
     private final JavaReflectionTypeMapping reflectionTypeMapping;
 
+    @Nullable
+    private final KotlinParseMetrics metrics;
+
+    /**
+     * The classes of the batch whose bodies are mapped when their members are first read, rather than when the classes
+     * are first referenced, or null to map classes eagerly.
+     */
+    @Nullable
+    private final KotlinLazyClasses lazyClasses;
+
+    /**
+     * Map every type to {@link JavaType.Unknown}, except for primitives, when sources are parsed without a classpath.
+     */
+    private final boolean syntaxOnly;
 
-    public KotlinTypeMapping(JavaTypeCache typeCache, FirSession firSession) {
-        this.signatureBuilder = new KotlinTypeSignatureBuilder(firSession);
+    /**
+     * Records the classpath types that are mapped, to persist them for the parsers of later JVMs.
+     */
+    @Nullable
+    private final KotlinTypeTable typeTable;
+
+    /**
+     * The names of the functions, properties and constructors that the parsed sources refer to. When present, classes
+     * that are not declared in the sources only include the members with one of these names.
+     */
+    @Nullable
+    private final Set<String> referencedMembers;
+
+    /**
+     * Guards the type cache, which the type mappings of other sources may use concurrently.
+     */
+    private final TypeCacheLock cacheLock;
+
+    /**
+     * The types used by this type mapping that other threads had not completed yet.
+     */
+    private final List<JavaType> awaited = new ArrayList<>();
+
+    /**
+     * The members to add to classpath classes that other threads were adding members to.
+     */
+    private final List<PendingMembers> pendingMembers = new ArrayList<>();
+
+    /**
+     * The number of public entry points on the stack, so that only the outermost call is measured.
+     */
+    private int depth;
+
+    /**
+     * @param signatureBuilder  the signature builder of the session, with its class symbols. The builder may be reused by
+     *                          the type mapping of another source of the session once this one is done, but not concurrently.
+     * @param lazyClasses       the lazily mapped classes of the parser's batch, or null to map the bodies of class types eagerly.
+     * @param syntaxOnly        true when the FIR is not resolved, in which case every type is unknown.
+     * @param typeTable         the type table that the classpath types mapped by the parser are recorded in, if any.
+     * @param referencedMembers the signatures of the members of classpath classes that are referred to by the batch, or
+     *                          null to map every member of classpath classes.
+     */
+    public KotlinTypeMapping(JavaTypeCache typeCache, KotlinTypeSignatureBuilder signatureBuilder, @Nullable KotlinParseMetrics metrics,
+                             @Nullable KotlinLazyClasses lazyClasses, boolean syntaxOnly, @Nullable KotlinTypeTable typeTable,
+                             @Nullable Set<String> referencedMembers) {
+        this.signatureBuilder = signatureBuilder;
         this.typeCache = typeCache;
-        this.firSession = firSession;
+        this.firSession = signatureBuilder.getSymbols().getFirSession();
+        this.symbols = signatureBuilder.getSymbols();
         this.reflectionTypeMapping = new JavaReflectionTypeMapping(typeCache);
+        this.cacheLock = TypeCacheLock.of(typeCache);
+        this.metrics = metrics;
+        this.lazyClasses = lazyClasses;
+        this.syntaxOnly = syntaxOnly;
+        this.typeTable = typeTable;
+        this.referencedMembers = referencedMembers;
     }
 
     @SuppressWarnings("ConstantConditions")
@@ -72,14 +149,71 @@ public class KotlinTypeMapping implements JavaTypeMapping<Object> {
         return type(type, null);
     }
 
+    /*
+     * Sources may be mapped concurrently, each with its own type mapping. Only the reads and writes of the shared type
+     * cache are guarded, and the symbol lookups of the FirSession are guarded by its symbol cache.
+     */
     @SuppressWarnings("ConstantConditions")
     public JavaType type(@Nullable Object type, @Nullable FirBasedSymbol<?> ownerFallBack) {
+        if (syntaxOnly) {
+            return JavaType.Unknown.getInstance();
+        }
+        KotlinParseMetrics.Measurement measurement = startMeasurement();
+        try {
+            return mapType(type, ownerFallBack);
+        } finally {
+            stopMeasurement(measurement);
+        }
+    }
+
+    /**
+     * Wait for the types that this type mapping used while other threads were still mapping them, so that the types
+     * of the source are complete. Called once the source is mapped.
+     */
+    public void awaitIncompleteTypes() {
+        while (!awaited.isEmpty()) {
+            List<JavaType> types = new ArrayList<>(awaited);
+            awaited.clear();
+            try {
+                cacheLock.await(types);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the types mapped by other sources.", e);
+            }
+
+            List<PendingMembers> pending = new ArrayList<>(pendingMembers);
+            pendingMembers.clear();
+            for (PendingMembers members : pending) {
+                addMembers(members.getClazz(), members.getFirClass(), members.getOwnerFallBack());
+            }
+        }
+    }
+
+    @Nullable
+    private KotlinParseMetrics.Measurement startMeasurement() {
+        if (metrics == null || depth++ > 0) {
+            return null;
+        }
+        return metrics.start();
+    }
+
+    private void stopMeasurement(@Nullable KotlinParseMetrics.Measurement measurement) {
+        if (metrics == null) {
+            return;
+        }
+        depth--;
+        if (measurement != null) {
+            metrics.record(KotlinParseMetrics.Phase.TYPE_MAPPING, measurement, 0, 0);
+        }
+    }
+
+    private JavaType mapType(@Nullable Object type, @Nullable FirBasedSymbol<?> ownerFallBack) {
         if (type == null || type instanceof FirUserTypeRef) {
             return JavaType.Class.Unknown.getInstance();
         }
 
         String signature = signatureBuilder.signature(type, ownerFallBack);
-        JavaType existing = typeCache.get(signature);
+        JavaType existing = cached(signature);
         if (existing != null) {
             return existing;
         }
@@ -89,8 +223,8 @@ public class KotlinTypeMapping implements JavaTypeMapping<Object> {
             // The owner type may be constructed through a String and is represented with a ShallowClass.
             // type(..) handles the string value to reuse the same shallow class.
             JavaType javaType = JavaType.ShallowClass.build((String) type);
-            typeCache.put(signature, javaType);
-            return javaType;
+            JavaType raced = cache(signature, javaType);
+            return raced == null ? javaType : raced;
         } else if (type instanceof FirClass) {
             return classType(type, signature, ownerFallBack);
         } else if (type instanceof FirFunction) {
@@ -155,9 +289,9 @@ public class KotlinTypeMapping implements JavaTypeMapping<Object> {
         if (classType instanceof FirResolvedTypeRef) {
             // The resolvedTypeRef is used to create parameterized types.
             resolvedTypeRef = (FirResolvedTypeRef) classType;
-            FirRegularClassSymbol symbol = TypeUtilsKt.toRegularClassSymbol(resolvedTypeRef.getType(), firSession);
+            FirRegularClassSymbol symbol = symbols.toRegularClassSymbol(resolvedTypeRef.getType());
             if (symbol == null) {
-                typeCache.put(signature, JavaType.Unknown.getInstance());
+                cache(signature, JavaType.Unknown.getInstance());
                 return JavaType.Unknown.getInstance();
             }
             firClass = symbol.getFir();
@@ -166,153 +300,263 @@ public class KotlinTypeMapping implements JavaTypeMapping<Object> {
         }
         FirClassSymbol<? extends FirClass> sym = firClass.getSymbol();
 
-        String classFqn = convertClassIdToFqn(sym.getClassId());
+        String classFqn = symbols.fqn(sym.getClassId());
 
-        JavaType.FullyQualified fq = typeCache.get(classFqn);
+        JavaType.FullyQualified fq = cached(classFqn);
         if (fq instanceof JavaType.Unknown) {
             return fq;
         }
 
         JavaType.Class clazz = (JavaType.Class) (fq instanceof JavaType.Parameterized ? ((JavaType.Parameterized) fq).getType() : fq);
-        if (clazz == null) {
-            clazz = new JavaType.Class(
-                    null,
-                    convertToFlagsBitMap(firClass.getStatus()),
-                    classFqn,
-                    convertToClassKind(firClass.getClassKind()),
-                    null, null, null, null, null, null, null
-            );
-            typeCache.put(classFqn, clazz);
-
-            FirTypeRef superTypeRef = null;
-            List<FirTypeRef> interfaceTypeRefs = null;
-            for (FirTypeRef typeRef : firClass.getSuperTypeRefs()) {
-                FirRegularClassSymbol symbol = TypeUtilsKt.toRegularClassSymbol(FirTypeUtilsKt.getConeType(typeRef), firSession);
-                if (symbol != null && ClassKind.CLASS == symbol.getFir().getClassKind()) {
-                    superTypeRef = typeRef;
-                } else if (symbol != null && ClassKind.INTERFACE == symbol.getFir().getClassKind()) {
-                    if (interfaceTypeRefs == null) {
-                        interfaceTypeRefs = new ArrayList<>();
-                    }
-                    interfaceTypeRefs.add(typeRef);
-                }
+        if (clazz instanceof PartialClass) {
+            addMembers((PartialClass) clazz, firClass, ownerFallBack);
+        } else if (clazz == null) {
+            boolean classpathClass = firClass.getOrigin() != FirDeclarationOrigin.Source.INSTANCE;
+            // The members of classpath classes are incomplete when only referenced members are mapped, so they are not persisted.
+            if (typeTable != null && referencedMembers == null && classpathClass) {
+                typeTable.classpathClass(classFqn);
             }
+            // A class that another thread cached first is used instead, through the cache.
+            if (referencedMembers != null && classpathClass) {
+                PartialClass partialClass = new PartialClass(convertToFlagsBitMap(firClass.getStatus()), classFqn,
+                        convertToClassKind(firClass.getClassKind()), referencedMembers);
+                if (cacheIncomplete(classFqn, partialClass) != null) {
+                    return classType(classType, signature, ownerFallBack);
+                }
 
-            JavaType.FullyQualified supertype = superTypeRef == null ? null : TypeUtils.asFullyQualified(type(superTypeRef));
+                try {
+                    mapClassBody(partialClass, firClass, ownerFallBack);
+                } finally {
+                    cacheLock.completed(partialClass);
+                }
+                clazz = partialClass;
+            } else if (lazyClasses != null) {
+                LazyClass lazyClass = new LazyClass(lazyClasses, convertToFlagsBitMap(firClass.getStatus()), classFqn,
+                        convertToClassKind(firClass.getClassKind()));
+                // The body is mapped with a type mapping of its own, as the class may be read on any thread.
+                FirClass lazyFirClass = firClass;
+                lazyClass.resolveWith(() -> {
+                    KotlinTypeMapping resolution = new KotlinTypeMapping(typeCache, new KotlinTypeSignatureBuilder(symbols),
+                            null, lazyClasses, false, typeTable, referencedMembers);
+                    resolution.mapClassBody(lazyClass, lazyFirClass, ownerFallBack);
+                    resolution.awaitIncompleteTypes();
+                });
+                if (cache(classFqn, lazyClass) != null) {
+                    lazyClasses.resolved(lazyClass);
+                    return classType(classType, signature, ownerFallBack);
+                }
+                clazz = lazyClass;
+            } else {
+                clazz = new JavaType.Class(
+                        null,
+                        convertToFlagsBitMap(firClass.getStatus()),
+                        classFqn,
+                        convertToClassKind(firClass.getClassKind()),
+                        null, null, null, null, null, null, null
+                );
+                if (cacheIncomplete(classFqn, clazz) != null) {
+                    return classType(classType, signature, ownerFallBack);
+                }
 
-            JavaType.FullyQualified owner = null;
-            if (firClass.getSymbol().getClassId().getOuterClassId() != null) {
-                FirClassLikeSymbol<?> ownerSymbol = FirSymbolProviderKt.getSymbolProvider(firSession)
-                        .getClassLikeSymbolByClassId(firClass.getSymbol().getClassId().getOuterClassId());
-                if (ownerSymbol != null) {
-                    owner = TypeUtils.asFullyQualified(type(ownerSymbol.getFir()));
+                try {
+                    mapClassBody(clazz, firClass, ownerFallBack);
+                } finally {
+                    cacheLock.completed(clazz);
                 }
             }
+        }
 
-            List<FirProperty> properties = new ArrayList<>(firClass.getDeclarations().size());
-            List<FirJavaField> javaFields = new ArrayList<>(firClass.getDeclarations().size());
-            List<FirFunction> functions = new ArrayList<>(firClass.getDeclarations().size());
-            List<FirEnumEntry> enumEntries = new ArrayList<>(firClass.getDeclarations().size());
+        if (!firClass.getTypeParameters().isEmpty()) {
+            JavaType.Parameterized pt = cached(signature);
+            if (pt == null) {
+                pt = new JavaType.Parameterized(null, null, null);
+                JavaType.Parameterized raced = cacheIncomplete(signature, pt);
+                if (raced != null) {
+                    return raced;
+                }
 
-            for (FirDeclaration declaration : firClass.getDeclarations()) {
-                if (declaration instanceof FirProperty) {
-                    if (declaration.getSource() == null || !(declaration.getSource().getKind() instanceof KtFakeSourceElementKind)) {
-                        properties.add((FirProperty) declaration);
+                try {
+                    List<JavaType> typeParameters = new ArrayList<>(firClass.getTypeParameters().size());
+                    if (resolvedTypeRef != null && resolvedTypeRef.getType().getTypeArguments().length > 0) {
+                        for (ConeTypeProjection typeArgument : resolvedTypeRef.getType().getTypeArguments()) {
+                            typeParameters.add(type(typeArgument));
+                        }
+                    } else {
+                        for (FirTypeParameterRef tParam : firClass.getTypeParameters()) {
+                            typeParameters.add(type(tParam));
+                        }
                     }
-                } else if (declaration instanceof FirJavaField) {
-                    javaFields.add((FirJavaField) declaration);
-                } else if (declaration instanceof FirSimpleFunction) {
-                    functions.add((FirFunction) declaration);
-                } else if (declaration instanceof FirConstructor) {
-                    functions.add((FirFunction) declaration);
-                } else if (declaration instanceof FirRegularClass) {
-                    // Skipped since inner classes don't exist on the JavaType$Class.
-                } else if (declaration instanceof FirEnumEntry) {
-                    enumEntries.add((FirEnumEntry) declaration);
+                    pt.unsafeSet(clazz, typeParameters);
+                } finally {
+                    cacheLock.completed(pt);
                 }
             }
+            return pt;
+        }
+
+        return clazz;
+    }
 
-            List<JavaType.Variable> fields = null;
-            if (!enumEntries.isEmpty()) {
-                fields = new ArrayList<>(properties.size() + enumEntries.size());
-                for (FirEnumEntry enumEntry : enumEntries) {
-                    fields.add(variableType(enumEntry.getSymbol(), clazz, ownerFallBack));
+    /**
+     * Map the supertypes, owner, annotations, fields and methods of a class.
+     */
+    private void mapClassBody(JavaType.Class clazz, FirClass firClass, @Nullable FirBasedSymbol<?> ownerFallBack) {
+        FirTypeRef superTypeRef = null;
+        List<FirTypeRef> interfaceTypeRefs = null;
+        for (FirTypeRef typeRef : firClass.getSuperTypeRefs()) {
+            FirRegularClassSymbol symbol = symbols.toRegularClassSymbol(FirTypeUtilsKt.getConeType(typeRef));
+            if (symbol != null && ClassKind.CLASS == symbol.getFir().getClassKind()) {
+                superTypeRef = typeRef;
+            } else if (symbol != null && ClassKind.INTERFACE == symbol.getFir().getClassKind()) {
+                if (interfaceTypeRefs == null) {
+                    interfaceTypeRefs = new ArrayList<>();
                 }
+                interfaceTypeRefs.add(typeRef);
             }
+        }
 
-            if (!properties.isEmpty()) {
-                if (fields == null) {
-                    fields = new ArrayList<>(properties.size());
-                }
+        JavaType.FullyQualified supertype = superTypeRef == null ? null : TypeUtils.asFullyQualified(type(superTypeRef));
 
-                for (FirProperty property : properties) {
-                    fields.add(variableType(property.getSymbol(), clazz, ownerFallBack));
-                }
+        JavaType.FullyQualified owner = null;
+        if (firClass.getSymbol().getClassId().getOuterClassId() != null) {
+            FirClassLikeSymbol<?> ownerSymbol = symbols.getClassLikeSymbolByClassId(firClass.getSymbol().getClassId().getOuterClassId());
+            if (ownerSymbol != null) {
+                owner = TypeUtils.asFullyQualified(type(ownerSymbol.getFir()));
             }
+        }
 
-            if (!javaFields.isEmpty()) {
-                if (fields == null) {
-                    fields = new ArrayList<>(javaFields.size());
-                }
-
-                for (FirJavaField field : javaFields) {
-                    fields.add(variableType(field.getSymbol(), clazz, ownerFallBack));
+        List<JavaType.Variable> fields = new ArrayList<>();
+        List<JavaType.Method> methods = new ArrayList<>();
+        mapMembers(clazz, firClass, ownerFallBack, null, fields, methods);
+
+        List<JavaType.FullyQualified> interfaces = null;
+        if (interfaceTypeRefs != null && !interfaceTypeRefs.isEmpty()) {
+            interfaces = new ArrayList<>(interfaceTypeRefs.size());
+            for (FirTypeRef iParam : interfaceTypeRefs) {
+                JavaType.FullyQualified javaType = TypeUtils.asFullyQualified(type(iParam));
+                if (javaType != null) {
+                    interfaces.add(javaType);
                 }
             }
+        }
 
-            List<JavaType.Method> methods = null;
-            if (!functions.isEmpty()) {
-                methods = new ArrayList<>(functions.size());
-                for (FirFunction function : functions) {
-                    methods.add(methodDeclarationType(function, clazz, ownerFallBack));
+        List<JavaType.FullyQualified> annotations = listAnnotations(firClass.getAnnotations());
+        clazz.unsafeSet(null, supertype, owner, annotations, interfaces, fields, methods);
+    }
+
+    /**
+     * Map the fields and methods of a class that its type includes.
+     *
+     * @param mappedMembers the names of the members that the type already includes, which are skipped.
+     */
+    private void mapMembers(JavaType.Class clazz, FirClass firClass, @Nullable FirBasedSymbol<?> ownerFallBack,
+                            @Nullable Set<String> mappedMembers, List<JavaType.Variable> fields, List<JavaType.Method> methods) {
+        boolean allMembers = referencedMembers == null || firClass.getOrigin() == FirDeclarationOrigin.Source.INSTANCE;
+        List<FirProperty> properties = new ArrayList<>(firClass.getDeclarations().size());
+        List<FirJavaField> javaFields = new ArrayList<>(firClass.getDeclarations().size());
+        List<FirFunction> functions = new ArrayList<>(firClass.getDeclarations().size());
+        List<FirEnumEntry> enumEntries = new ArrayList<>(firClass.getDeclarations().size());
+
+        for (FirDeclaration declaration : firClass.getDeclarations()) {
+            if (declaration instanceof FirCallableDeclaration) {
+                String name = memberName((FirCallableDeclaration) declaration);
+                //noinspection ConstantConditions
+                if (!allMembers && !referencedMembers.contains(name) || mappedMembers != null && mappedMembers.contains(name)) {
+                    continue;
                 }
             }
-
-            List<JavaType.FullyQualified> interfaces = null;
-            if (interfaceTypeRefs != null && !interfaceTypeRefs.isEmpty()) {
-                interfaces = new ArrayList<>(interfaceTypeRefs.size());
-                for (FirTypeRef iParam : interfaceTypeRefs) {
-                    JavaType.FullyQualified javaType = TypeUtils.asFullyQualified(type(iParam));
-                    if (javaType != null) {
-                        interfaces.add(javaType);
-                    }
+            if (declaration instanceof FirProperty) {
+                if (declaration.getSource() == null || !(declaration.getSource().getKind() instanceof KtFakeSourceElementKind)) {
+                    properties.add((FirProperty) declaration);
                 }
+            } else if (declaration instanceof FirJavaField) {
+                javaFields.add((FirJavaField) declaration);
+            } else if (declaration instanceof FirSimpleFunction) {
+                functions.add((FirFunction) declaration);
+            } else if (declaration instanceof FirConstructor) {
+                functions.add((FirFunction) declaration);
+            } else if (declaration instanceof FirRegularClass) {
+                // Skipped since inner classes don't exist on the JavaType$Class.
+            } else if (declaration instanceof FirEnumEntry) {
+                enumEntries.add((FirEnumEntry) declaration);
             }
+        }
 
-            List<JavaType.FullyQualified> annotations = listAnnotations(firClass.getAnnotations());
-            clazz.unsafeSet(null, supertype, owner, annotations, interfaces, fields, methods);
+        for (FirEnumEntry enumEntry : enumEntries) {
+            fields.add(variableType(enumEntry.getSymbol(), clazz, ownerFallBack));
+        }
+        for (FirProperty property : properties) {
+            fields.add(variableType(property.getSymbol(), clazz, ownerFallBack));
+        }
+        for (FirJavaField field : javaFields) {
+            fields.add(variableType(field.getSymbol(), clazz, ownerFallBack));
+        }
+        for (FirFunction function : functions) {
+            methods.add(methodDeclarationType(function, clazz, ownerFallBack));
         }
+    }
 
-        if (!firClass.getTypeParameters().isEmpty()) {
-            JavaType.Parameterized pt = typeCache.get(signature);
-            if (pt == null) {
-                pt = new JavaType.Parameterized(null, null, null);
-                typeCache.put(signature, pt);
+    /**
+     * Add the members that the sources of this type mapping refer to, or every member when all members are mapped, to
+     * a classpath class that was mapped with the members referred to by other sources.
+     */
+    private void addMembers(PartialClass clazz, FirClass firClass, @Nullable FirBasedSymbol<?> ownerFallBack) {
+        Thread completing = cacheLock.claim(clazz);
+        if (completing == Thread.currentThread()) {
+            // The members of this type mapping are already being added further up the stack.
+            return;
+        } else if (completing != null) {
+            awaited.add(clazz);
+            pendingMembers.add(new PendingMembers(clazz, firClass, ownerFallBack));
+            return;
+        }
 
-                List<JavaType> typeParameters = new ArrayList<>(firClass.getTypeParameters().size());
-                if (resolvedTypeRef != null && resolvedTypeRef.getType().getTypeArguments().length > 0) {
-                    for (ConeTypeProjection typeArgument : resolvedTypeRef.getType().getTypeArguments()) {
-                         typeParameters.add(type(typeArgument));
-                    }
-                } else {
-                    for (FirTypeParameterRef tParam : firClass.getTypeParameters()) {
-                        typeParameters.add(type(tParam));
-                    }
+        try {
+            Set<String> mappedMembers = clazz.mappedMembers;
+            if (mappedMembers == null || referencedMembers != null && mappedMembers.containsAll(referencedMembers)) {
+                return;
+            }
+
+            // The class is updated before its members are mapped, as they refer back to it.
+            Set<String> previouslyMapped = new HashSet<>(mappedMembers);
+            if (referencedMembers == null) {
+                clazz.mappedMembers = null;
+                if (typeTable != null) {
+                    typeTable.classpathClass(clazz.getFullyQualifiedName());
                 }
-                pt.unsafeSet(clazz, typeParameters);
+            } else {
+                mappedMembers.addAll(referencedMembers);
             }
-            return pt;
-        }
 
-        return clazz;
+            List<JavaType.Variable> fields = new ArrayList<>(clazz.getMembers());
+            List<JavaType.Method> methods = new ArrayList<>(clazz.getMethods());
+            mapMembers(clazz, firClass, ownerFallBack, previouslyMapped, fields, methods);
+            clazz.unsafeSet(clazz.getTypeParameters(), clazz.getSupertype(), clazz.getOwningClass(), clazz.getAnnotations(),
+                    clazz.getInterfaces(), fields, methods);
+        } finally {
+            cacheLock.completed(clazz);
+        }
     }
 
     @Nullable
     public JavaType.Method methodDeclarationType(@Nullable FirFunction function, @Nullable JavaType.FullyQualified declaringType, @Nullable FirBasedSymbol<?> ownerFallBack) {
+        if (syntaxOnly) {
+            return null;
+        }
+        KotlinParseMetrics.Measurement measurement = startMeasurement();
+        try {
+            return mapMethodDeclarationType(function, declaringType, ownerFallBack);
+        } finally {
+            stopMeasurement(measurement);
+        }
+    }
+
+    @Nullable
+    private JavaType.Method mapMethodDeclarationType(@Nullable FirFunction function, @Nullable JavaType.FullyQualified declaringType, @Nullable FirBasedSymbol<?> ownerFallBack) {
         FirFunctionSymbol<?> methodSymbol = function == null ? null : function.getSymbol();
         if (methodSymbol != null) {
             String signature = signatureBuilder.methodDeclarationSignature(function.getSymbol());
-            JavaType.Method existing = typeCache.get(signature);
+            JavaType.Method existing = cached(signature);
             if (existing != null) {
                 return existing;
             }
@@ -337,47 +581,54 @@ public class KotlinTypeMapping implements JavaTypeMapping<Object> {
                     null, null, null,
                     defaultValues
             );
-            typeCache.put(signature, method);
-
-            List<JavaType.FullyQualified> exceptionTypes = null;
-
-            JavaType.FullyQualified resolvedDeclaringType = declaringType;
-            if (declaringType == null) {
-                if (methodSymbol instanceof FirConstructorSymbol) {
-                    resolvedDeclaringType = TypeUtils.asFullyQualified(type(methodSymbol.getResolvedReturnType()));
-                } else if (methodSymbol.getDispatchReceiverType() != null) {
-                    resolvedDeclaringType = TypeUtils.asFullyQualified(type(methodSymbol.getDispatchReceiverType()));
-                } else if (ownerFallBack != null) {
-                    resolvedDeclaringType = TypeUtils.asFullyQualified(type(ownerFallBack.getFir()));
-                }
+            JavaType.Method raced = cacheIncomplete(signature, method);
+            if (raced != null) {
+                return raced;
             }
 
-            if (resolvedDeclaringType == null) {
-                return null;
-            }
+            try {
+                List<JavaType.FullyQualified> exceptionTypes = null;
+
+                JavaType.FullyQualified resolvedDeclaringType = declaringType;
+                if (declaringType == null) {
+                    if (methodSymbol instanceof FirConstructorSymbol) {
+                        resolvedDeclaringType = TypeUtils.asFullyQualified(type(methodSymbol.getResolvedReturnType()));
+                    } else if (methodSymbol.getDispatchReceiverType() != null) {
+                        resolvedDeclaringType = TypeUtils.asFullyQualified(type(methodSymbol.getDispatchReceiverType()));
+                    } else if (ownerFallBack != null) {
+                        resolvedDeclaringType = TypeUtils.asFullyQualified(type(ownerFallBack.getFir()));
+                    }
+                }
 
-            JavaType returnType = function instanceof FirJavaMethod ?
-                    type(methodSymbol.getFir().getDispatchReceiverType()) :
-                    type(methodSymbol.getResolvedReturnTypeRef());
+                if (resolvedDeclaringType == null) {
+                    return null;
+                }
 
-            List<JavaType> parameterTypes = null;
-            if (!methodSymbol.getValueParameterSymbols().isEmpty()) {
-                parameterTypes = new ArrayList<>(methodSymbol.getValueParameterSymbols().size());
-                for (FirValueParameterSymbol parameterSymbol : methodSymbol.getValueParameterSymbols()) {
-                    JavaType javaType;
-                    if (parameterSymbol.getFir() instanceof FirJavaValueParameter) {
-                        javaType = type(parameterSymbol.getFir().getReturnTypeRef());
-                    } else {
-                        javaType = type(parameterSymbol.getResolvedReturnTypeRef());
+                JavaType returnType = function instanceof FirJavaMethod ?
+                        type(methodSymbol.getFir().getDispatchReceiverType()) :
+                        type(methodSymbol.getResolvedReturnTypeRef());
+
+                List<JavaType> parameterTypes = null;
+                if (!methodSymbol.getValueParameterSymbols().isEmpty()) {
+                    parameterTypes = new ArrayList<>(methodSymbol.getValueParameterSymbols().size());
+                    for (FirValueParameterSymbol parameterSymbol : methodSymbol.getValueParameterSymbols()) {
+                        JavaType javaType;
+                        if (parameterSymbol.getFir() instanceof FirJavaValueParameter) {
+                            javaType = type(parameterSymbol.getFir().getReturnTypeRef());
+                        } else {
+                            javaType = type(parameterSymbol.getResolvedReturnTypeRef());
+                        }
+                        parameterTypes.add(javaType);
                     }
-                    parameterTypes.add(javaType);
                 }
-            }
 
-            method.unsafeSet(resolvedDeclaringType,
-                    methodSymbol instanceof FirConstructorSymbol ? resolvedDeclaringType : returnType,
-                    parameterTypes, exceptionTypes, listAnnotations(methodSymbol.getAnnotations()));
-            return method;
+                method.unsafeSet(resolvedDeclaringType,
+                        methodSymbol instanceof FirConstructorSymbol ? resolvedDeclaringType : returnType,
+                        parameterTypes, exceptionTypes, listAnnotations(methodSymbol.getAnnotations()));
+                return method;
+            } finally {
+                cacheLock.completed(method);
+            }
         }
 
         return null;
@@ -385,12 +636,25 @@ public class KotlinTypeMapping implements JavaTypeMapping<Object> {
 
     @Nullable
     public JavaType.Method methodInvocationType(@Nullable FirFunctionCall functionCall, @Nullable FirBasedSymbol<?> ownerSymbol) {
+        if (syntaxOnly) {
+            return null;
+        }
+        KotlinParseMetrics.Measurement measurement = startMeasurement();
+        try {
+            return mapMethodInvocationType(functionCall, ownerSymbol);
+        } finally {
+            stopMeasurement(measurement);
+        }
+    }
+
+    @Nullable
+    private JavaType.Method mapMethodInvocationType(@Nullable FirFunctionCall functionCall, @Nullable FirBasedSymbol<?> ownerSymbol) {
         if (functionCall == null) {
             return null;
         }
 
         String signature = signatureBuilder.methodSignature(functionCall, ownerSymbol);
-        JavaType.Method existing = typeCache.get(signature);
+        JavaType.Method existing = cached(signature);
         if (existing != null) {
             return existing;
         }
@@ -428,65 +692,86 @@ public class KotlinTypeMapping implements JavaTypeMapping<Object> {
                 paramNames,
                 null, null, null, null
         );
-        typeCache.put(signature, method);
+        JavaType.Method raced = cacheIncomplete(signature, method);
+        if (raced != null) {
+            return raced;
+        }
 
-        List<JavaType> parameterTypes = null;
-        List<JavaType.FullyQualified> exceptionTypes = null;
+        try {
+            List<JavaType> parameterTypes = null;
+            List<JavaType.FullyQualified> exceptionTypes = null;
 
-        if (constructor != null && !constructor.getValueParameters().isEmpty()) {
-            parameterTypes = new ArrayList<>(constructor.getValueParameters().size());
-            for (FirValueParameter argtype : constructor.getValueParameters()) {
-                if (argtype != null) {
-                    JavaType javaType = type(argtype);
-                    parameterTypes.add(javaType);
+            if (constructor != null && !constructor.getValueParameters().isEmpty()) {
+                parameterTypes = new ArrayList<>(constructor.getValueParameters().size());
+                for (FirValueParameter argtype : constructor.getValueParameters()) {
+                    if (argtype != null) {
+                        JavaType javaType = type(argtype);
+                        parameterTypes.add(javaType);
+                    }
                 }
             }
-        }
 
-        JavaType.FullyQualified resolvedDeclaringType = null;
-        if (functionCall.getCalleeReference() instanceof FirResolvedNamedReference) {
-            if (((FirResolvedNamedReference) functionCall.getCalleeReference()).getResolvedSymbol() instanceof FirNamedFunctionSymbol) {
-                FirNamedFunctionSymbol resolvedSymbol = (FirNamedFunctionSymbol) ((FirResolvedNamedReference) functionCall.getCalleeReference()).getResolvedSymbol();
-                if (ClassMembersKt.containingClass(resolvedSymbol) != null) {
-                    //noinspection DataFlowIssue
-                    resolvedDeclaringType = TypeUtils.asFullyQualified(type(LookupTagUtilsKt.toFirRegularClassSymbol(ClassMembersKt.containingClass(resolvedSymbol), firSession).getFir(), ownerSymbol));
-                } else if (resolvedSymbol.getOrigin() == FirDeclarationOrigin.Library.INSTANCE) {
-                    if (resolvedSymbol.getFir().getContainerSource() instanceof JvmPackagePartSource) {
-                        JvmPackagePartSource source = (JvmPackagePartSource) resolvedSymbol.getFir().getContainerSource();
-                        if (source.getFacadeClassName() != null) {
-                            resolvedDeclaringType = TypeUtils.asFullyQualified(type(convertKotlinFqToJavaFq(source.getFacadeClassName().toString())));
-                        } else {
-                            resolvedDeclaringType = TypeUtils.asFullyQualified(type(convertKotlinFqToJavaFq(source.getClassName().toString())));
+            JavaType.FullyQualified resolvedDeclaringType = null;
+            if (functionCall.getCalleeReference() instanceof FirResolvedNamedReference) {
+                if (((FirResolvedNamedReference) functionCall.getCalleeReference()).getResolvedSymbol() instanceof FirNamedFunctionSymbol) {
+                    FirNamedFunctionSymbol resolvedSymbol = (FirNamedFunctionSymbol) ((FirResolvedNamedReference) functionCall.getCalleeReference()).getResolvedSymbol();
+                    if (ClassMembersKt.containingClass(resolvedSymbol) != null) {
+                        //noinspection DataFlowIssue
+                        resolvedDeclaringType = TypeUtils.asFullyQualified(type(symbols.toFirRegularClassSymbol(ClassMembersKt.containingClass(resolvedSymbol)).getFir(), ownerSymbol));
+                    } else if (resolvedSymbol.getOrigin() == FirDeclarationOrigin.Library.INSTANCE) {
+                        if (resolvedSymbol.getFir().getContainerSource() instanceof JvmPackagePartSource) {
+                            JvmPackagePartSource source = (JvmPackagePartSource) resolvedSymbol.getFir().getContainerSource();
+                            String facadeFqn = convertKotlinFqToJavaFq(source.getFacadeClassName() != null ?
+                                    source.getFacadeClassName().toString() : source.getClassName().toString());
+                            if (typeTable != null) {
+                                typeTable.classpathClass(facadeFqn);
+                            }
+                            resolvedDeclaringType = TypeUtils.asFullyQualified(type(facadeFqn));
+                        }
+                    } else if (resolvedSymbol.getOrigin() == FirDeclarationOrigin.Source.INSTANCE && ownerSymbol != null) {
+                        if (ownerSymbol instanceof FirFileSymbol) {
+                            resolvedDeclaringType = TypeUtils.asFullyQualified(type(((FirFileSymbol) ownerSymbol).getFir()));
+                        } else if (ownerSymbol instanceof FirNamedFunctionSymbol) {
+                            resolvedDeclaringType = TypeUtils.asFullyQualified(type(((FirNamedFunctionSymbol) ownerSymbol).getFir()));
+                        } else if (ownerSymbol instanceof FirRegularClassSymbol) {
+                            resolvedDeclaringType = TypeUtils.asFullyQualified(type(((FirRegularClassSymbol) ownerSymbol).getFir()));
                         }
-                    }
-                } else if (resolvedSymbol.getOrigin() == FirDeclarationOrigin.Source.INSTANCE && ownerSymbol != null) {
-                    if (ownerSymbol instanceof FirFileSymbol) {
-                        resolvedDeclaringType = TypeUtils.asFullyQualified(type(((FirFileSymbol) ownerSymbol).getFir()));
-                    } else if (ownerSymbol instanceof FirNamedFunctionSymbol) {
-                        resolvedDeclaringType = TypeUtils.asFullyQualified(type(((FirNamedFunctionSymbol) ownerSymbol).getFir()));
-                    } else if (ownerSymbol instanceof FirRegularClassSymbol) {
-                        resolvedDeclaringType = TypeUtils.asFullyQualified(type(((FirRegularClassSymbol) ownerSymbol).getFir()));
                     }
                 }
             }
-        }
 
-        JavaType returnType = type(functionCall.getTypeRef(), ownerSymbol);
+            JavaType returnType = type(functionCall.getTypeRef(), ownerSymbol);
 
-        method.unsafeSet(resolvedDeclaringType,
-                constructor != null ? resolvedDeclaringType : returnType,
-                parameterTypes, exceptionTypes, listAnnotations(constructor != null ? constructor.getAnnotations() : simpleFunction.getAnnotations()));
-        return method;
+            method.unsafeSet(resolvedDeclaringType,
+                    constructor != null ? resolvedDeclaringType : returnType,
+                    parameterTypes, exceptionTypes, listAnnotations(constructor != null ? constructor.getAnnotations() : simpleFunction.getAnnotations()));
+            return method;
+        } finally {
+            cacheLock.completed(method);
+        }
     }
 
     @Nullable
     public JavaType.Variable variableType(@Nullable FirVariableSymbol<? extends FirVariable> symbol, @Nullable JavaType.FullyQualified owner, @Nullable FirBasedSymbol<?> ownerFallBack) {
+        if (syntaxOnly) {
+            return null;
+        }
+        KotlinParseMetrics.Measurement measurement = startMeasurement();
+        try {
+            return mapVariableType(symbol, owner, ownerFallBack);
+        } finally {
+            stopMeasurement(measurement);
+        }
+    }
+
+    @Nullable
+    private JavaType.Variable mapVariableType(@Nullable FirVariableSymbol<? extends FirVariable> symbol, @Nullable JavaType.FullyQualified owner, @Nullable FirBasedSymbol<?> ownerFallBack) {
         if (symbol == null) {
             return null;
         }
 
         String signature = signatureBuilder.variableSignature(symbol, ownerFallBack);
-        JavaType.Variable existing = typeCache.get(signature);
+        JavaType.Variable existing = cached(signature);
         if (existing != null) {
             return existing;
         }
@@ -497,27 +782,34 @@ public class KotlinTypeMapping implements JavaTypeMapping<Object> {
                 symbol.getName().asString(),
                 null, null, null);
 
-        typeCache.put(signature, variable);
+        JavaType.Variable raced = cacheIncomplete(signature, variable);
+        if (raced != null) {
+            return raced;
+        }
 
-        List<JavaType.FullyQualified> annotations = listAnnotations(symbol.getAnnotations());
+        try {
+            List<JavaType.FullyQualified> annotations = listAnnotations(symbol.getAnnotations());
 
-        JavaType resolvedOwner = owner;
-        if (owner == null && ownerFallBack != null) {
-            // There isn't a way to link a Callable back to the owner unless it's a class member, but class members already set the owner.
-            // The fallback isn't always safe and may result in type erasure.
-            // We'll need to find the owner in the parser to set this on properties and variables in local scopes.
-            resolvedOwner = type(ownerFallBack.getFir());
-        }
+            JavaType resolvedOwner = owner;
+            if (owner == null && ownerFallBack != null) {
+                // There isn't a way to link a Callable back to the owner unless it's a class member, but class members already set the owner.
+                // The fallback isn't always safe and may result in type erasure.
+                // We'll need to find the owner in the parser to set this on properties and variables in local scopes.
+                resolvedOwner = type(ownerFallBack.getFir());
+            }
 
-        if (resolvedOwner == null) {
-            resolvedOwner = JavaType.Unknown.getInstance();
-        }
+            if (resolvedOwner == null) {
+                resolvedOwner = JavaType.Unknown.getInstance();
+            }
 
-        FirTypeRef typeRef = symbol.getFir() instanceof FirJavaField || symbol.getFir() instanceof FirEnumEntry ? symbol.getFir().getReturnTypeRef() :
-                symbol.getResolvedReturnTypeRef();
-                variable.unsafeSet(resolvedOwner, type(typeRef), annotations);
+            FirTypeRef typeRef = symbol.getFir() instanceof FirJavaField || symbol.getFir() instanceof FirEnumEntry ? symbol.getFir().getReturnTypeRef() :
+                    symbol.getResolvedReturnTypeRef();
+            variable.unsafeSet(resolvedOwner, type(typeRef), annotations);
 
-        return variable;
+            return variable;
+        } finally {
+            cacheLock.completed(variable);
+        }
     }
 
     public JavaType.Primitive primitive(ConeClassLikeType type) {
@@ -572,23 +864,30 @@ public class KotlinTypeMapping implements JavaTypeMapping<Object> {
             }
 
             JavaType.GenericTypeVariable gtv = new JavaType.GenericTypeVariable(null, name, INVARIANT, null);
-            typeCache.put(signature, gtv);
-
-            if (type instanceof ConeKotlinTypeProjectionIn) {
-                ConeKotlinTypeProjectionIn in = (ConeKotlinTypeProjectionIn) type;
-                variance = CONTRAVARIANT;
-                FirRegularClassSymbol classSymbol = TypeUtilsKt.toRegularClassSymbol(in.getType(), firSession);
-                bounds = new ArrayList<>(1);
-                bounds.add(classSymbol != null ? type(classSymbol.getFir()) : JavaType.Unknown.getInstance());
-            } else if (type instanceof ConeKotlinTypeProjectionOut) {
-                ConeKotlinTypeProjectionOut out = (ConeKotlinTypeProjectionOut) type;
-                variance = COVARIANT;
-                FirRegularClassSymbol classSymbol = TypeUtilsKt.toRegularClassSymbol(out.getType(), firSession);
-                bounds = new ArrayList<>(1);
-                bounds.add(classSymbol != null ? type(classSymbol.getFir()) : JavaType.Unknown.getInstance());
-            }
-
-            gtv.unsafeSet(name, variance, bounds);
+            JavaType.GenericTypeVariable raced = cacheIncomplete(signature, gtv);
+            if (raced != null) {
+                return raced;
+            }
+
+            try {
+                if (type instanceof ConeKotlinTypeProjectionIn) {
+                    ConeKotlinTypeProjectionIn in = (ConeKotlinTypeProjectionIn) type;
+                    variance = CONTRAVARIANT;
+                    FirRegularClassSymbol classSymbol = symbols.toRegularClassSymbol(in.getType());
+                    bounds = new ArrayList<>(1);
+                    bounds.add(classSymbol != null ? type(classSymbol.getFir()) : JavaType.Unknown.getInstance());
+                } else if (type instanceof ConeKotlinTypeProjectionOut) {
+                    ConeKotlinTypeProjectionOut out = (ConeKotlinTypeProjectionOut) type;
+                    variance = COVARIANT;
+                    FirRegularClassSymbol classSymbol = symbols.toRegularClassSymbol(out.getType());
+                    bounds = new ArrayList<>(1);
+                    bounds.add(classSymbol != null ? type(classSymbol.getFir()) : JavaType.Unknown.getInstance());
+                }
+
+                gtv.unsafeSet(name, variance, bounds);
+            } finally {
+                cacheLock.completed(gtv);
+            }
             resolvedType = gtv;
         } else {
             // The ConeTypeProjection is not a generic type, so it must be a class type.
@@ -603,9 +902,9 @@ public class KotlinTypeMapping implements JavaTypeMapping<Object> {
     }
 
     private JavaType resolveConeLikeClassType(ConeClassLikeType coneClassLikeType, String signature, @Nullable FirBasedSymbol<?> ownerSymbol) {
-        FirRegularClassSymbol classSymbol = TypeUtilsKt.toRegularClassSymbol(coneClassLikeType, firSession);
+        FirRegularClassSymbol classSymbol = symbols.toRegularClassSymbol(coneClassLikeType);
         if (classSymbol == null) {
-            typeCache.put(signature, JavaType.Unknown.getInstance());
+            cache(signature, JavaType.Unknown.getInstance());
             return JavaType.Unknown.getInstance();
         }
 
@@ -614,24 +913,31 @@ public class KotlinTypeMapping implements JavaTypeMapping<Object> {
 
     private JavaType resolveConeTypeProjection(FirTypeParameter typeParameter, String signature) {
         JavaType.GenericTypeVariable gtv = new JavaType.GenericTypeVariable(null, typeParameter.getName().asString(), INVARIANT, null);
-        typeCache.put(signature, gtv);
+        JavaType.GenericTypeVariable raced = cacheIncomplete(signature, gtv);
+        if (raced != null) {
+            return raced;
+        }
 
-        List<JavaType> bounds = null;
-        JavaType.GenericTypeVariable.Variance variance = INVARIANT;
-        if (!(typeParameter.getBounds().size() == 1 && typeParameter.getBounds().get(0) instanceof FirImplicitNullableAnyTypeRef)) {
-            bounds = new ArrayList<>(typeParameter.getBounds().size());
-            for (FirTypeRef bound : typeParameter.getBounds()) {
-                bounds.add(type(bound));
-            }
+        try {
+            List<JavaType> bounds = null;
+            JavaType.GenericTypeVariable.Variance variance = INVARIANT;
+            if (!(typeParameter.getBounds().size() == 1 && typeParameter.getBounds().get(0) instanceof FirImplicitNullableAnyTypeRef)) {
+                bounds = new ArrayList<>(typeParameter.getBounds().size());
+                for (FirTypeRef bound : typeParameter.getBounds()) {
+                    bounds.add(type(bound));
+                }
 
-            if ("out".equals(typeParameter.getVariance().getLabel())) {
-                variance = COVARIANT;
-            } else if ("in".equals(typeParameter.getVariance().getLabel())) {
-                variance = CONTRAVARIANT;
+                if ("out".equals(typeParameter.getVariance().getLabel())) {
+                    variance = COVARIANT;
+                } else if ("in".equals(typeParameter.getVariance().getLabel())) {
+                    variance = CONTRAVARIANT;
+                }
             }
-        }
 
-        gtv.unsafeSet(gtv.getName(), variance, bounds);
+            gtv.unsafeSet(gtv.getName(), variance, bounds);
+        } finally {
+            cacheLock.completed(gtv);
+        }
         return gtv;
     }
 
@@ -700,7 +1006,7 @@ public class KotlinTypeMapping implements JavaTypeMapping<Object> {
         // TODO: find a cleaner way to access to retention policy of annotations from a reference. There isn't time to sort this out properly.
         outer:
         for (FirAnnotation firAnnotation : firAnnotations) {
-            FirRegularClassSymbol symbol = TypeUtilsKt.toRegularClassSymbol(FirTypeUtilsKt.getConeType(firAnnotation.getTypeRef()), firSession);
+            FirRegularClassSymbol symbol = symbols.toRegularClassSymbol(FirTypeUtilsKt.getConeType(firAnnotation.getTypeRef()));
             if (symbol != null) {
                 for (FirAnnotation annotation : symbol.getAnnotations()) {
                     if (annotation instanceof FirAnnotationCall && !((FirAnnotationCall) annotation).getArgumentList().getArguments().isEmpty()) {
@@ -726,4 +1032,304 @@ public class KotlinTypeMapping implements JavaTypeMapping<Object> {
 
         return annotations;
     }
+
+    private static String memberName(FirCallableDeclaration declaration) {
+        return declaration.getSymbol().getCallableId().getCallableName().asString();
+    }
+
+    @Nullable
+    private <T> T cached(String signature) {
+        return cacheLock.get(typeCache, signature, awaited);
+    }
+
+    /**
+     * Cache a type that is complete.
+     *
+     * @return null when the type was cached, or the type that another thread cached with the same signature first.
+     */
+    @Nullable
+    private <T> T cache(String signature, JavaType type) {
+        return cache(signature, type, true);
+    }
+
+    /**
+     * Cache a type before the types it refers to are mapped. The caller completes it and then calls {@link TypeCacheLock#completed(JavaType)}.
+     *
+     * @return null when the type was cached, or the type that another thread cached with the same signature first.
+     */
+    @Nullable
+    private <T> T cacheIncomplete(String signature, JavaType type) {
+        return cache(signature, type, false);
+    }
+
+    @Nullable
+    private <T> T cache(String signature, JavaType type, boolean complete) {
+        T raced = cacheLock.putIfAbsent(typeCache, signature, type, complete, awaited);
+        if (raced == null && typeTable != null) {
+            typeTable.record(signature, type);
+        }
+        return raced;
+    }
+
+    /**
+     * @return true when the type is a lazily mapped class whose body has not been mapped yet.
+     */
+    static boolean isUnresolved(JavaType type) {
+        return type instanceof LazyClass && ((LazyClass) type).resolver != null;
+    }
+
+    /**
+     * A class whose name, kind and flags are mapped eagerly, and whose supertypes, owner, annotations, fields and
+     * methods are mapped from the FIR when one of them is first read. The class holds on to the FIR, and through it to
+     * the FIR session, until then.
+     * <p>
+     * The class is serialized and copied as a plain {@link JavaType.Class}, after its body is mapped.
+     */
+    @JsonSerialize(using = PlainClassSerializer.class)
+    private static class LazyClass extends JavaType.Class {
+        private final transient Object lock = new Object();
+        private final transient KotlinLazyClasses batch;
+
+        @Nullable
+        private transient volatile Runnable resolver;
+
+        private transient boolean resolving;
+
+        @Nullable
+        private transient volatile RuntimeException failure;
+
+        LazyClass(KotlinLazyClasses batch, long flagsBitMap, String fullyQualifiedName, Kind kind) {
+            super(null, flagsBitMap, fullyQualifiedName, kind, null, null, null, null, null, null, null);
+            this.batch = batch;
+        }
+
+        void resolveWith(Runnable resolver) {
+            this.resolver = resolver;
+            batch.add(this);
+        }
+
+        private void resolve() {
+            if (resolver == null) {
+                checkResolved();
+                return;
+            }
+            synchronized (lock) {
+                Runnable r = resolver;
+                if (r == null || resolving) {
+                    // A class that refers to itself reads its own members while they are being mapped.
+                    checkResolved();
+                    return;
+                }
+                resolving = true;
+                try {
+                    r.run();
+                    batch.resolved(this);
+                } catch (RuntimeException e) {
+                    failure = new IllegalStateException("Unable to map the members of " + getFullyQualifiedName(), e);
+                    batch.failed(this, failure);
+                } finally {
+                    resolving = false;
+                    resolver = null;
+                }
+            }
+            checkResolved();
+        }
+
+        private void checkResolved() {
+            RuntimeException f = failure;
+            if (f != null) {
+                throw f;
+            }
+        }
+
+        @Override
+        public List<JavaType> getTypeParameters() {
+            resolve();
+            return super.getTypeParameters();
+        }
+
+        @Nullable
+        @Override
+        public FullyQualified getSupertype() {
+            resolve();
+            return super.getSupertype();
+        }
+
+        @Nullable
+        @Override
+        public FullyQualified getOwningClass() {
+            resolve();
+            return super.getOwningClass();
+        }
+
+        @Override
+        public List<FullyQualified> getAnnotations() {
+            resolve();
+            return super.getAnnotations();
+        }
+
+        @Override
+        public List<FullyQualified> getInterfaces() {
+            resolve();
+            return super.getInterfaces();
+        }
+
+        @Override
+        public List<Variable> getMembers() {
+            resolve();
+            return super.getMembers();
+        }
+
+        @Override
+        public List<Method> getMethods() {
+            resolve();
+            return super.getMethods();
+        }
+
+        @Override
+        public Class withFullyQualifiedName(String fullyQualifiedName) {
+            resolve();
+            return super.withFullyQualifiedName(fullyQualifiedName);
+        }
+
+        @Override
+        public Class withTypeParameters(@Nullable List<JavaType> typeParameters) {
+            resolve();
+            return super.withTypeParameters(typeParameters);
+        }
+
+        @Override
+        public Class withSupertype(@Nullable FullyQualified supertype) {
+            resolve();
+            return super.withSupertype(supertype);
+        }
+
+        @Override
+        public Class withOwningClass(@Nullable FullyQualified owningClass) {
+            resolve();
+            return super.withOwningClass(owningClass);
+        }
+
+        @Override
+        public Class withAnnotations(@Nullable List<FullyQualified> annotations) {
+            resolve();
+            return super.withAnnotations(annotations);
+        }
+
+        @Override
+        public Class withInterfaces(@Nullable List<FullyQualified> interfaces) {
+            resolve();
+            return super.withInterfaces(interfaces);
+        }
+
+        @Override
+        public Class withMembers(@Nullable List<Variable> members) {
+            resolve();
+            return super.withMembers(members);
+        }
+
+        @Override
+        public Class withMethods(@Nullable List<Method> methods) {
+            resolve();
+            return super.withMethods(methods);
+        }
+    }
+
+    @Value
+    private static class PendingMembers {
+        PartialClass clazz;
+        FirClass firClass;
+
+        @Nullable
+        FirBasedSymbol<?> ownerFallBack;
+    }
+
+    /**
+     * A classpath class that only includes the members referred to by the sources it was mapped for, to which the
+     * members that later sources refer to are added as they are mapped.
+     * <p>
+     * The class is serialized as a plain {@link JavaType.Class}.
+     */
+    @JsonSerialize(using = PlainClassSerializer.class)
+    private static class PartialClass extends JavaType.Class {
+        /**
+         * The names of the members that have been mapped, or null once every member is.
+         */
+        @Nullable
+        private transient Set<String> mappedMembers;
+
+        PartialClass(long flagsBitMap, String fullyQualifiedName, Kind kind, Set<String> mappedMembers) {
+            super(null, flagsBitMap, fullyQualifiedName, kind, null, null, null, null, null, null, null);
+            this.mappedMembers = new HashSet<>(mappedMembers);
+        }
+    }
+
+    /**
+     * Writes a {@link LazyClass} or a {@link PartialClass} with the serializer and the type id of {@link JavaType.Class},
+     * so that it is read back as a plain class. The body of a lazy class is mapped first.
+     */
+    private static class PlainClassSerializer extends StdSerializer<JavaType.Class> {
+        PlainClassSerializer() {
+            super(JavaType.Class.class);
+        }
+
+        @Override
+        public void serialize(JavaType.Class value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            if (value instanceof LazyClass) {
+                ((LazyClass) value).resolve();
+            }
+            provider.findValueSerializer(JavaType.Class.class).serialize(value, gen, provider);
+        }
+
+        @Override
+        public void serializeWithType(JavaType.Class value, JsonGenerator gen, SerializerProvider provider,
+                                      TypeSerializer typeSer) throws IOException {
+            if (value instanceof LazyClass) {
+                ((LazyClass) value).resolve();
+            }
+            provider.findValueSerializer(JavaType.Class.class).serializeWithType(value, gen, provider, new ClassTypeSerializer(typeSer));
+        }
+    }
+
+    private static class ClassTypeSerializer extends TypeSerializer {
+        private final TypeSerializer delegate;
+
+        ClassTypeSerializer(TypeSerializer delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public TypeSerializer forProperty(BeanProperty prop) {
+            return new ClassTypeSerializer(delegate.forProperty(prop));
+        }
+
+        @Override
+        public JsonTypeInfo.As getTypeInclusion() {
+            return delegate.getTypeInclusion();
+        }
+
+        @Nullable
+        @Override
+        public String getPropertyName() {
+            return delegate.getPropertyName();
+        }
+
+        @Override
+        public TypeIdResolver getTypeIdResolver() {
+            return delegate.getTypeIdResolver();
+        }
+
+        @Override
+        public WritableTypeId writeTypePrefix(JsonGenerator g, WritableTypeId typeId) throws IOException {
+            if (typeId.id == null) {
+                typeId.id = delegate.getTypeIdResolver().idFromValueAndType(typeId.forValue, JavaType.Class.class);
+            }
+            return delegate.writeTypePrefix(g, typeId);
+        }
+
+        @Override
+        public WritableTypeId writeTypeSuffix(JsonGenerator g, WritableTypeId typeId) throws IOException {
+            return delegate.writeTypeSuffix(g, typeId);
+        }
+    }
 }
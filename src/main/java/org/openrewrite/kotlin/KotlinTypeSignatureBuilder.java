@@ -39,7 +39,9 @@ import org.openrewrite.internal.lang.Nullable;
 import org.openrewrite.java.JavaTypeSignatureBuilder;
 
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.StringJoiner;
 
@@ -47,12 +49,38 @@ import java.util.StringJoiner;
 public class KotlinTypeSignatureBuilder implements JavaTypeSignatureBuilder {
 
     private final FirSession firSession;
+    private final FirSymbolCache symbols;
 
     @Nullable
     Set<String> typeVariableNameStack;
 
+    /**
+     * Signatures of classes and cone types by identity, which are built once per builder instead of once per lookup.
+     * Only signatures that are built while no type variable is being visited are kept, since the signature of a
+     * type variable that is already on the stack is abbreviated.
+     */
+    private final Map<Object, String> signatures = new IdentityHashMap<>();
+
+    /**
+     * Signatures of resolved type refs by the identity of their cone type, which many type refs share.
+     */
+    private final Map<ConeKotlinType, String> typeRefSignatures = new IdentityHashMap<>();
+
     public KotlinTypeSignatureBuilder(FirSession firSession) {
-        this.firSession = firSession;
+        this(new FirSymbolCache(firSession));
+    }
+
+    /**
+     * The builder is not thread-safe. A builder that is shared by the type mappings of several sources of a session
+     * must only be used by one of them at a time.
+     */
+    public KotlinTypeSignatureBuilder(FirSymbolCache symbols) {
+        this.firSession = symbols.getFirSession();
+        this.symbols = symbols;
+    }
+
+    public FirSymbolCache getSymbols() {
+        return symbols;
     }
 
     public String signature(@Nullable Object type) {
@@ -70,7 +98,15 @@ public class KotlinTypeSignatureBuilder implements JavaTypeSignatureBuilder {
         }
 
         if (type instanceof FirClass) {
-            return !((FirClass) type).getTypeParameters().isEmpty() ? parameterizedSignature(type) : classSignature(type);
+            boolean memoize = isMemoizable();
+            String signature = memoize ? signatures.get(type) : null;
+            if (signature == null) {
+                signature = !((FirClass) type).getTypeParameters().isEmpty() ? parameterizedSignature(type) : classSignature(type);
+                if (memoize) {
+                    signatures.put(type, signature);
+                }
+            }
+            return signature;
         } else if (type instanceof FirFunction) {
             return methodDeclarationSignature(((FirFunction) type).getSymbol());
         } else if (type instanceof FirVariable) {
@@ -90,7 +126,15 @@ public class KotlinTypeSignatureBuilder implements JavaTypeSignatureBuilder {
      */
     private String resolveSignature(Object type, @Nullable FirBasedSymbol<?> ownerSymbol) {
         if (type instanceof ConeTypeProjection) {
-            return coneTypeProjectionSignature((ConeTypeProjection) type);
+            boolean memoize = isMemoizable();
+            String signature = memoize ? signatures.get(type) : null;
+            if (signature == null) {
+                signature = coneTypeProjectionSignature((ConeTypeProjection) type);
+                if (memoize) {
+                    signatures.put(type, signature);
+                }
+            }
+            return signature;
         } else if (type instanceof FirResolvedQualifier) {
             return signature(((FirResolvedQualifier) type).getSymbol());
         } else if (type instanceof FirExpression) {
@@ -118,15 +162,15 @@ public class KotlinTypeSignatureBuilder implements JavaTypeSignatureBuilder {
             }
         } else if (type instanceof FirResolvedTypeRef) {
             ConeKotlinType coneKotlinType = ((FirResolvedTypeRef) type).getType();
-            if (coneKotlinType instanceof ConeTypeParameterType) {
-                FirClassifierSymbol<?> classifierSymbol = LookupTagUtilsKt.toSymbol(((ConeTypeParameterType) coneKotlinType).getLookupTag(), firSession);
-                if (classifierSymbol != null && classifierSymbol.getFir() instanceof FirTypeParameter) {
-                    return genericSignature(classifierSymbol.getFir());
+            boolean memoize = isMemoizable();
+            String signature = memoize ? typeRefSignatures.get(coneKotlinType) : null;
+            if (signature == null) {
+                signature = typeRefSignature(coneKotlinType);
+                if (memoize) {
+                    typeRefSignatures.put(coneKotlinType, signature);
                 }
-            } else if (coneKotlinType instanceof ConeFlexibleType) {
-                return typeRefClassSignature(((ConeFlexibleType) coneKotlinType).getLowerBound());
             }
-            return coneKotlinType.getTypeArguments().length > 0 ? parameterizedTypeRef(coneKotlinType) : typeRefClassSignature(coneKotlinType);
+            return signature;
         } else if (type instanceof FirTypeParameter) {
             return genericSignature(type);
         } else if (type instanceof FirValueParameterSymbol) {
@@ -140,6 +184,22 @@ public class KotlinTypeSignatureBuilder implements JavaTypeSignatureBuilder {
         throw new IllegalArgumentException("Unsupported type " + type.getClass().getName());
     }
 
+    private String typeRefSignature(ConeKotlinType coneKotlinType) {
+        if (coneKotlinType instanceof ConeTypeParameterType) {
+            FirClassifierSymbol<?> classifierSymbol = LookupTagUtilsKt.toSymbol(((ConeTypeParameterType) coneKotlinType).getLookupTag(), firSession);
+            if (classifierSymbol != null && classifierSymbol.getFir() instanceof FirTypeParameter) {
+                return genericSignature(classifierSymbol.getFir());
+            }
+        } else if (coneKotlinType instanceof ConeFlexibleType) {
+            return typeRefClassSignature(((ConeFlexibleType) coneKotlinType).getLowerBound());
+        }
+        return coneKotlinType.getTypeArguments().length > 0 ? parameterizedTypeRef(coneKotlinType) : typeRefClassSignature(coneKotlinType);
+    }
+
+    private boolean isMemoizable() {
+        return typeVariableNameStack == null || typeVariableNameStack.isEmpty();
+    }
+
     /**
      * Kotlin does not support dimensioned arrays.
      */
@@ -165,17 +225,17 @@ public class KotlinTypeSignatureBuilder implements JavaTypeSignatureBuilder {
                         ((FirResolvedTypeRef) function.getReturnTypeRef()).getType());
             }
         } else if (type instanceof FirResolvedTypeRef) {
-            FirRegularClassSymbol symbol =  TypeUtilsKt.toRegularClassSymbol((((FirResolvedTypeRef)type).getType()), firSession);
+            FirRegularClassSymbol symbol =  symbols.toRegularClassSymbol(((FirResolvedTypeRef) type).getType());
             if (symbol != null) {
                 resolveType = symbol.getFir();
             }
         } else if (type instanceof ConeClassLikeType) {
-            FirRegularClassSymbol symbol =  TypeUtilsKt.toRegularClassSymbol(((ConeClassLikeType)type), firSession);
+            FirRegularClassSymbol symbol =  symbols.toRegularClassSymbol((ConeClassLikeType) type);
             if (symbol != null) {
                 resolveType = symbol.getFir();
             }
         } else if (type instanceof ConeClassLikeLookupTag) {
-            FirRegularClassSymbol symbol = LookupTagUtilsKt.toFirRegularClassSymbol((ConeClassLikeLookupTag) type, firSession);
+            FirRegularClassSymbol symbol = symbols.toFirRegularClassSymbol((ConeClassLikeLookupTag) type);
             if (symbol != null) {
                 resolveType = symbol.getFir();
             }
@@ -188,7 +248,7 @@ public class KotlinTypeSignatureBuilder implements JavaTypeSignatureBuilder {
         }
 
         FirClassSymbol<? extends FirClass> symbol = resolveType.getSymbol();
-        return convertClassIdToFqn(symbol.getClassId());
+        return symbols.fqn(symbol.getClassId());
     }
 
     /**
@@ -211,7 +271,7 @@ public class KotlinTypeSignatureBuilder implements JavaTypeSignatureBuilder {
      */
     private String typeRefClassSignature(ConeKotlinType type) {
         ClassId classId = ConeTypeUtilsKt.getClassId(type instanceof ConeFlexibleType ? ((ConeFlexibleType) type).getLowerBound() : type);
-        return classId == null ? "{undefined}" : convertClassIdToFqn(classId);
+        return classId == null ? "{undefined}" : symbols.fqn(classId);
     }
 
     /**
@@ -219,7 +279,7 @@ public class KotlinTypeSignatureBuilder implements JavaTypeSignatureBuilder {
      */
     private String parameterizedTypeRef(ConeKotlinType type) {
         ClassId classId = ConeTypeUtilsKt.getClassId(type);
-        String fq = classId == null ? "{undefined}" : convertClassIdToFqn(classId);
+        String fq = classId == null ? "{undefined}" : symbols.fqn(classId);
 
         StringBuilder s = new StringBuilder(fq);
         StringJoiner joiner = new StringJoiner(", ", "<", ">");
@@ -285,7 +345,7 @@ public class KotlinTypeSignatureBuilder implements JavaTypeSignatureBuilder {
             s.append("Generic{*}");
         } else if (type instanceof ConeClassLikeType) {
             ConeClassLikeType classLikeType = (ConeClassLikeType) type;
-            s.append(convertClassIdToFqn(classLikeType.getLookupTag().getClassId()));
+            s.append(symbols.fqn(classLikeType.getLookupTag().getClassId()));
             if (classLikeType.getTypeArguments().length > 0) {
                 s.append("<");
                 ConeTypeProjection[] typeArguments = classLikeType.getTypeArguments();
@@ -340,7 +400,7 @@ public class KotlinTypeSignatureBuilder implements JavaTypeSignatureBuilder {
                 }
             }
         } else if (symbol.getCallableId().getClassId() != null) {
-            owner = convertClassIdToFqn(symbol.getCallableId().getClassId());
+            owner = symbols.fqn(symbol.getCallableId().getClassId());
             if (owner.contains("<")) {
                 owner = owner.substring(0, owner.indexOf('<'));
             }
@@ -363,7 +423,7 @@ public class KotlinTypeSignatureBuilder implements JavaTypeSignatureBuilder {
                 FirNamedFunctionSymbol resolvedSymbol = (FirNamedFunctionSymbol) ((FirResolvedNamedReference) functionCall.getCalleeReference()).getResolvedSymbol();
                 if (ClassMembersKt.containingClass(resolvedSymbol) != null) {
                     //noinspection DataFlowIssue
-                    owner = signature(LookupTagUtilsKt.toFirRegularClassSymbol(ClassMembersKt.containingClass(resolvedSymbol), firSession), ownerSymbol);
+                    owner = signature(symbols.toFirRegularClassSymbol(ClassMembersKt.containingClass(resolvedSymbol)), ownerSymbol);
                 } else if (resolvedSymbol.getOrigin() == FirDeclarationOrigin.Library.INSTANCE) {
                     if (resolvedSymbol.getFir().getContainerSource() instanceof JvmPackagePartSource) {
                         JvmPackagePartSource source = (JvmPackagePartSource) resolvedSymbol.getFir().getContainerSource();
@@ -463,7 +523,7 @@ public class KotlinTypeSignatureBuilder implements JavaTypeSignatureBuilder {
     @Nullable
     public FirRegularClass convertToRegularClass(@Nullable ConeKotlinType kotlinType) {
         if (kotlinType != null) {
-            FirRegularClassSymbol symbol = TypeUtilsKt.toRegularClassSymbol(kotlinType, firSession);
+            FirRegularClassSymbol symbol = symbols.toRegularClassSymbol(kotlinType);
             if (symbol != null) {
                 return symbol.getFir();
             }
@@ -480,12 +540,40 @@ public class KotlinTypeSignatureBuilder implements JavaTypeSignatureBuilder {
 
     /**
      *  Converts the Kotlin FQN to a {@link org.openrewrite.java.tree.J} style FQN.
+     *  Nested class separators become {@code $}, package separators become {@code .}, nullability markers are dropped,
+     *  and so is the separator before a class in the root package.
      */
     public static String convertKotlinFqToJavaFq(String kotlinFqn) {
-        String cleanedFqn = kotlinFqn
-                .replace(".", "$")
-                .replace("/", ".")
-                .replace("?", "");
-        return cleanedFqn.startsWith(".") ? cleanedFqn.replaceFirst(".", "") : cleanedFqn;
+        int i = 0;
+        while (i < kotlinFqn.length()) {
+            char c = kotlinFqn.charAt(i);
+            if (c == '.' || c == '/' || c == '?') {
+                break;
+            }
+            i++;
+        }
+        if (i == kotlinFqn.length()) {
+            return kotlinFqn;
+        }
+
+        char[] javaFqn = new char[kotlinFqn.length()];
+        kotlinFqn.getChars(0, i, javaFqn, 0);
+        int length = i;
+        boolean leadingSeparator = false;
+        for (; i < kotlinFqn.length(); i++) {
+            char c = kotlinFqn.charAt(i);
+            if (c == '.') {
+                javaFqn[length++] = '$';
+            } else if (c == '/') {
+                if (length == 0 && !leadingSeparator) {
+                    leadingSeparator = true;
+                } else {
+                    javaFqn[length++] = '.';
+                }
+            } else if (c != '?') {
+                javaFqn[length++] = c;
+            }
+        }
+        return new String(javaFqn, 0, length);
     }
 }
@@ -0,0 +1,642 @@
+/*
+ * Copyright 2023 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openrewrite.kotlin;
+
+import org.jetbrains.kotlin.fir.FirSession;
+import org.openrewrite.Incubating;
+import org.openrewrite.Tree;
+import org.openrewrite.internal.lang.Nullable;
+import org.openrewrite.java.internal.JavaTypeCache;
+import org.openrewrite.java.tree.JavaType;
+
+import java.io.*;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.util.*;
+
+/**
+ * The types of the classpath that a parser has mapped, persisted so that a new JVM parsing against an unchanged
+ * classpath starts with them in its type cache instead of mapping the standard library and dependencies again.
+ * <p>
+ * The table is keyed by a fingerprint of the classpath roots and the JDK, like the classpath index, and of the
+ * {@link #libraryRoots() rewrite and Kotlin compiler libraries} that mapped the types. Enums are written by name. Only types
+ * that are entirely made of classes from the classpath are persisted: a type that refers to a class declared in the
+ * parsed sources, directly or through its members, is left out, and so are classes whose members have not been mapped
+ * yet by {@link KotlinParser.Builder#lazyTypeAttribution(boolean) lazy type attribution}.
+ * <p>
+ * Types are written once each, and refer to one another by their position in the table.
+ */
+@Incubating(since = "0.0")
+public final class KotlinTypeTable {
+    private static final int MAGIC = 0x4b545454;
+    private static final int VERSION = 2;
+
+    private static final byte CLASS = 1;
+    private static final byte SHALLOW_CLASS = 2;
+    private static final byte PARAMETERIZED = 3;
+    private static final byte GENERIC_TYPE_VARIABLE = 4;
+    private static final byte METHOD = 5;
+    private static final byte VARIABLE = 6;
+    private static final byte PRIMITIVE = 7;
+    private static final byte UNKNOWN = 8;
+
+    /**
+     * Strings are written in modified UTF-8, which is limited to 65535 bytes, or at least this many characters.
+     */
+    private static final int MAXIMUM_STRING_LENGTH = 65535 / 3;
+
+    private final Path tableFile;
+
+    /**
+     * The types read from the table, which are written again along with the types mapped since.
+     */
+    private final Map<String, JavaType> loaded = new HashMap<>();
+
+    /**
+     * The types mapped by the parser, which are only weakly referenced so that the table does not hold types a
+     * bounded type cache has let go of. Entries are removed once their type is collected.
+     */
+    private final Map<String, MappedType> mapped = new HashMap<>();
+
+    private final ReferenceQueue<JavaType> collected = new ReferenceQueue<>();
+
+    /**
+     * The fully qualified names of the classes that were mapped from the classpath rather than from sources.
+     */
+    private final Set<String> classpathClasses = new HashSet<>();
+
+    private boolean dirty;
+
+    private KotlinTypeTable(Path tableFile) {
+        this.tableFile = tableFile;
+    }
+
+    /**
+     * @param directory   the directory of the tables of every classpath.
+     * @param fingerprint the fingerprint of the classpath and the JDK of the parser.
+     */
+    static KotlinTypeTable load(Path directory, String fingerprint) {
+        KotlinTypeTable table = new KotlinTypeTable(directory.resolve(fingerprint + ".kotlin-type-table"));
+        table.read();
+        return table;
+    }
+
+    /**
+     * Add the types read from the table to a type cache.
+     */
+    void warm(JavaTypeCache typeCache) {
+        // The cache may be shared with parsers that are mapping types into it.
+        synchronized (TypeCacheLock.of(typeCache)) {
+            for (Map.Entry<String, JavaType> entry : loaded.entrySet()) {
+                if (typeCache.get(entry.getKey()) == null) {
+                    typeCache.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    synchronized void record(String signature, JavaType type) {
+        for (Reference<? extends JavaType> ref; (ref = collected.poll()) != null; ) {
+            MappedType collectedType = (MappedType) ref;
+            mapped.remove(collectedType.signature, collectedType);
+        }
+        mapped.put(signature, new MappedType(signature, type, collected));
+        dirty = true;
+    }
+
+    synchronized void classpathClass(String fullyQualifiedName) {
+        classpathClasses.add(fullyQualifiedName);
+    }
+
+    /**
+     * Persist the table with the classpath types mapped since it was loaded. The table is only a cache, so a table
+     * that cannot be written is left as it was.
+     */
+    synchronized void write() {
+        if (!dirty) {
+            return;
+        }
+
+        Map<String, JavaType> entries = new LinkedHashMap<>(loaded);
+        for (Map.Entry<String, MappedType> entry : mapped.entrySet()) {
+            JavaType type = entry.getValue().get();
+            if (type != null && !(type instanceof JavaType.Unknown)) {
+                entries.put(entry.getKey(), type);
+            }
+        }
+
+        Set<JavaType> excluded = excluded(entries.values());
+        Map<String, JavaType> persisted = new LinkedHashMap<>();
+        for (Map.Entry<String, JavaType> entry : entries.entrySet()) {
+            if (!excluded.contains(entry.getValue()) && entry.getKey().length() <= MAXIMUM_STRING_LENGTH) {
+                persisted.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        try {
+            Files.createDirectories(tableFile.getParent());
+            Path temp = Files.createTempFile(tableFile.getParent(), tableFile.getFileName().toString(), ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                new Writer(out).write(persisted);
+            }
+            // Other processes may use the same table, and must never see a partially written one.
+            Files.move(temp, tableFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        } catch (IOException ignored) {
+            // The table will be written by the next parser instead.
+        }
+    }
+
+    /**
+     * @return the types that are not from the classpath, or that refer to such a type, among the types reachable from the roots.
+     */
+    private Set<JavaType> excluded(Collection<JavaType> roots) {
+        Map<JavaType, List<JavaType>> referrers = new IdentityHashMap<>();
+        Set<JavaType> excluded = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<JavaType> unvisited = new ArrayDeque<>();
+        for (JavaType root : roots) {
+            if (!referrers.containsKey(root)) {
+                referrers.put(root, new ArrayList<>());
+                unvisited.push(root);
+            }
+        }
+
+        List<JavaType> references = new ArrayList<>();
+        while (!unvisited.isEmpty()) {
+            JavaType type = unvisited.pop();
+            references.clear();
+            if (!references(type, references)) {
+                excluded.add(type);
+                continue;
+            }
+            for (JavaType reference : references) {
+                List<JavaType> referencedBy = referrers.get(reference);
+                if (referencedBy == null) {
+                    referencedBy = new ArrayList<>();
+                    referrers.put(reference, referencedBy);
+                    unvisited.push(reference);
+                }
+                referencedBy.add(type);
+            }
+        }
+
+        Deque<JavaType> propagate = new ArrayDeque<>(excluded);
+        while (!propagate.isEmpty()) {
+            for (JavaType referrer : referrers.get(propagate.pop())) {
+                if (excluded.add(referrer)) {
+                    propagate.push(referrer);
+                }
+            }
+        }
+        return excluded;
+    }
+
+    /**
+     * Add the types a type refers to.
+     *
+     * @return false when the type itself can not be persisted.
+     */
+    private boolean references(JavaType type, List<JavaType> references) {
+        if (type instanceof JavaType.Primitive || type instanceof JavaType.Unknown) {
+            return true;
+        } else if (type instanceof JavaType.ShallowClass) {
+            return classpathClasses.contains(((JavaType.ShallowClass) type).getFullyQualifiedName());
+        } else if (type instanceof JavaType.Class) {
+            JavaType.Class clazz = (JavaType.Class) type;
+            if (!classpathClasses.contains(clazz.getFullyQualifiedName()) || KotlinTypeMapping.isUnresolved(clazz)) {
+                return false;
+            }
+            references.addAll(clazz.getTypeParameters());
+            addIfNotNull(references, clazz.getSupertype());
+            addIfNotNull(references, clazz.getOwningClass());
+            references.addAll(clazz.getAnnotations());
+            references.addAll(clazz.getInterfaces());
+            references.addAll(clazz.getMembers());
+            references.addAll(clazz.getMethods());
+            return true;
+        } else if (type instanceof JavaType.Parameterized) {
+            JavaType.Parameterized parameterized = (JavaType.Parameterized) type;
+            addIfNotNull(references, parameterized.getType());
+            references.addAll(parameterized.getTypeParameters());
+            return true;
+        } else if (type instanceof JavaType.GenericTypeVariable) {
+            references.addAll(((JavaType.GenericTypeVariable) type).getBounds());
+            return true;
+        } else if (type instanceof JavaType.Method) {
+            JavaType.Method method = (JavaType.Method) type;
+            if (!(method.getDeclaringType() instanceof JavaType.Class)) {
+                return false;
+            }
+            references.add(method.getDeclaringType());
+            addIfNotNull(references, method.getReturnType());
+            references.addAll(method.getParameterTypes());
+            references.addAll(method.getThrownExceptions());
+            references.addAll(method.getAnnotations());
+            return true;
+        } else if (type instanceof JavaType.Variable) {
+            JavaType.Variable variable = (JavaType.Variable) type;
+            if (!(variable.getOwner() instanceof JavaType.Class)) {
+                return false;
+            }
+            references.add(variable.getOwner());
+            addIfNotNull(references, variable.getType());
+            references.addAll(variable.getAnnotations());
+            return true;
+        }
+        return false;
+    }
+
+    private static void addIfNotNull(List<JavaType> references, @Nullable JavaType type) {
+        if (type != null) {
+            references.add(type);
+        }
+    }
+
+    /**
+     * @return the jars or class directories of rewrite and of the Kotlin compiler, which the types of a table are
+     * mapped with and read into, so that a table is only read by the versions of them that wrote it. Null when one of
+     * them cannot be located.
+     */
+    @Nullable
+    static List<File> libraryRoots() {
+        List<File> roots = new ArrayList<>();
+        for (Class<?> library : Arrays.asList(Tree.class, JavaType.class, KotlinTypeTable.class, FirSession.class)) {
+            CodeSource codeSource = library.getProtectionDomain().getCodeSource();
+            if (codeSource == null || codeSource.getLocation() == null) {
+                return null;
+            }
+            try {
+                roots.add(new File(codeSource.getLocation().toURI()));
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                return null;
+            }
+        }
+        return roots;
+    }
+
+    private void read() {
+        if (!Files.isRegularFile(tableFile)) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(tableFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            for (JavaType type : new Reader(in).read(loaded)) {
+                if (type instanceof JavaType.FullyQualified && !(type instanceof JavaType.Unknown)) {
+                    classpathClasses.add(((JavaType.FullyQualified) type).getFullyQualifiedName());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            loaded.clear();
+            classpathClasses.clear();
+        }
+    }
+
+    private static class MappedType extends WeakReference<JavaType> {
+        private final String signature;
+
+        MappedType(String signature, JavaType type, ReferenceQueue<JavaType> queue) {
+            super(type, queue);
+            this.signature = signature;
+        }
+    }
+
+    private static class Writer {
+        private final DataOutputStream out;
+        private final Map<JavaType, Integer> ids = new IdentityHashMap<>();
+        private final List<JavaType> types = new ArrayList<>();
+        private final Map<String, Integer> strings = new HashMap<>();
+        private final List<String> stringTable = new ArrayList<>();
+
+        Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void write(Map<String, JavaType> entries) throws IOException {
+            for (JavaType type : entries.values()) {
+                id(type);
+            }
+            // Number every type reachable from the entries before anything is written, so that the header of each
+            // type can be read before any of the types it refers to.
+            List<JavaType> references = new ArrayList<>();
+            for (int i = 0; i < types.size(); i++) {
+                references.clear();
+                collectReferences(types.get(i), references);
+                for (JavaType reference : references) {
+                    id(reference);
+                }
+            }
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream bodyOut = new DataOutputStream(body);
+            for (JavaType type : types) {
+                writeHeader(bodyOut, type);
+            }
+            for (JavaType type : types) {
+                writeReferences(bodyOut, type);
+            }
+            bodyOut.writeInt(entries.size());
+            for (Map.Entry<String, JavaType> entry : entries.entrySet()) {
+                bodyOut.writeInt(string(entry.getKey()));
+                bodyOut.writeInt(ids.get(entry.getValue()));
+            }
+            bodyOut.flush();
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(stringTable.size());
+            for (String string : stringTable) {
+                out.writeUTF(string);
+            }
+            out.writeInt(types.size());
+            body.writeTo(out);
+        }
+
+        private int id(JavaType type) {
+            Integer id = ids.get(type);
+            if (id == null) {
+                id = types.size();
+                ids.put(type, id);
+                types.add(type);
+            }
+            return id;
+        }
+
+        private int string(@Nullable String string) {
+            if (string == null) {
+                return -1;
+            }
+            Integer id = strings.get(string);
+            if (id == null) {
+                id = stringTable.size();
+                strings.put(string, id);
+                stringTable.add(string);
+            }
+            return id;
+        }
+
+        private void collectReferences(JavaType type, List<JavaType> references) {
+            if (type instanceof JavaType.ShallowClass) {
+                return;
+            } else if (type instanceof JavaType.Class) {
+                JavaType.Class clazz = (JavaType.Class) type;
+                references.addAll(clazz.getTypeParameters());
+                addIfNotNull(references, clazz.getSupertype());
+                addIfNotNull(references, clazz.getOwningClass());
+                references.addAll(clazz.getAnnotations());
+                references.addAll(clazz.getInterfaces());
+                references.addAll(clazz.getMembers());
+                references.addAll(clazz.getMethods());
+            } else if (type instanceof JavaType.Parameterized) {
+                addIfNotNull(references, ((JavaType.Parameterized) type).getType());
+                references.addAll(((JavaType.Parameterized) type).getTypeParameters());
+            } else if (type instanceof JavaType.GenericTypeVariable) {
+                references.addAll(((JavaType.GenericTypeVariable) type).getBounds());
+            } else if (type instanceof JavaType.Method) {
+                JavaType.Method method = (JavaType.Method) type;
+                addIfNotNull(references, method.getDeclaringType());
+                addIfNotNull(references, method.getReturnType());
+                references.addAll(method.getParameterTypes());
+                references.addAll(method.getThrownExceptions());
+                references.addAll(method.getAnnotations());
+            } else if (type instanceof JavaType.Variable) {
+                JavaType.Variable variable = (JavaType.Variable) type;
+                addIfNotNull(references, variable.getOwner());
+                addIfNotNull(references, variable.getType());
+                references.addAll(variable.getAnnotations());
+            }
+        }
+
+        private void writeHeader(DataOutputStream out, JavaType type) throws IOException {
+            if (type instanceof JavaType.ShallowClass) {
+                out.writeByte(SHALLOW_CLASS);
+                out.writeInt(string(((JavaType.ShallowClass) type).getFullyQualifiedName()));
+            } else if (type instanceof JavaType.Class) {
+                JavaType.Class clazz = (JavaType.Class) type;
+                out.writeByte(CLASS);
+                out.writeLong(clazz.getFlagsBitMap());
+                out.writeInt(string(clazz.getFullyQualifiedName()));
+                out.writeInt(string(clazz.getKind().name()));
+            } else if (type instanceof JavaType.Parameterized) {
+                out.writeByte(PARAMETERIZED);
+            } else if (type instanceof JavaType.GenericTypeVariable) {
+                JavaType.GenericTypeVariable generic = (JavaType.GenericTypeVariable) type;
+                out.writeByte(GENERIC_TYPE_VARIABLE);
+                out.writeInt(string(generic.getName()));
+                out.writeInt(string(generic.getVariance().name()));
+            } else if (type instanceof JavaType.Method) {
+                JavaType.Method method = (JavaType.Method) type;
+                out.writeByte(METHOD);
+                out.writeLong(method.getFlagsBitMap());
+                out.writeInt(string(method.getName()));
+                writeStrings(out, method.getParameterNames());
+                writeStrings(out, method.getDefaultValue());
+            } else if (type instanceof JavaType.Variable) {
+                JavaType.Variable variable = (JavaType.Variable) type;
+                out.writeByte(VARIABLE);
+                out.writeLong(variable.getFlagsBitMap());
+                out.writeInt(string(variable.getName()));
+            } else if (type instanceof JavaType.Primitive) {
+                out.writeByte(PRIMITIVE);
+                out.writeInt(string(((JavaType.Primitive) type).name()));
+            } else if (type instanceof JavaType.Unknown) {
+                out.writeByte(UNKNOWN);
+            } else {
+                throw new IllegalStateException("Unexpected type in the type table: " + type.getClass().getName());
+            }
+        }
+
+        private void writeReferences(DataOutputStream out, JavaType type) throws IOException {
+            if (type instanceof JavaType.ShallowClass) {
+                return;
+            } else if (type instanceof JavaType.Class) {
+                JavaType.Class clazz = (JavaType.Class) type;
+                writeIds(out, clazz.getTypeParameters());
+                writeId(out, clazz.getSupertype());
+                writeId(out, clazz.getOwningClass());
+                writeIds(out, clazz.getAnnotations());
+                writeIds(out, clazz.getInterfaces());
+                writeIds(out, clazz.getMembers());
+                writeIds(out, clazz.getMethods());
+            } else if (type instanceof JavaType.Parameterized) {
+                writeId(out, ((JavaType.Parameterized) type).getType());
+                writeIds(out, ((JavaType.Parameterized) type).getTypeParameters());
+            } else if (type instanceof JavaType.GenericTypeVariable) {
+                writeIds(out, ((JavaType.GenericTypeVariable) type).getBounds());
+            } else if (type instanceof JavaType.Method) {
+                JavaType.Method method = (JavaType.Method) type;
+                writeId(out, method.getDeclaringType());
+                writeId(out, method.getReturnType());
+                writeIds(out, method.getParameterTypes());
+                writeIds(out, method.getThrownExceptions());
+                writeIds(out, method.getAnnotations());
+            } else if (type instanceof JavaType.Variable) {
+                JavaType.Variable variable = (JavaType.Variable) type;
+                writeId(out, variable.getOwner());
+                writeId(out, variable.getType());
+                writeIds(out, variable.getAnnotations());
+            }
+        }
+
+        private void writeId(DataOutputStream out, @Nullable JavaType type) throws IOException {
+            out.writeInt(type == null ? -1 : ids.get(type));
+        }
+
+        private void writeIds(DataOutputStream out, List<? extends JavaType> types) throws IOException {
+            out.writeInt(types.size());
+            for (JavaType type : types) {
+                writeId(out, type);
+            }
+        }
+
+        private void writeStrings(DataOutputStream out, @Nullable List<String> strings) throws IOException {
+            if (strings == null) {
+                out.writeInt(-1);
+                return;
+            }
+            out.writeInt(strings.size());
+            for (String string : strings) {
+                out.writeInt(string(string));
+            }
+        }
+    }
+
+    private static class Reader {
+        private final DataInputStream in;
+
+        @Nullable
+        private String[] strings;
+
+        @Nullable
+        private JavaType[] types;
+
+        Reader(DataInputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * @return every type in the table, including those that are only referred to by other types.
+         */
+        JavaType[] read(Map<String, JavaType> entries) throws IOException {
+            strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = in.readUTF();
+            }
+
+            types = new JavaType[in.readInt()];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = readHeader();
+            }
+            for (JavaType type : types) {
+                readReferences(type);
+            }
+
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                entries.put(string(), type());
+            }
+            return types;
+        }
+
+        private JavaType readHeader() throws IOException {
+            byte kind = in.readByte();
+            switch (kind) {
+                case SHALLOW_CLASS:
+                    return JavaType.ShallowClass.build(string());
+                case CLASS:
+                    return new JavaType.Class(null, in.readLong(), string(), JavaType.FullyQualified.Kind.valueOf(string()),
+                            null, null, null, null, null, null, null);
+                case PARAMETERIZED:
+                    return new JavaType.Parameterized(null, null, null);
+                case GENERIC_TYPE_VARIABLE:
+                    return new JavaType.GenericTypeVariable(null, string(), JavaType.GenericTypeVariable.Variance.valueOf(string()), null);
+                case METHOD:
+                    return new JavaType.Method(null, in.readLong(), null, string(), null, strings(), null, null, null, strings());
+                case VARIABLE:
+                    return new JavaType.Variable(null, in.readLong(), string(), null, null, null);
+                case PRIMITIVE:
+                    return JavaType.Primitive.valueOf(string());
+                case UNKNOWN:
+                    return JavaType.Unknown.getInstance();
+                default:
+                    throw new IOException("Unknown kind of type " + kind);
+            }
+        }
+
+        private void readReferences(JavaType type) throws IOException {
+            if (type instanceof JavaType.ShallowClass) {
+                return;
+            } else if (type instanceof JavaType.Class) {
+                ((JavaType.Class) type).unsafeSet(types(), type(), type(), types(), types(), types(), types());
+            } else if (type instanceof JavaType.Parameterized) {
+                JavaType.Parameterized parameterized = (JavaType.Parameterized) type;
+                parameterized.unsafeSet(type(), types());
+            } else if (type instanceof JavaType.GenericTypeVariable) {
+                JavaType.GenericTypeVariable generic = (JavaType.GenericTypeVariable) type;
+                generic.unsafeSet(generic.getName(), generic.getVariance(), types());
+            } else if (type instanceof JavaType.Method) {
+                ((JavaType.Method) type).unsafeSet(type(), type(), types(), types(), types());
+            } else if (type instanceof JavaType.Variable) {
+                ((JavaType.Variable) type).unsafeSet(type(), type(), types());
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        @Nullable
+        private <T extends JavaType> T type() throws IOException {
+            int id = in.readInt();
+            //noinspection ConstantConditions
+            return id < 0 ? null : (T) types[id];
+        }
+
+        private <T extends JavaType> List<T> types() throws IOException {
+            int size = in.readInt();
+            List<T> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(type());
+            }
+            return list;
+        }
+
+        @Nullable
+        private String string() throws IOException {
+            int id = in.readInt();
+            //noinspection ConstantConditions
+            return id < 0 ? null : strings[id];
+        }
+
+        @Nullable
+        private List<String> strings() throws IOException {
+            int size = in.readInt();
+            if (size < 0) {
+                return null;
+            }
+            List<String> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(string());
+            }
+            return list;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2023 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openrewrite.kotlin;
+
+import org.openrewrite.internal.lang.Nullable;
+import org.openrewrite.java.internal.JavaTypeCache;
+import org.openrewrite.java.tree.JavaType;
+
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Guards the reads and writes of a {@link JavaTypeCache} that the type mappings of concurrently mapped sources share,
+ * and tracks the types that are cached before they are complete.
+ * <p>
+ * A type is cached as soon as it is created, so that the types it refers to can refer back to it, and is completed by
+ * the thread that created it once they are mapped. A type mapping that finds a type another thread is still completing
+ * uses it right away and only waits for it once its source is mapped, when it no longer completes types of its own.
+ * Two threads therefore never wait for each other.
+ */
+final class TypeCacheLock {
+    /**
+     * The locks of the type caches in use, which are shared by every parser that maps types into the same cache.
+     */
+    private static final Map<JavaTypeCache, TypeCacheLock> locks = new WeakHashMap<>();
+
+    /**
+     * The types that are not complete yet, and the threads that complete them.
+     */
+    private final Map<JavaType, Thread> incomplete = new IdentityHashMap<>();
+
+    private int waiting;
+
+    private TypeCacheLock() {
+    }
+
+    static TypeCacheLock of(JavaTypeCache typeCache) {
+        synchronized (locks) {
+            return locks.computeIfAbsent(typeCache, c -> new TypeCacheLock());
+        }
+    }
+
+    /**
+     * @param awaited the types that another thread is completing, to which the cached type is added if it is one of them.
+     */
+    @Nullable
+    synchronized <T> T get(JavaTypeCache typeCache, String signature, Collection<JavaType> awaited) {
+        T type = typeCache.get(signature);
+        if (type != null) {
+            awaitedBy((JavaType) type, awaited);
+        }
+        return type;
+    }
+
+    /**
+     * @param complete false when the calling thread completes the type after caching it, and then calls {@link #completed(JavaType)}.
+     * @return null when the type was cached, or the type that was cached with the same signature first.
+     */
+    @Nullable
+    synchronized <T> T putIfAbsent(JavaTypeCache typeCache, String signature, JavaType type, boolean complete,
+                                   Collection<JavaType> awaited) {
+        T cached = typeCache.get(signature);
+        if (cached != null) {
+            awaitedBy((JavaType) cached, awaited);
+            return cached;
+        }
+        typeCache.put(signature, type);
+        if (!complete) {
+            incomplete.put(type, Thread.currentThread());
+        }
+        return null;
+    }
+
+    /**
+     * Mark a cached type as incomplete again while the calling thread adds to it.
+     *
+     * @return null when the type was claimed, or the thread that is completing it.
+     */
+    @Nullable
+    synchronized Thread claim(JavaType type) {
+        Thread completing = incomplete.get(type);
+        if (completing == null) {
+            incomplete.put(type, Thread.currentThread());
+        }
+        return completing;
+    }
+
+    synchronized void completed(JavaType type) {
+        incomplete.remove(type);
+        if (waiting > 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wait for other threads to complete the types. The calling thread must not be completing any types itself.
+     */
+    synchronized void await(Collection<JavaType> types) throws InterruptedException {
+        waiting++;
+        try {
+            for (JavaType type : types) {
+                while (incomplete.containsKey(type)) {
+                    wait();
+                }
+            }
+        } finally {
+            waiting--;
+        }
+    }
+
+    private void awaitedBy(JavaType type, Collection<JavaType> awaited) {
+        Thread completing = incomplete.get(type);
+        if (completing != null && completing != Thread.currentThread()) {
+            awaited.add(type);
+        }
+    }
+}
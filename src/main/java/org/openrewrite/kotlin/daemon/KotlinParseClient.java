@@ -0,0 +1,123 @@
+/*
+ * Copyright 2023 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openrewrite.kotlin.daemon;
+
+import lombok.Value;
+import org.openrewrite.internal.lang.Nullable;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends requests to a {@link KotlinParseDaemon} listening on the loopback interface. Each request uses its own connection.
+ */
+public class KotlinParseClient {
+    private final int port;
+    private final byte[] secret;
+
+    /**
+     * @param secret the secret of the daemon, which it writes to its port file.
+     */
+    public KotlinParseClient(int port, byte[] secret) {
+        this.port = port;
+        this.secret = secret.clone();
+    }
+
+    /**
+     * @param portFile the port file of a running daemon, see {@link KotlinParseDaemon.Builder#portFile(Path)}.
+     */
+    public static KotlinParseClient fromPortFile(Path portFile) throws IOException {
+        List<String> lines = Files.readAllLines(portFile, StandardCharsets.UTF_8);
+        if (lines.size() < 2) {
+            throw new IOException("The port file " + portFile + " is incomplete.");
+        }
+        try {
+            return new KotlinParseClient(Integer.parseInt(lines.get(0).trim()), Base64.getDecoder().decode(lines.get(1).trim()));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("The port file " + portFile + " is malformed.", e);
+        }
+    }
+
+    /**
+     * @param sources the text of each source, by source path.
+     * @return one result per source, in the iteration order of the map.
+     */
+    public List<ParseResult> parse(Map<Path, String> sources) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            out.writeInt(Protocol.VERSION);
+            Protocol.writeSecret(out, secret);
+            out.writeByte(Protocol.PARSE);
+            out.writeInt(sources.size());
+            for (Map.Entry<Path, String> source : sources.entrySet()) {
+                Protocol.writeString(out, source.getKey().toString());
+                Protocol.writeString(out, source.getValue());
+            }
+            out.flush();
+
+            int count = in.readInt();
+            List<ParseResult> results = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Path sourcePath = Paths.get(Protocol.readString(in));
+                boolean parsed = in.readBoolean();
+                String text = Protocol.readString(in);
+                results.add(parsed ?
+                        new ParseResult(sourcePath, text, null) :
+                        new ParseResult(sourcePath, null, text));
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Ask the daemon to stop. It finishes the requests it is processing first.
+     */
+    public void shutdown() throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            out.writeInt(Protocol.VERSION);
+            Protocol.writeSecret(out, secret);
+            out.writeByte(Protocol.SHUTDOWN);
+            out.flush();
+            in.readBoolean();
+        }
+    }
+
+    @Value
+    public static class ParseResult {
+        Path sourcePath;
+
+        /**
+         * The printed LST, or null when the source could not be parsed.
+         */
+        @Nullable
+        String printed;
+
+        @Nullable
+        String error;
+    }
+}
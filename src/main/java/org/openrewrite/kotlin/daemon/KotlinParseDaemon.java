@@ -0,0 +1,517 @@
+/*
+ * Copyright 2023 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openrewrite.kotlin.daemon;
+
+import org.openrewrite.ExecutionContext;
+import org.openrewrite.InMemoryExecutionContext;
+import org.openrewrite.ParseExceptionResult;
+import org.openrewrite.Parser;
+import org.openrewrite.SourceFile;
+import org.openrewrite.internal.lang.Nullable;
+import org.openrewrite.java.internal.JavaTypeCache;
+import org.openrewrite.kotlin.KotlinParser;
+import org.openrewrite.tree.ParsingExecutionContextView;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Keeps a {@link KotlinParser} warm between parse requests received on a loopback socket, so that callers do not pay for
+ * compiler class loading, JIT warm-up and compiler environment creation on every parse.
+ * <p>
+ * The parser keeps its compiler environments in a pool and shares one type cache between requests. Requests are served
+ * concurrently, and answered with the printed LSTs of the sources (see {@link Protocol}). The daemon stops by itself once
+ * no request has been received for the idle timeout. When the heap remains occupied above the memory pressure threshold
+ * after a garbage collection, the parser is recreated with an empty type cache once the requests in progress complete.
+ * <p>
+ * The daemon writes the port it listens on and the secret that requests must carry to its port file, which only the
+ * user running the daemon can read (see {@link KotlinParseClient#fromPortFile(Path)}).
+ */
+public class KotlinParseDaemon implements AutoCloseable {
+    private final Supplier<KotlinParser.Builder> parserBuilder;
+    private final int requestedPort;
+    private final int maximumConcurrentRequests;
+    private final long idleTimeoutNanos;
+    private final int readTimeoutMillis;
+    private final double memoryPressureThreshold;
+
+    @Nullable
+    private final Path portFile;
+
+    private final byte[] secret = new byte[Protocol.SECRET_LENGTH];
+
+    /**
+     * Requests hold the read lock while they use the parser, and restarts hold the write lock while they replace it.
+     */
+    private final ReadWriteLock parserLock = new ReentrantReadWriteLock();
+    private final AtomicInteger activeRequests = new AtomicInteger();
+    private final AtomicInteger restarts = new AtomicInteger();
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    private volatile long lastActivity = System.nanoTime();
+    private volatile boolean closed;
+
+    @Nullable
+    private KotlinParser parser;
+
+    @Nullable
+    private ServerSocket serverSocket;
+
+    @Nullable
+    private ExecutorService connections;
+
+    @Nullable
+    private ScheduledExecutorService idleMonitor;
+
+    private KotlinParseDaemon(Supplier<KotlinParser.Builder> parserBuilder, int port, int maximumConcurrentRequests,
+                              Duration idleTimeout, Duration readTimeout, double memoryPressureThreshold, @Nullable Path portFile) {
+        this.parserBuilder = parserBuilder;
+        this.requestedPort = port;
+        this.maximumConcurrentRequests = maximumConcurrentRequests;
+        this.idleTimeoutNanos = idleTimeout.toNanos();
+        this.readTimeoutMillis = (int) Math.min(Integer.MAX_VALUE, Math.max(1, readTimeout.toMillis()));
+        this.memoryPressureThreshold = memoryPressureThreshold;
+        this.portFile = portFile;
+        new SecureRandom().nextBytes(secret);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Start the daemon with the arguments {@code [port] [idle timeout in minutes] [port file]}. The port file defaults
+     * to {@code ~/.rewrite/kotlin-parse-daemon.port}.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Builder builder = builder();
+        if (args.length > 0) {
+            builder.port(Integer.parseInt(args[0]));
+        }
+        if (args.length > 1) {
+            builder.idleTimeout(Duration.ofMinutes(Long.parseLong(args[1])));
+        }
+        builder.portFile(args.length > 2 ? Paths.get(args[2]) :
+                Paths.get(System.getProperty("user.home"), ".rewrite", "kotlin-parse-daemon.port"));
+        try (KotlinParseDaemon daemon = builder.build()) {
+            daemon.start();
+            daemon.awaitTermination();
+        }
+    }
+
+    /**
+     * @return the port the daemon listens on.
+     */
+    public synchronized int start() throws IOException {
+        if (serverSocket != null || closed) {
+            throw new IllegalStateException("The Kotlin parse daemon has already been started.");
+        }
+        parser = newParser();
+        serverSocket = new ServerSocket(requestedPort, 50, InetAddress.getLoopbackAddress());
+        connections = Executors.newFixedThreadPool(maximumConcurrentRequests, daemonThreads("kotlin-parse-daemon-connection"));
+        idleMonitor = Executors.newSingleThreadScheduledExecutor(daemonThreads("kotlin-parse-daemon-idle-monitor"));
+
+        long checkEveryNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(10), idleTimeoutNanos / 4);
+        idleMonitor.scheduleWithFixedDelay(this::closeIfIdle, checkEveryNanos, checkEveryNanos, TimeUnit.NANOSECONDS);
+
+        ServerSocket listening = serverSocket;
+        Thread acceptor = new Thread(() -> accept(listening), "kotlin-parse-daemon-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        int port = serverSocket.getLocalPort();
+        if (portFile != null) {
+            writePortFile(portFile, port);
+        }
+        return port;
+    }
+
+    /**
+     * The file is written next to the port file and then moved over it, so that a client never reads a partial file.
+     * Temporary files are only readable by their owner.
+     */
+    private void writePortFile(Path portFile, int port) throws IOException {
+        Path directory = portFile.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path written = Files.createTempFile(directory, portFile.getFileName().toString(), ".tmp");
+        try {
+            Files.write(written, (port + "\n" + Base64.getEncoder().encodeToString(secret) + "\n").getBytes(StandardCharsets.UTF_8));
+            Files.move(written, portFile, REPLACE_EXISTING, ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(written);
+        }
+    }
+
+    /**
+     * @return the secret that requests must carry, which is also written to the port file.
+     */
+    byte[] getSecret() {
+        return secret.clone();
+    }
+
+    /**
+     * Wait until the daemon has been closed, either explicitly, by a shutdown request or after being idle.
+     */
+    public void awaitTermination() throws InterruptedException {
+        terminated.await();
+    }
+
+    public boolean awaitTermination(Duration timeout) throws InterruptedException {
+        return terminated.await(timeout.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the number of times the parser was recreated because of memory pressure.
+     */
+    public int getRestarts() {
+        return restarts.get();
+    }
+
+    private void accept(ServerSocket listening) {
+        while (!closed) {
+            try {
+                Socket socket = listening.accept();
+                lastActivity = System.nanoTime();
+                // A client that stops sending must not hold one of the connection threads forever.
+                socket.setSoTimeout(readTimeoutMillis);
+                ExecutorService executor = connections;
+                if (executor == null) {
+                    socket.close();
+                    continue;
+                }
+                executor.execute(() -> serve(socket));
+            } catch (SocketException | RejectedExecutionException e) {
+                // The server socket or the executor was closed.
+                return;
+            } catch (IOException ignored) {
+                // Keep accepting connections.
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            while (true) {
+                int version;
+                try {
+                    version = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (version != Protocol.VERSION || !Protocol.readSecret(in, secret)) {
+                    return;
+                }
+
+                byte command = in.readByte();
+                if (command == Protocol.PARSE) {
+                    activeRequests.incrementAndGet();
+                    try {
+                        parse(in, out);
+                    } finally {
+                        lastActivity = System.nanoTime();
+                        activeRequests.decrementAndGet();
+                    }
+                    out.flush();
+                    restartIfUnderMemoryPressure();
+                } else if (command == Protocol.SHUTDOWN) {
+                    out.writeBoolean(true);
+                    out.flush();
+                    close();
+                    return;
+                } else {
+                    return;
+                }
+            }
+        } catch (IOException ignored) {
+            // The client went away.
+        }
+    }
+
+    private void parse(DataInputStream in, DataOutputStream out) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > Protocol.MAXIMUM_SOURCES) {
+            throw new IOException("Invalid number of sources " + count);
+        }
+        List<Parser.Input> inputs = new ArrayList<>(count);
+        int remainingBytes = Protocol.MAXIMUM_REQUEST_BYTES;
+        for (int i = 0; i < count; i++) {
+            byte[] sourcePath = Protocol.readBytes(in, remainingBytes);
+            remainingBytes -= sourcePath.length;
+            byte[] source = Protocol.readBytes(in, remainingBytes);
+            remainingBytes -= source.length;
+            inputs.add(new Parser.Input(Paths.get(new String(sourcePath, StandardCharsets.UTF_8)), () -> new ByteArrayInputStream(source)));
+        }
+
+        // Sources that fail on their own are reported with a ParseExceptionResult, so these are the errors of a batch
+        // that failed as a whole.
+        List<Throwable> errors = new ArrayList<>();
+        ExecutionContext ctx = new InMemoryExecutionContext(errors::add);
+        Map<Parser.Input, SourceFile> parsed = new IdentityHashMap<>();
+        ParsingExecutionContextView.view(ctx).setParsingListener(parsed::put);
+
+        parserLock.readLock().lock();
+        try {
+            KotlinParser current = parser;
+            if (current == null) {
+                throw new IOException("The Kotlin parse daemon has been closed.");
+            }
+            current.parseInputs(inputs, null, ctx);
+        } catch (Throwable t) {
+            errors.add(t);
+        } finally {
+            parserLock.readLock().unlock();
+        }
+
+        out.writeInt(inputs.size());
+        for (Parser.Input input : inputs) {
+            Protocol.writeString(out, input.getPath().toString());
+            SourceFile sourceFile = parsed.get(input);
+            ParseExceptionResult failure = sourceFile == null ? null :
+                    sourceFile.getMarkers().findFirst(ParseExceptionResult.class).orElse(null);
+            if (sourceFile != null && failure == null) {
+                out.writeBoolean(true);
+                Protocol.writeString(out, sourceFile.printAll());
+            } else {
+                out.writeBoolean(false);
+                Protocol.writeString(out, failure != null ? failure.getMessage() : describe(errors));
+            }
+        }
+    }
+
+    private static String describe(List<Throwable> errors) {
+        if (errors.isEmpty()) {
+            return "The source could not be compiled.";
+        }
+        StringJoiner messages = new StringJoiner("\n");
+        for (Throwable error : errors) {
+            messages.add(error.toString());
+        }
+        return messages.toString();
+    }
+
+    private void restartIfUnderMemoryPressure() {
+        if (!isUnderMemoryPressure() || !parserLock.writeLock().tryLock()) {
+            // Another request is restarting the parser, or will check again once it completes.
+            return;
+        }
+        try {
+            if (closed || !isUnderMemoryPressure()) {
+                return;
+            }
+            KotlinParser previous = parser;
+            parser = null;
+            if (previous != null) {
+                previous.close();
+            }
+            parser = newParser();
+            restarts.incrementAndGet();
+        } finally {
+            parserLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return true when a heap pool is occupied above the threshold after its last collection, so the memory is in use
+     * rather than uncollected garbage.
+     */
+    private boolean isUnderMemoryPressure() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP || !pool.isCollectionUsageThresholdSupported()) {
+                continue;
+            }
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage != null && usage.getMax() > 0 && (double) usage.getUsed() / usage.getMax() >= memoryPressureThreshold) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private KotlinParser newParser() {
+        return parserBuilder.get()
+                .typeCache(new JavaTypeCache())
+                .pooledEnvironments(maximumConcurrentRequests, Duration.ofNanos(idleTimeoutNanos))
+                .build();
+    }
+
+    private void closeIfIdle() {
+        if (activeRequests.get() == 0 && System.nanoTime() - lastActivity > idleTimeoutNanos) {
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        ServerSocket listening;
+        ExecutorService executor;
+        ScheduledExecutorService monitor;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            listening = serverSocket;
+            executor = connections;
+            monitor = idleMonitor;
+        }
+
+        if (listening != null) {
+            try {
+                listening.close();
+            } catch (IOException ignored) {
+            }
+        }
+        if (monitor != null) {
+            monitor.shutdownNow();
+        }
+        if (executor != null) {
+            // Let the requests in progress complete, and close the connections waiting for their next request.
+            executor.shutdown();
+        }
+        if (portFile != null) {
+            try {
+                Files.deleteIfExists(portFile);
+            } catch (IOException ignored) {
+            }
+        }
+
+        // The parser is closed once no request uses it anymore.
+        Thread closer = new Thread(() -> {
+            parserLock.writeLock().lock();
+            try {
+                if (parser != null) {
+                    parser.close();
+                    parser = null;
+                }
+            } finally {
+                parserLock.writeLock().unlock();
+                terminated.countDown();
+            }
+        }, "kotlin-parse-daemon-shutdown");
+        closer.setDaemon(true);
+        closer.start();
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    public static class Builder {
+        private Supplier<KotlinParser.Builder> parserBuilder = KotlinParser::builder;
+        private int port;
+        private int maximumConcurrentRequests = Math.max(1, Runtime.getRuntime().availableProcessors());
+        private Duration idleTimeout = Duration.ofMinutes(30);
+        private Duration readTimeout = Duration.ofMinutes(1);
+        private double memoryPressureThreshold = 0.85;
+
+        @Nullable
+        private Path portFile;
+
+        /**
+         * @param parserBuilder supplies a new builder each time the parser is created. The daemon sets the type cache and the environment pool.
+         */
+        public Builder parser(Supplier<KotlinParser.Builder> parserBuilder) {
+            this.parserBuilder = parserBuilder;
+            return this;
+        }
+
+        /**
+         * @param port the loopback port to listen on, or zero to pick a free port.
+         */
+        public Builder port(int port) {
+            this.port = port;
+            return this;
+        }
+
+        public Builder maximumConcurrentRequests(int maximumConcurrentRequests) {
+            if (maximumConcurrentRequests < 1) {
+                throw new IllegalArgumentException("The daemon must serve at least one request at a time, but maximumConcurrentRequests was " + maximumConcurrentRequests);
+            }
+            this.maximumConcurrentRequests = maximumConcurrentRequests;
+            return this;
+        }
+
+        public Builder idleTimeout(Duration idleTimeout) {
+            if (idleTimeout.isNegative() || idleTimeout.isZero()) {
+                throw new IllegalArgumentException("The idle timeout must be positive, but was " + idleTimeout);
+            }
+            this.idleTimeout = idleTimeout;
+            return this;
+        }
+
+        /**
+         * @param readTimeout how long the daemon waits for the next bytes of a request before it closes the connection.
+         */
+        public Builder readTimeout(Duration readTimeout) {
+            if (readTimeout.isNegative() || readTimeout.isZero()) {
+                throw new IllegalArgumentException("The read timeout must be positive, but was " + readTimeout);
+            }
+            this.readTimeout = readTimeout;
+            return this;
+        }
+
+        /**
+         * @param memoryPressureThreshold the fraction of a heap pool occupied after a garbage collection above which the
+         *                                parser and its type cache are recreated.
+         */
+        public Builder memoryPressureThreshold(double memoryPressureThreshold) {
+            this.memoryPressureThreshold = memoryPressureThreshold;
+            return this;
+        }
+
+        /**
+         * @param portFile the file the daemon writes its port and secret to once it listens, and deletes when it stops.
+         */
+        public Builder portFile(Path portFile) {
+            this.portFile = portFile;
+            return this;
+        }
+
+        public KotlinParseDaemon build() {
+            return new KotlinParseDaemon(parserBuilder, port, maximumConcurrentRequests, idleTimeout, readTimeout,
+                    memoryPressureThreshold, portFile);
+        }
+    }
+}
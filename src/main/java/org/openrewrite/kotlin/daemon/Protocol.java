@@ -0,0 +1,89 @@
+/*
+ * Copyright 2023 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openrewrite.kotlin.daemon;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * The framing shared by {@link KotlinParseDaemon} and {@link KotlinParseClient}.
+ * <p>
+ * Every request starts with {@link #VERSION}, the secret of the daemon and a command. The secret is generated when the
+ * daemon starts and is only shared through its port file, so that other users of the machine can not have the daemon
+ * read their sources with its permissions. A {@link #PARSE} request is followed by the number of
+ * sources and, for each source, its path and text. The response holds one result per source, in request order:
+ * its path, whether it was parsed, and either the printed LST or the reason it could not be parsed.
+ * A {@link #SHUTDOWN} request is answered with a single boolean before the daemon stops.
+ */
+final class Protocol {
+    static final int VERSION = 2;
+
+    static final int SECRET_LENGTH = 32;
+
+    static final byte PARSE = 1;
+    static final byte SHUTDOWN = 2;
+
+    /**
+     * The most sources and bytes of paths and sources a daemon reads in one request, so that a malformed frame can
+     * not make it allocate an arbitrary amount of memory.
+     */
+    static final int MAXIMUM_SOURCES = 100_000;
+    static final int MAXIMUM_REQUEST_BYTES = 256 * 1024 * 1024;
+
+    private Protocol() {
+    }
+
+    static void writeSecret(DataOutputStream out, byte[] secret) throws IOException {
+        out.writeInt(secret.length);
+        out.write(secret);
+    }
+
+    /**
+     * @return true when the request carries the secret, compared in constant time.
+     */
+    static boolean readSecret(DataInputStream in, byte[] secret) throws IOException {
+        return MessageDigest.isEqual(readBytes(in, SECRET_LENGTH), secret);
+    }
+
+    /**
+     * Strings are written as length-prefixed UTF-8, since sources may exceed the 64KB limit of modified UTF-8.
+     */
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in, Integer.MAX_VALUE), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the UTF-8 bytes of a string of at most {@code maximumLength} bytes.
+     */
+    static byte[] readBytes(DataInputStream in, int maximumLength) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > maximumLength) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2023 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openrewrite.kotlin.internal;
+
+import java.util.Arrays;
+
+/**
+ * The ranges of the comments in the source of a file, found in a single pass when the file is mapped.
+ * <p>
+ * Searching for a delimiter with the index jumps over comments instead of tracking the comment state one character at
+ * a time from the cursor. The pass skips string and character literals, including the expressions of string templates,
+ * so that {@code //} in a string such as {@code "https://"} does not start a comment. Block comments do not nest, like
+ * in {@link org.openrewrite.java.tree.Space#format(String)}.
+ */
+final class CommentIndex {
+    private final String source;
+
+    /**
+     * Sorted and non-overlapping. A comment spans from its start to its end, exclusive, and the end of a single-line
+     * comment is the line break that terminates it.
+     */
+    private final int[] starts;
+    private final int[] ends;
+    private final int count;
+
+    CommentIndex(String source) {
+        this.source = source;
+
+        int[] starts = new int[16];
+        int[] ends = new int[16];
+        int count = 0;
+
+        // The brace depth of each string template expression that is open, innermost last.
+        int[] templateDepths = new int[8];
+        int templates = 0;
+
+        int length = source.length();
+        int i = 0;
+        while (i < length) {
+            char c = source.charAt(i);
+            int next = i + 1 < length ? source.charAt(i + 1) : -1;
+            if (c == '/' && (next == '/' || next == '*')) {
+                int end;
+                if (next == '/') {
+                    end = source.indexOf('\n', i + 2);
+                    end = end < 0 ? length : end;
+                } else {
+                    end = source.indexOf("*/", i + 2);
+                    end = end < 0 ? length : end + 2;
+                }
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                    ends = Arrays.copyOf(ends, count * 2);
+                }
+                starts[count] = i;
+                ends[count] = end;
+                count++;
+                i = end;
+            } else if (c == '"') {
+                boolean raw = source.startsWith("\"\"\"", i);
+                i = skipString(i + (raw ? 3 : 1), raw);
+                if (i < length && source.charAt(i) == '$') {
+                    // The string continues after a template expression.
+                    if (templates == templateDepths.length) {
+                        templateDepths = Arrays.copyOf(templateDepths, templates * 2);
+                    }
+                    templateDepths[templates++] = raw ? -1 : 1;
+                    i += 2;
+                }
+            } else if (c == '\'') {
+                i = skipCharacter(i + 1);
+            } else if (templates > 0 && c == '{') {
+                templateDepths[templates - 1] += templateDepths[templates - 1] < 0 ? -1 : 1;
+                i++;
+            } else if (templates > 0 && c == '}') {
+                int depth = templateDepths[templates - 1];
+                if (depth == 1 || depth == -1) {
+                    // The end of the template expression, so the string it is part of continues.
+                    boolean raw = depth < 0;
+                    templates--;
+                    i = skipString(i + 1, raw);
+                    if (i < length && source.charAt(i) == '$') {
+                        templateDepths[templates++] = raw ? -1 : 1;
+                        i += 2;
+                    }
+                } else {
+                    templateDepths[templates - 1] -= depth < 0 ? -1 : 1;
+                    i++;
+                }
+            } else {
+                i++;
+            }
+        }
+
+        this.starts = starts;
+        this.ends = ends;
+        this.count = count;
+    }
+
+    /**
+     * @return the index after the closing quotes of a string literal, or the index of the {@code $} of a
+     * {@code ${} template expression in it.
+     */
+    private int skipString(int i, boolean raw) {
+        int length = source.length();
+        while (i < length) {
+            char c = source.charAt(i);
+            if (c == '\\' && !raw) {
+                i += 2;
+            } else if (c == '$' && i + 1 < length && source.charAt(i + 1) == '{') {
+                return i;
+            } else if (c == '"' && (!raw || source.startsWith("\"\"\"", i))) {
+                if (raw) {
+                    // A raw string may end with additional quotes, which are part of its content.
+                    i += 3;
+                    while (i < length && source.charAt(i) == '"') {
+                        i++;
+                    }
+                    return i;
+                }
+                return i + 1;
+            } else if (c == '\n' && !raw) {
+                // An unterminated string literal ends with its line.
+                return i;
+            } else {
+                i++;
+            }
+        }
+        return length;
+    }
+
+    private int skipCharacter(int i) {
+        int length = source.length();
+        while (i < length) {
+            char c = source.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == '\'') {
+                return i + 1;
+            } else if (c == '\n') {
+                return i;
+            } else {
+                i++;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @param from  the index to search from. A comment that starts before it is not considered to contain it.
+     * @param delim the delimiter to find outside of comments.
+     * @param stop  a character that ends the search when it is found outside of comments before the delimiter.
+     * @return the index of the delimiter, or -1 when it is not found or when the stop character comes first.
+     */
+    int indexOf(int from, String delim, int stop) {
+        // The delimiter is only searched for before the stop character, so that a delimiter that is absent, like the
+        // semicolon after the entries of most enums, does not cost a scan to the end of the file.
+        int end = source.length();
+        if (stop >= 0) {
+            int stopIndex = indexOfOutsideComments(from, stop);
+            if (stopIndex >= 0) {
+                end = stopIndex;
+            }
+        }
+
+        int searchFrom = from;
+        while (true) {
+            int found = indexOf(delim, searchFrom, end);
+            if (found < 0) {
+                return -1;
+            }
+
+            int comment = commentContaining(found, from);
+            if (comment < 0) {
+                return found;
+            }
+            searchFrom = ends[comment];
+        }
+    }
+
+    private int indexOfOutsideComments(int from, int c) {
+        int searchFrom = from;
+        while (true) {
+            int found = source.indexOf(c, searchFrom);
+            if (found < 0) {
+                return -1;
+            }
+
+            int comment = commentContaining(found, from);
+            if (comment < 0) {
+                return found;
+            }
+            searchFrom = ends[comment];
+        }
+    }
+
+    /**
+     * @return the index of the delimiter that starts at or after {@code from} and before {@code end}, or -1.
+     */
+    private int indexOf(String delim, int from, int end) {
+        char first = delim.charAt(0);
+        for (int i = from; i < end; i++) {
+            if (source.charAt(i) == first && source.startsWith(delim, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true when the source from {@code from} to {@code to}, exclusive, holds only whitespace and comments.
+     */
+    boolean isWhitespaceOrComments(int from, int to) {
+        // Prefixes are short, so the range is walked, jumping over the comments in it, rather than indexed up front.
+        int i = from;
+        int comment = firstCommentStartingAtOrAfter(from + 1) - 1;
+        if (comment >= 0 && ends[comment] > from) {
+            i = ends[comment];
+        }
+        comment++;
+        while (i < to) {
+            if (comment < count && starts[comment] == i) {
+                i = ends[comment++];
+            } else if (Character.isWhitespace(source.charAt(i))) {
+                i++;
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the index of the first character at or after {@code from} that is neither whitespace nor part of a comment.
+     */
+    int indexOfNextNonWhitespace(int from) {
+        int length = source.length();
+        int i = from;
+        int comment = firstCommentStartingAtOrAfter(from);
+        while (i < length) {
+            if (comment < count && starts[comment] == i) {
+                i = ends[comment++];
+            } else if (Character.isWhitespace(source.charAt(i))) {
+                i++;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    private int commentContaining(int index, int from) {
+        int comment = firstCommentStartingAtOrAfter(index + 1) - 1;
+        if (comment >= 0 && starts[comment] >= from && index < ends[comment]) {
+            return comment;
+        }
+        return -1;
+    }
+
+    private int firstCommentStartingAtOrAfter(int index) {
+        int i = Arrays.binarySearch(starts, 0, count, index);
+        return i >= 0 ? i : -i - 1;
+    }
+}
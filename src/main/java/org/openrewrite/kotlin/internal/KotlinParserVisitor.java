@@ -29,7 +29,6 @@ import org.jetbrains.kotlin.fir.declarations.impl.FirPrimaryConstructor;
 import org.jetbrains.kotlin.fir.expressions.*;
 import org.jetbrains.kotlin.fir.expressions.impl.*;
 import org.jetbrains.kotlin.fir.references.*;
-import org.jetbrains.kotlin.fir.resolve.LookupTagUtilsKt;
 import org.jetbrains.kotlin.fir.symbols.ConeClassLikeLookupTag;
 import org.jetbrains.kotlin.fir.symbols.FirBasedSymbol;
 import org.jetbrains.kotlin.fir.symbols.impl.*;
@@ -40,14 +39,19 @@ import org.jetbrains.kotlin.fir.visitors.FirDefaultVisitor;
 import org.jetbrains.kotlin.psi.KtNameReferenceExpression;
 import org.openrewrite.ExecutionContext;
 import org.openrewrite.FileAttributes;
-import org.openrewrite.internal.EncodingDetectingInputStream;
+import org.openrewrite.Tree;
 import org.openrewrite.internal.ListUtils;
 import org.openrewrite.internal.lang.Nullable;
 import org.openrewrite.java.internal.JavaTypeCache;
 import org.openrewrite.java.marker.ImplicitReturn;
 import org.openrewrite.java.marker.OmitParentheses;
 import org.openrewrite.java.tree.*;
+import org.openrewrite.kotlin.FirSymbolCache;
+import org.openrewrite.kotlin.KotlinLazyClasses;
+import org.openrewrite.kotlin.KotlinParseMetrics;
 import org.openrewrite.kotlin.KotlinTypeMapping;
+import org.openrewrite.kotlin.KotlinTypeSignatureBuilder;
+import org.openrewrite.kotlin.KotlinTypeTable;
 import org.openrewrite.kotlin.marker.*;
 import org.openrewrite.kotlin.tree.K;
 import org.openrewrite.marker.Markers;
@@ -61,8 +65,6 @@ import java.util.regex.Pattern;
 
 import static java.lang.Math.max;
 import static java.util.Collections.*;
-import static org.openrewrite.Tree.randomId;
-import static org.openrewrite.internal.StringUtils.indexOfNextNonWhitespace;
 import static org.openrewrite.java.tree.Space.EMPTY;
 import static org.openrewrite.java.tree.Space.format;
 
@@ -77,8 +79,22 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
     private final boolean charsetBomMarked;
     private final KotlinTypeMapping typeMapping;
     private final ExecutionContext ctx;
-    private final FirSession firSession;
-    private int cursor;
+    private final FirSymbolCache symbols;
+    private final SourceCursor cursor;
+    private final CommentIndex comments;
+
+    /**
+     * When ids are deterministic, each id of the file combines a hash of its path and source with a count of the ids
+     * created before it.
+     */
+    private final boolean deterministicIds;
+
+    /**
+     * Sources are parsed without a classpath, so references to declarations outside of the Kotlin standard library are unresolved.
+     */
+    private final boolean syntaxOnly;
+    private final long idPrefix;
+    private long idCount;
 
     // Associate top-level function and property declarations to the file.
     @Nullable
@@ -86,15 +102,23 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
 
     private static final Pattern whitespaceSuffixPattern = Pattern.compile("\\s*[^\\s]+(\\s*)");
 
-    public KotlinParserVisitor(Path sourcePath, @Nullable FileAttributes fileAttributes, EncodingDetectingInputStream source, JavaTypeCache typeCache, FirSession firSession, ExecutionContext ctx) {
+    public KotlinParserVisitor(Path sourcePath, @Nullable FileAttributes fileAttributes, String source, Charset charset, boolean charsetBomMarked,
+                               JavaTypeCache typeCache, KotlinTypeSignatureBuilder signatures, @Nullable KotlinParseMetrics metrics, boolean deterministicIds,
+                               @Nullable KotlinLazyClasses lazyClasses, boolean syntaxOnly, @Nullable KotlinTypeTable typeTable, @Nullable Set<String> referencedMembers,
+                               ExecutionContext ctx) {
         this.sourcePath = sourcePath;
         this.fileAttributes = fileAttributes;
-        this.source = source.readFully();
-        this.charset = source.getCharset();
-        this.charsetBomMarked = source.isCharsetBomMarked();
-        this.typeMapping = new KotlinTypeMapping(typeCache, firSession);
+        this.source = source;
+        this.cursor = new SourceCursor(source);
+        this.comments = new CommentIndex(source);
+        this.deterministicIds = deterministicIds;
+        this.syntaxOnly = syntaxOnly;
+        this.idPrefix = deterministicIds ? hash(sourcePath.toString(), source) : 0;
+        this.charset = charset;
+        this.charsetBomMarked = charsetBomMarked;
+        this.typeMapping = new KotlinTypeMapping(typeCache, signatures, metrics, lazyClasses, syntaxOnly, typeTable, referencedMembers);
         this.ctx = ctx;
-        this.firSession = firSession;
+        this.symbols = signatures.getSymbols();
     }
 
     @Override
@@ -118,9 +142,10 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
             Statement statement = (Statement) visitElement(declaration, ctx);
             statements.add(maybeSemicolon(statement));
         }
+        typeMapping.awaitIncompleteTypes();
 
         return new K.CompilationUnit(
-                randomId(),
+                nextId(),
                 Space.EMPTY,
                 Markers.EMPTY,
                 sourcePath,
@@ -132,7 +157,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
                 pkg,
                 imports,
                 statements,
-                format(source.substring(cursor)));
+                format(cursor.remaining()));
     }
 
     @Override
@@ -149,7 +174,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         String name = nameReferenceExpression.getIdentifier() == null ? "{error}" : nameReferenceExpression.getIdentifier().getText();
         Space prefix = sourceBefore(name);
         return new J.Identifier(
-                randomId(),
+                nextId(),
                 prefix,
                 Markers.EMPTY,
                 name,
@@ -161,10 +186,10 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
     public J visitAnnotationCall(FirAnnotationCall annotationCall, ExecutionContext ctx) {
         Space prefix = whitespace();
         Markers markers = Markers.EMPTY;
-        skip("@");
+        cursor.skip("@");
         if (annotationCall.getUseSiteTarget() == AnnotationUseSiteTarget.FILE) {
-            skip("file");
-            markers = markers.addIfAbsent(new FileSuffix(randomId(), sourceBefore(":")));
+            cursor.skip("file");
+            markers = markers.addIfAbsent(new FileSuffix(nextId(), sourceBefore(":")));
         }
 
         J.Identifier name = (J.Identifier) visitElement(annotationCall.getCalleeReference(), ctx);
@@ -188,7 +213,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         }
 
         return new J.Annotation(
-                randomId(),
+                nextId(),
                 prefix,
                 markers,
                 name,
@@ -206,11 +231,11 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         }
 
         Space prefix = whitespace();
-        boolean omitBraces = !source.startsWith("{", cursor);
+        boolean omitBraces = !cursor.startsWith("{");
         if (omitBraces) {
-            markers = markers.addIfAbsent(new OmitBraces(randomId()));
+            markers = markers.addIfAbsent(new OmitBraces(nextId()));
         } else {
-            skip("{");
+            cursor.skip("{");
         }
 
         JavaType closureType = null;
@@ -228,11 +253,11 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
                 if ("<destruct>".equals(p.getName().asString())) {
                     omitDestruct = true;
                     Space destructPrefix = sourceBefore("(");
-                    int saveCursor = cursor;
+                    int saveCursor = cursor.position();
                     String params = sourceBefore(")").getWhitespace();
                     String[] paramNames = params.split(",");
                     List<JRightPadded<J>> destructParams = new ArrayList<>(paramNames.length);
-                    cursor(saveCursor);
+                    cursor.moveTo(saveCursor);
 
                     ConeTypeProjection[] typeArguments = null;
                     if (p.getReturnTypeRef() instanceof FirResolvedTypeRef) {
@@ -256,7 +281,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
                     // Create a new J.Lambda.Parameters instance to represent the destructured parameters.
                     // { (a, b), c -> ... } // a destructured pair and another parameter
                     // { (a, b), (c, d) -> ... } // a destructured pair and another destructured pair
-                    J.Lambda.Parameters destructParamsExpr = new J.Lambda.Parameters(randomId(), destructPrefix, Markers.EMPTY, true, destructParams);
+                    J.Lambda.Parameters destructParamsExpr = new J.Lambda.Parameters(nextId(), destructPrefix, Markers.EMPTY, true, destructParams);
                     paramExprs.add(JRightPadded.build(destructParamsExpr));
                 } else {
                     J expr = visitElement(p, ctx);
@@ -269,21 +294,21 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
             }
         }
 
-        J.Lambda.Parameters params = new J.Lambda.Parameters(randomId(), EMPTY, Markers.EMPTY, false, paramExprs);
-        int saveCursor = cursor;
+        J.Lambda.Parameters params = new J.Lambda.Parameters(nextId(), EMPTY, Markers.EMPTY, false, paramExprs);
+        int saveCursor = cursor.position();
         Space arrowPrefix = whitespace();
-        if (source.startsWith("->", cursor)) {
-            skip("->");
+        if (cursor.startsWith("->")) {
+            cursor.skip("->");
             if (params.getParameters().isEmpty()) {
                 params = params.getPadding().withParams(singletonList(JRightPadded
-                        .build((J) new J.Empty(randomId(), EMPTY, Markers.EMPTY))
+                        .build((J) new J.Empty(nextId(), EMPTY, Markers.EMPTY))
                         .withAfter(arrowPrefix)));
             } else {
                 params = params.getPadding().withParams(
                         ListUtils.mapLast(params.getPadding().getParams(), param -> param.withAfter(arrowPrefix)));
             }
         } else {
-            cursor(saveCursor);
+            cursor.moveTo(saveCursor);
         }
 
         Set<FirElement> skip = Collections.newSetFromMap(new IdentityHashMap<>());
@@ -309,7 +334,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         }
 
         if (body == null) {
-            body = new J.Block(randomId(),
+            body = new J.Block(nextId(),
                     EMPTY,
                     Markers.EMPTY,
                     new JRightPadded<>(false, EMPTY, Markers.EMPTY),
@@ -318,7 +343,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         }
 
         J.Lambda lambda = new J.Lambda(
-                randomId(),
+                nextId(),
                 prefix,
                 markers,
                 params,
@@ -340,39 +365,39 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
 
     @Override
     public J visitAnonymousObject(FirAnonymousObject anonymousObject, ExecutionContext ctx) {
-        Space objectPrefix = sourceBefore("object");
-        Markers markers = Markers.EMPTY.addIfAbsent(new KObject(randomId(), objectPrefix));
+        Space objectPrefix = sourceBefore("object", anonymousObject);
+        Markers markers = Markers.EMPTY.addIfAbsent(new KObject(nextId(), objectPrefix));
         Space typeExpressionPrefix = sourceBefore(":");
         Space prefix = whitespace();
 
         TypeTree clazz = (TypeTree) visitElement(anonymousObject.getSuperTypeRefs().get(0), ctx);
         JContainer<Expression> args;
 
-        int saveCursor = cursor;
+        int saveCursor = cursor.position();
         Space before = whitespace();
-        if (source.startsWith("(", cursor)) {
+        if (cursor.startsWith("(")) {
             if (!anonymousObject.getDeclarations().isEmpty() &&
                     anonymousObject.getDeclarations().get(0) instanceof FirPrimaryConstructor &&
                     !((FirPrimaryConstructor) anonymousObject.getDeclarations().get(0)).getDelegatedConstructor().getArgumentList().getArguments().isEmpty()) {
-                cursor(saveCursor);
+                cursor.moveTo(saveCursor);
                 args = mapFunctionalCallArguments(((FirPrimaryConstructor) anonymousObject.getDeclarations().get(0)).getDelegatedConstructor().getArgumentList().getArguments());
             } else {
-                skip("(");
+                cursor.skip("(");
                 args = JContainer.build(before,
-                        singletonList(padRight(new J.Empty(randomId(), sourceBefore(")"), Markers.EMPTY), EMPTY)), Markers.EMPTY);
+                        singletonList(padRight(new J.Empty(nextId(), sourceBefore(")"), Markers.EMPTY), EMPTY)), Markers.EMPTY);
             }
         } else {
-            cursor(saveCursor);
+            cursor.moveTo(saveCursor);
             args = JContainer.<Expression>empty()
-                    .withMarkers(Markers.build(singletonList(new OmitParentheses(randomId()))));
+                    .withMarkers(Markers.build(singletonList(new OmitParentheses(nextId()))));
         }
 
-        saveCursor = cursor;
+        saveCursor = cursor.position();
         J.Block body = null;
         Space bodyPrefix = whitespace();
 
-        if (source.startsWith("{", cursor)) {
-            skip("{");
+        if (cursor.startsWith("{")) {
+            cursor.skip("{");
             List<FirElement> declarations = new ArrayList<>(anonymousObject.getDeclarations().size());
             for (FirDeclaration declaration : anonymousObject.getDeclarations()) {
                 if (declaration.getSource().getKind() instanceof KtFakeSourceElementKind) {
@@ -387,18 +412,18 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
             }
 
             body = new J.Block(
-                    randomId(),
+                    nextId(),
                     bodyPrefix,
                     Markers.EMPTY,
                     new JRightPadded<>(false, EMPTY, Markers.EMPTY),
                     statements,
                     sourceBefore("}"));
         } else {
-            cursor(saveCursor);
+            cursor.moveTo(saveCursor);
         }
 
         return new J.NewClass(
-                randomId(),
+                nextId(),
                 prefix,
                 markers,
                 null,
@@ -432,7 +457,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         }
 
         return new J.MemberReference(
-                randomId(),
+                nextId(),
                 prefix,
                 Markers.EMPTY,
                 padRight((Expression) visitElement(callableReferenceAccess.getExplicitReceiver(), ctx), sourceBefore("::")),
@@ -446,42 +471,61 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
     @Override
     public J visitArrayOfCall(FirArrayOfCall arrayOfCall, ExecutionContext ctx) {
         return new K.ListLiteral(
-                randomId(),
+                nextId(),
                 sourceBefore("["),
                 Markers.EMPTY,
                 arrayOfCall.getArgumentList().getArguments().isEmpty() ?
-                        JContainer.build(singletonList(new JRightPadded<>(new J.Empty(randomId(), EMPTY, Markers.EMPTY), sourceBefore("]"), Markers.EMPTY))) :
+                        JContainer.build(singletonList(new JRightPadded<>(new J.Empty(nextId(), EMPTY, Markers.EMPTY), sourceBefore("]"), Markers.EMPTY))) :
                         JContainer.build(EMPTY, convertAll(arrayOfCall.getArgumentList().getArguments(), commaDelim, t -> sourceBefore("]"), ctx), Markers.EMPTY),
                 typeMapping.type(arrayOfCall));
     }
 
     @Override
     public J visitBinaryLogicExpression(FirBinaryLogicExpression binaryLogicExpression, ExecutionContext ctx) {
-        Space prefix = whitespace();
-        Expression left = (Expression) visitElement(binaryLogicExpression.getLeftOperand(), ctx);
+        // Left associative chains like `a && b && c` are unrolled into a work stack, so the length of the chain
+        // does not bound the depth of the Java stack.
+        Deque<FirBinaryLogicExpression> expressions = new ArrayDeque<>();
+        Deque<Space> prefixes = new ArrayDeque<>();
+        FirBinaryLogicExpression expression = binaryLogicExpression;
+        while (true) {
+            expressions.push(expression);
+            prefixes.push(whitespace());
+            if (!(expression.getLeftOperand() instanceof FirBinaryLogicExpression)) {
+                break;
+            }
+            expression = (FirBinaryLogicExpression) expression.getLeftOperand();
+        }
+
+        Expression left = (Expression) visitElement(expression.getLeftOperand(), ctx);
+        while (!expressions.isEmpty()) {
+            expression = expressions.pop();
+            Space prefix = prefixes.pop();
+
+            Space opPrefix = whitespace();
+            J.Binary.Type op;
+            if (LogicOperationKind.AND == expression.getKind()) {
+                cursor.skip("&&");
+                op = J.Binary.Type.And;
+            } else if (LogicOperationKind.OR == expression.getKind()) {
+                cursor.skip("||");
+                op = J.Binary.Type.Or;
+            } else {
+                throw new IllegalArgumentException("Unsupported binary expression type " + expression.getKind().name());
+            }
 
-        Space opPrefix = whitespace();
-        J.Binary.Type op;
-        if (LogicOperationKind.AND == binaryLogicExpression.getKind()) {
-            skip("&&");
-            op = J.Binary.Type.And;
-        } else if (LogicOperationKind.OR == binaryLogicExpression.getKind()) {
-            skip("||");
-            op = J.Binary.Type.Or;
-        } else {
-            throw new IllegalArgumentException("Unsupported binary expression type " + binaryLogicExpression.getKind().name());
-        }
+            Expression right = (Expression) visitElement(expression.getRightOperand(), ctx);
 
-        Expression right = (Expression) visitElement(binaryLogicExpression.getRightOperand(), ctx);
+            left = new J.Binary(
+                    nextId(),
+                    prefix,
+                    Markers.EMPTY,
+                    left,
+                    padLeft(opPrefix, op),
+                    right,
+                    typeMapping.type(expression));
+        }
 
-        return new J.Binary(
-                randomId(),
-                prefix,
-                Markers.EMPTY,
-                left,
-                padLeft(opPrefix, op),
-                right,
-                typeMapping.type(binaryLogicExpression));
+        return left;
     }
 
     @Override
@@ -502,16 +546,16 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
      *                       but should not be added as statements to the J.ForLoop#body.
      */
     private J visitBlock(FirBlock block, Set<FirElement> skipStatements, ExecutionContext ctx) {
-        int saveCursor = cursor;
+        int saveCursor = cursor.position();
         Space prefix = whitespace();
         OmitBraces omitBraces = null;
-        boolean isEmptyBody = !source.startsWith("{", cursor);
+        boolean isEmptyBody = !cursor.startsWith("{");
         if (isEmptyBody) {
-            cursor(saveCursor);
+            cursor.moveTo(saveCursor);
             prefix = EMPTY;
-            omitBraces = new OmitBraces(randomId());
+            omitBraces = new OmitBraces(nextId());
         } else {
-            skip("{");
+            cursor.skip("{");
         }
 
         List<FirStatement> firStatements = new ArrayList<>(block.getStatements().size());
@@ -550,14 +594,14 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
                 boolean explicitReturn = false;
 
                 if (firElement instanceof FirReturnExpression) {
-                    saveCursor = cursor;
+                    saveCursor = cursor.position();
                     returnPrefix = whitespace();
-                    if (source.startsWith("return", cursor)) {
-                        skip("return");
+                    if (cursor.startsWith("return")) {
+                        cursor.skip("return");
                         explicitReturn = true;
                     } else {
                         returnPrefix = EMPTY;
-                        cursor(saveCursor);
+                        cursor.moveTo(saveCursor);
                     }
                 }
 
@@ -567,23 +611,23 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
 
                 if (firElement instanceof FirReturnExpression) {
                     if (expr == null) {
-                        expr = new K.KReturn(randomId(), new J.Return(randomId(), EMPTY, Markers.EMPTY, null), null);
+                        expr = new K.KReturn(nextId(), new J.Return(nextId(), EMPTY, Markers.EMPTY, null), null);
                     } else if (expr instanceof Statement && !(expr instanceof Expression)) {
-                        expr = new K.KReturn(randomId(), new J.Return(randomId(), EMPTY, Markers.EMPTY, new K.StatementExpression(randomId(), (Statement) expr)), null);
+                        expr = new K.KReturn(nextId(), new J.Return(nextId(), EMPTY, Markers.EMPTY, new K.StatementExpression(nextId(), (Statement) expr)), null);
                     } else if (expr instanceof Expression) {
-                        expr = new K.KReturn(randomId(), new J.Return(randomId(), EMPTY, Markers.EMPTY, (Expression) expr), null);
+                        expr = new K.KReturn(nextId(), new J.Return(nextId(), EMPTY, Markers.EMPTY, (Expression) expr), null);
                     }
 
                     if (explicitReturn) {
                         expr = expr.withPrefix(returnPrefix);
                     } else {
-                        expr = expr.withMarkers(expr.getMarkers().addIfAbsent(new ImplicitReturn(randomId())));
+                        expr = expr.withMarkers(expr.getMarkers().addIfAbsent(new ImplicitReturn(nextId())));
                     }
                 }
 
                 if (!(expr instanceof Statement)) {
                     if (expr instanceof Expression) {
-                        expr = new K.ExpressionStatement(randomId(), (Expression) expr);
+                        expr = new K.ExpressionStatement(nextId(), (Expression) expr);
                     } else {
                         throw new IllegalArgumentException("Unexpected statement type.");
                     }
@@ -591,21 +635,21 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
             }
 
             JRightPadded<Statement> stat = JRightPadded.build((Statement) expr);
-            saveCursor = cursor;
+            saveCursor = cursor.position();
             Space beforeSemicolon = whitespace();
-            if (cursor < source.length() && source.charAt(cursor) == ';') {
+            if (cursor.startsWith(';')) {
                 stat = stat
-                        .withMarkers(stat.getMarkers().add(new Semicolon(randomId())))
+                        .withMarkers(stat.getMarkers().add(new Semicolon(nextId())))
                         .withAfter(beforeSemicolon);
-                skip(";");
+                cursor.skip(";");
             } else {
-                cursor(saveCursor);
+                cursor.moveTo(saveCursor);
             }
             statements.add(stat);
         }
 
         return new J.Block(
-                randomId(),
+                nextId(),
                 prefix,
                 omitBraces == null ? Markers.EMPTY : Markers.EMPTY.addIfAbsent(omitBraces),
                 JRightPadded.build(false),
@@ -615,16 +659,16 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
 
     @Override
     public J visitBreakExpression(FirBreakExpression breakExpression, ExecutionContext ctx) {
-        Space prefix = sourceBefore("break");
+        Space prefix = sourceBefore("break", breakExpression);
 
         J.Identifier label = null;
         if (breakExpression.getTarget().getLabelName() != null) {
-            skip("@");
+            cursor.skip("@");
             label = createIdentifier(breakExpression.getTarget().getLabelName());
         }
 
         return new J.Break(
-                randomId(),
+                nextId(),
                 prefix,
                 Markers.EMPTY,
                 label);
@@ -633,19 +677,19 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
     @Override
     public J visitCatch(FirCatch firCatch, ExecutionContext ctx) {
         Space prefix = whitespace();
-        skip("catch");
+        cursor.skip("catch");
 
         Space paramPrefix = sourceBefore("(");
         J.VariableDeclarations paramDecl = (J.VariableDeclarations) visitElement(firCatch.getParameter(), ctx);
 
         J.ControlParentheses<J.VariableDeclarations> param = new J.ControlParentheses<>(
-                randomId(),
+                nextId(),
                 paramPrefix,
                 Markers.EMPTY,
                 padRight(paramDecl, sourceBefore(")")));
 
         return new J.Try.Catch(
-                randomId(),
+                nextId(),
                 prefix,
                 Markers.EMPTY,
                 param,
@@ -655,7 +699,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
     @Override
     public J visitCheckNotNullCall(FirCheckNotNullCall checkNotNullCall, ExecutionContext ctx) {
         J j = visitElement(checkNotNullCall.getArgumentList().getArguments().get(0), ctx);
-        return j.withMarkers(j.getMarkers().addIfAbsent(new CheckNotNull(randomId(), sourceBefore("!!"))));
+        return j.withMarkers(j.getMarkers().addIfAbsent(new CheckNotNull(nextId(), sourceBefore("!!"))));
     }
 
     @Override
@@ -682,19 +726,19 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
 
         J.ClassDeclaration.Kind kind;
         if (ClassKind.INTERFACE == classKind) {
-            kind = new J.ClassDeclaration.Kind(randomId(), sourceBefore("interface"), Markers.EMPTY, kindAnnotations, J.ClassDeclaration.Kind.Type.Interface);
+            kind = new J.ClassDeclaration.Kind(nextId(), sourceBefore("interface"), Markers.EMPTY, kindAnnotations, J.ClassDeclaration.Kind.Type.Interface);
         } else if (ClassKind.OBJECT == classKind) {
-            markers = markers.addIfAbsent(new KObject(randomId(), EMPTY));
-            kind = new J.ClassDeclaration.Kind(randomId(), sourceBefore("object"), Markers.EMPTY, kindAnnotations, J.ClassDeclaration.Kind.Type.Class);
+            markers = markers.addIfAbsent(new KObject(nextId(), EMPTY));
+            kind = new J.ClassDeclaration.Kind(nextId(), sourceBefore("object"), Markers.EMPTY, kindAnnotations, J.ClassDeclaration.Kind.Type.Class);
         } else {
             // Enums and Interfaces are modifiers in kotlin and require the modifier prefix to preserve source code.
-            kind = new J.ClassDeclaration.Kind(randomId(), sourceBefore("class"), Markers.EMPTY, kindAnnotations, J.ClassDeclaration.Kind.Type.Class);
+            kind = new J.ClassDeclaration.Kind(nextId(), sourceBefore("class"), Markers.EMPTY, kindAnnotations, J.ClassDeclaration.Kind.Type.Class);
         }
 
         J.Identifier name;
         if (ClassKind.OBJECT == classKind && leadingAnnotation.stream().anyMatch(a -> a.getAnnotationType() instanceof J.Identifier && "companion".equals(((J.Identifier) a.getAnnotationType()).getSimpleName()))) {
             name = new J.Identifier(
-                    randomId(),
+                    nextId(),
                     prefix,
                     Markers.EMPTY,
                     firRegularClass.getName().asString(),
@@ -732,27 +776,27 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
             }
         }
 
-        int saveCursor = cursor;
+        int saveCursor = cursor.position();
         Space before = whitespace();
         JContainer<Statement> primaryConstructor = null;
-        boolean inlineConstructor = source.startsWith("(", cursor) && firPrimaryConstructor != null;
+        boolean inlineConstructor = cursor.startsWith("(") && firPrimaryConstructor != null;
         if (inlineConstructor) {
-            skip("(");
+            cursor.skip("(");
             primaryConstructor = JContainer.build(before,
                     firPrimaryConstructor.getValueParameters().isEmpty() ?
-                            singletonList(padRight(new J.Empty(randomId(), sourceBefore(")"), Markers.EMPTY), EMPTY)) :
+                            singletonList(padRight(new J.Empty(nextId(), sourceBefore(")"), Markers.EMPTY), EMPTY)) :
                             convertAll(firPrimaryConstructor.getValueParameters(), commaDelim, t -> sourceBefore(")"), ctx), Markers.EMPTY);
         } else {
-            cursor(saveCursor);
+            cursor.moveTo(saveCursor);
         }
 
         JContainer<TypeTree> implementings = null;
         List<JRightPadded<TypeTree>> superTypes = null;
 
-        saveCursor = cursor;
+        saveCursor = cursor.position();
         before = whitespace();
-        if (source.startsWith(":", cursor)) {
-            skip(":");
+        if (cursor.startsWith(":")) {
+            cursor.skip(":");
         }
 
         // Kotlin declared super class and interfaces differently than java. All types declared after the `:` are added into implementings.
@@ -760,7 +804,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         // The J.ClassDeclaration should have the super type set in extending and the J.NewClass should be unwrapped.
         for (int i = 0; i < firRegularClass.getSuperTypeRefs().size(); i++) {
             FirTypeRef typeRef = firRegularClass.getSuperTypeRefs().get(i);
-            FirRegularClassSymbol symbol = TypeUtilsKt.toRegularClassSymbol(FirTypeUtilsKt.getConeType(typeRef), firSession);
+            FirRegularClassSymbol symbol = symbols.toRegularClassSymbol(FirTypeUtilsKt.getConeType(typeRef));
             // Filter out generated types.
             if (typeRef.getSource() != null && !(typeRef.getSource().getKind() instanceof KtFakeSourceElementKind)) {
                 if (superTypes == null) {
@@ -771,19 +815,19 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
                 if (symbol != null && ClassKind.CLASS == symbol.getFir().getClassKind()) {
                     // Wrap the element in a J.NewClass to preserve the whitespace and container of `( )`
                     J.NewClass newClass = new J.NewClass(
-                            randomId(),
+                            nextId(),
                             element.getPrefix(),
                             Markers.EMPTY,
                             null,
                             EMPTY,
                             element.withPrefix(EMPTY),
                             JContainer.build(sourceBefore("("),
-                                    singletonList(JRightPadded.build(new J.Empty(randomId(), sourceBefore(")"), Markers.EMPTY))),
+                                    singletonList(JRightPadded.build(new J.Empty(nextId(), sourceBefore(")"), Markers.EMPTY))),
                                     Markers.EMPTY),
                             null,
                             null
                     );
-                    element = new K.FunctionType(randomId(), newClass, null);
+                    element = new K.FunctionType(nextId(), newClass, null);
                 }
                 superTypes.add(JRightPadded.build(element)
                         .withAfter(i == firRegularClass.getSuperTypeRefs().size() - 1 ? EMPTY : sourceBefore(",")));
@@ -791,23 +835,23 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         }
 
         if (superTypes == null) {
-            cursor(saveCursor);
+            cursor.moveTo(saveCursor);
         } else {
             implementings = JContainer.build(before, superTypes, Markers.EMPTY);
         }
 
-        saveCursor = cursor;
+        saveCursor = cursor.position();
         Space bodyPrefix = whitespace();
 
         OmitBraces omitBraces;
         J.Block body;
-        if (source.substring(cursor).isEmpty() || !source.substring(cursor).startsWith("{")) {
-            cursor(saveCursor);
-            omitBraces = new OmitBraces(randomId());
-            body = new J.Block(randomId(), bodyPrefix, Markers.EMPTY, new JRightPadded<>(false, EMPTY, Markers.EMPTY), emptyList(), Space.EMPTY);
+        if (!cursor.startsWith("{")) {
+            cursor.moveTo(saveCursor);
+            omitBraces = new OmitBraces(nextId());
+            body = new J.Block(nextId(), bodyPrefix, Markers.EMPTY, new JRightPadded<>(false, EMPTY, Markers.EMPTY), emptyList(), Space.EMPTY);
             body = body.withMarkers(body.getMarkers().addIfAbsent(omitBraces));
         } else {
-            skip("{");
+            cursor.skip("{");
 
             JRightPadded<Statement> enumSet = null;
             if (!jcEnums.isEmpty()) {
@@ -822,7 +866,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
 
                 enumSet = padRight(
                         new J.EnumValueSet(
-                                randomId(),
+                                nextId(),
                                 enumValues.get(0).getElement().getPrefix(),
                                 Markers.EMPTY,
                                 ListUtils.map(enumValues, (i, ev) -> i == 0 ? ev.withElement(ev.getElement().withPrefix(EMPTY)) : ev),
@@ -848,12 +892,12 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
                 }
             }
 
-            body = new J.Block(randomId(), bodyPrefix, Markers.EMPTY, new JRightPadded<>(false, EMPTY, Markers.EMPTY),
+            body = new J.Block(nextId(), bodyPrefix, Markers.EMPTY, new JRightPadded<>(false, EMPTY, Markers.EMPTY),
                     members, sourceBefore("}"));
         }
 
         return new J.ClassDeclaration(
-                randomId(),
+                nextId(),
                 prefix,
                 markers,
                 leadingAnnotation,
@@ -885,7 +929,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         }
 
         Expression right = (Expression) visitElement(functionCall.getArgumentList().getArguments().get(0), ctx);
-        return new J.Binary(randomId(),
+        return new J.Binary(nextId(),
                 prefix,
                 Markers.EMPTY,
                 left,
@@ -897,7 +941,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
     @Override
     public <T> J visitConstExpression(FirConstExpression<T> constExpression, ExecutionContext ctx) {
         String valueSource = source.substring(constExpression.getSource().getStartOffset(), constExpression.getSource().getEndOffset());
-        Space prefix = sourceBefore(valueSource);
+        Space prefix = sourceBefore(valueSource, constExpression);
 
         Object value = constExpression.getValue();
         JavaType.Primitive type;
@@ -910,7 +954,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         }
 
         return new J.Literal(
-                randomId(),
+                nextId(),
                 prefix,
                 Markers.EMPTY,
                 value,
@@ -931,7 +975,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
 
         if (op == FirOperation.IDENTITY || op == FirOperation.NOT_IDENTITY) {
             return new K.Binary(
-                    randomId(),
+                    nextId(),
                     whitespace(),
                     Markers.EMPTY,
                     (Expression) visitElement(left, ctx),
@@ -942,7 +986,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
             );
         } else {
             return new J.Binary(
-                    randomId(),
+                    nextId(),
                     whitespace(),
                     Markers.EMPTY,
                     (Expression) visitElement(left, ctx),
@@ -955,16 +999,16 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
 
     @Override
     public J visitContinueExpression(FirContinueExpression continueExpression, ExecutionContext ctx) {
-        Space prefix = sourceBefore("continue");
+        Space prefix = sourceBefore("continue", continueExpression);
 
         J.Identifier label = null;
         if (continueExpression.getTarget().getLabelName() != null) {
-            skip("@");
+            cursor.skip("@");
             label = createIdentifier(continueExpression.getTarget().getLabelName());
         }
 
         return new J.Continue(
-                randomId(),
+                nextId(),
                 prefix,
                 Markers.EMPTY,
                 label);
@@ -978,9 +1022,9 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         }
 
         Space prefix = whitespace();
-        skip("do");
+        cursor.skip("do");
         J.DoWhileLoop statement = new J.DoWhileLoop(
-                randomId(),
+                nextId(),
                 prefix,
                 Markers.EMPTY,
                 JRightPadded.build((Statement) visitElement(doWhileLoop.getBlock(), ctx)),
@@ -992,10 +1036,10 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
     @Override
     public J visitElvisExpression(FirElvisExpression elvisExpression, ExecutionContext ctx) {
         Space prefix = whitespace();
-        return new J.Ternary(randomId(),
+        return new J.Ternary(nextId(),
                 prefix,
                 Markers.EMPTY,
-                new J.Empty(randomId(), EMPTY, Markers.EMPTY),
+                new J.Empty(nextId(), EMPTY, Markers.EMPTY),
                 padLeft(EMPTY, (Expression) visitElement(elvisExpression.getLhs(), ctx)),
                 padLeft(sourceBefore("?:"), (Expression) visitElement(elvisExpression.getRhs(), ctx)),
                 typeMapping.type(elvisExpression));
@@ -1008,7 +1052,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         List<J.Annotation> annotations = mapAnnotations(enumEntry.getAnnotations());
 
         return new J.EnumValue(
-                randomId(),
+                nextId(),
                 prefix,
                 Markers.EMPTY,
                 annotations == null ? emptyList() : annotations,
@@ -1018,9 +1062,9 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
 
     @Override
     public J visitSuperReference(FirSuperReference superReference, ExecutionContext ctx) {
-        Space prefix = sourceBefore("super");
+        Space prefix = sourceBefore("super", superReference);
 
-        return new J.Identifier(randomId(),
+        return new J.Identifier(nextId(),
                 prefix,
                 Markers.EMPTY,
                 "super",
@@ -1053,7 +1097,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         Space prefix = whitespace();
 
         FirNamedReference namedReference = functionCall.getCalleeReference();
-        if (namedReference instanceof FirErrorNamedReference) {
+        if (namedReference instanceof FirErrorNamedReference && !syntaxOnly) {
             throw new IllegalStateException("Unresolved name reference: " + ((FirErrorNamedReference) namedReference).getDiagnostic());
         }
 
@@ -1061,14 +1105,14 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
                 ((FirResolvedNamedReference) namedReference).getResolvedSymbol() instanceof FirConstructorSymbol) {
             TypeTree name = (J.Identifier) visitElement(namedReference, null);
 
-            int saveCursor = cursor;
+            int saveCursor = cursor.position();
             whitespace();
 
-            if (source.startsWith("<", cursor) && !functionCall.getTypeArguments().isEmpty()) {
-                cursor(saveCursor);
-                name = new J.ParameterizedType(randomId(), EMPTY, Markers.EMPTY, name, mapTypeArguments(functionCall.getTypeArguments()), typeMapping.type(functionCall, getCurrentFile()));
+            if (cursor.startsWith("<") && !functionCall.getTypeArguments().isEmpty()) {
+                cursor.moveTo(saveCursor);
+                name = new J.ParameterizedType(nextId(), EMPTY, Markers.EMPTY, name, mapTypeArguments(functionCall.getTypeArguments()), typeMapping.type(functionCall, getCurrentFile()));
             } else {
-                cursor(saveCursor);
+                cursor.moveTo(saveCursor);
             }
 
             JContainer<Expression> args;
@@ -1091,7 +1135,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
             J.Block body = null;
             if (init != null) {
                 body = new J.Block(
-                        randomId(),
+                        nextId(),
                         sourceBefore("{"),
                         Markers.EMPTY,
                         new JRightPadded<>(false, EMPTY, Markers.EMPTY),
@@ -1100,7 +1144,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
             }
 
             return new J.NewClass(
-                    randomId(),
+                    nextId(),
                     prefix,
                     Markers.EMPTY,
                     null,
@@ -1110,97 +1154,160 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
                     body,
                     typeMapping.methodInvocationType(functionCall, getCurrentFile()));
 
-        } else if (namedReference instanceof FirResolvedNamedReference) {
-            Markers markers = Markers.EMPTY;
-            JRightPadded<Expression> select = null;
+        } else if (namedReference instanceof FirResolvedNamedReference || namedReference instanceof FirErrorNamedReference) {
+            // Calls to declarations outside of the sources and the standard library are unresolved in syntax-only mode.
+            return mapMethodInvocationChain(functionCall, isInfix, prefix);
+        }
 
-            if (!(functionCall instanceof FirImplicitInvokeCall)) {
-                FirElement visit = getReceiver(functionCall.getDispatchReceiver());
-                if (visit == null) {
-                    visit = getReceiver(functionCall.getExtensionReceiver());
-                }
-                if (visit == null) {
-                    visit = getReceiver(functionCall.getExplicitReceiver());
-                }
+        throw new IllegalArgumentException("Unsupported function call.");
+    }
 
-                if (visit != null) {
-                    Expression selectExpr = (Expression) visitElement(visit, ctx);
-                    Space after = whitespace();
-                    if (source.startsWith(".", cursor)) {
-                        skip(".");
-                    } else if (source.startsWith("?.", cursor)) {
-                        skip("?.");
-                        markers = markers.addIfAbsent(new IsNullable(randomId(), EMPTY));
-                    }
+    /**
+     * Map a call and the chain of calls that it selects from, such as a long builder chain. The chain is unrolled into
+     * a work stack and mapped from the innermost call outwards, so the length of the chain does not bound the depth of
+     * the Java stack.
+     */
+    private J.MethodInvocation mapMethodInvocationChain(FirFunctionCall functionCall, boolean isInfix, Space prefix) {
+        Deque<FirFunctionCall> calls = new ArrayDeque<>();
+        Deque<Space> prefixes = new ArrayDeque<>();
+        calls.push(functionCall);
+        prefixes.push(prefix);
 
-                    select = JRightPadded.build(selectExpr)
-                            .withAfter(after);
-                }
-            }
+        FirElement receiver = getSelect(functionCall);
+        while (isMethodInvocation(receiver)) {
+            FirFunctionCall call = (FirFunctionCall) receiver;
+            calls.push(call);
+            prefixes.push(whitespace());
+            receiver = getSelect(call);
+        }
 
-            if (isInfix) {
-                markers = markers.addIfAbsent(new ReceiverType(randomId()));
-            }
+        Expression select = receiver == null ? null : (Expression) visitElement(receiver, ctx);
+        J.MethodInvocation invocation;
+        do {
+            FirFunctionCall call = calls.pop();
+            invocation = mapMethodInvocation(call, calls.isEmpty() ? isInfix : call.getOrigin() == FirFunctionCallOrigin.Infix,
+                    prefixes.pop(), select);
+            select = invocation;
+        } while (!calls.isEmpty());
 
-            J.Identifier name = (J.Identifier) visitElement(namedReference, null);
+        return invocation;
+    }
 
-            JContainer<Expression> typeParams = null;
-            if (!functionCall.getTypeArguments().isEmpty()) {
-                int saveCursor = cursor;
-                whitespace();
-                boolean parseTypeArguments = source.startsWith("<", cursor);
-                cursor(saveCursor);
-                if (parseTypeArguments) {
-                    typeParams = mapTypeArguments(functionCall.getTypeArguments());
-                }
+    /**
+     * @return true if the element is a call that {@link #visitFunctionCall} maps to a {@link J.MethodInvocation}.
+     */
+    private boolean isMethodInvocation(@Nullable FirElement element) {
+        if (!(element instanceof FirFunctionCall) || element instanceof FirImplicitInvokeCall) {
+            return false;
+        }
+
+        FirFunctionCall call = (FirFunctionCall) element;
+        if (call.getOrigin() == FirFunctionCallOrigin.Operator) {
+            return false;
+        }
+
+        FirNamedReference namedReference = call.getCalleeReference();
+        if (namedReference instanceof FirResolvedNamedReference) {
+            return !(((FirResolvedNamedReference) namedReference).getResolvedSymbol() instanceof FirConstructorSymbol);
+        }
+        return namedReference instanceof FirErrorNamedReference && syntaxOnly;
+    }
+
+    @Nullable
+    private FirElement getSelect(FirFunctionCall functionCall) {
+        if (functionCall instanceof FirImplicitInvokeCall) {
+            return null;
+        }
+
+        FirElement select = getReceiver(functionCall.getDispatchReceiver());
+        if (select == null) {
+            select = getReceiver(functionCall.getExtensionReceiver());
+        }
+        if (select == null) {
+            select = getReceiver(functionCall.getExplicitReceiver());
+        }
+        return select;
+    }
+
+    private J.MethodInvocation mapMethodInvocation(FirFunctionCall functionCall, boolean isInfix, Space prefix, @Nullable Expression selectExpr) {
+        FirNamedReference namedReference = functionCall.getCalleeReference();
+        Markers markers = Markers.EMPTY;
+        JRightPadded<Expression> select = null;
+
+        if (selectExpr != null) {
+            Space after = whitespace();
+            if (cursor.startsWith(".")) {
+                cursor.skip(".");
+            } else if (cursor.startsWith("?.")) {
+                cursor.skip("?.");
+                markers = markers.addIfAbsent(new IsNullable(nextId(), EMPTY));
             }
 
-            int saveCursor = cursor;
+            select = JRightPadded.build(selectExpr)
+                    .withAfter(after);
+        }
+
+        if (isInfix) {
+            markers = markers.addIfAbsent(new ReceiverType(nextId()));
+        }
+
+        J.Identifier name = (J.Identifier) visitElement(namedReference, null);
+
+        JContainer<Expression> typeParams = null;
+        if (!functionCall.getTypeArguments().isEmpty()) {
+            int saveCursor = cursor.position();
             whitespace();
-            JContainer<Expression> args;
-            if (source.startsWith("(", cursor)) {
-                cursor(saveCursor);
-                args = mapFunctionalCallArguments(functionCall.getArgumentList().getArguments());
-            } else {
-                cursor(saveCursor);
-                markers = markers.addIfAbsent(new OmitParentheses(randomId()));
-
-                List<JRightPadded<Expression>> arguments = new ArrayList<>(functionCall.getArgumentList().getArguments().size());
-                for (FirExpression argument : functionCall.getArgumentList().getArguments()) {
-                    J j = visitElement(argument, null);
-                    if (j instanceof Statement && !(j instanceof Expression)) {
-                        j = new K.StatementExpression(randomId(), (Statement) j);
-                    }
-                    JRightPadded<Expression> padded = JRightPadded.build((Expression) j);
-                    arguments.add(padded);
-                }
-                args = JContainer.build(arguments);
-            }
-
-            FirBasedSymbol<?> symbol = ((FirResolvedNamedReference) namedReference).getResolvedSymbol();
-            FirBasedSymbol<?> owner = null;
-            if (symbol instanceof FirNamedFunctionSymbol) {
-                FirNamedFunctionSymbol namedFunctionSymbol = (FirNamedFunctionSymbol) symbol;
-                ConeClassLikeLookupTag lookupTag = ClassMembersKt.containingClass(namedFunctionSymbol);
-                if (lookupTag != null) {
-                    owner = LookupTagUtilsKt.toFirRegularClassSymbol(lookupTag, firSession);
-                } else if (currentFile != null) {
-                    owner = getCurrentFile();
-                }
+            boolean parseTypeArguments = cursor.startsWith("<");
+            cursor.moveTo(saveCursor);
+            if (parseTypeArguments) {
+                typeParams = mapTypeArguments(functionCall.getTypeArguments());
             }
+        }
 
-            return new J.MethodInvocation(
-                    randomId(),
-                    prefix,
-                    markers,
-                    select,
-                    typeParams,
-                    name,
-                    args,
-                    typeMapping.methodInvocationType(functionCall, owner));
+        int saveCursor = cursor.position();
+        whitespace();
+        JContainer<Expression> args;
+        if (cursor.startsWith("(")) {
+            cursor.moveTo(saveCursor);
+            args = mapFunctionalCallArguments(functionCall.getArgumentList().getArguments());
+        } else {
+            cursor.moveTo(saveCursor);
+            markers = markers.addIfAbsent(new OmitParentheses(nextId()));
+
+            List<JRightPadded<Expression>> arguments = new ArrayList<>(functionCall.getArgumentList().getArguments().size());
+            for (FirExpression argument : functionCall.getArgumentList().getArguments()) {
+                J j = visitElement(argument, null);
+                if (j instanceof Statement && !(j instanceof Expression)) {
+                    j = new K.StatementExpression(nextId(), (Statement) j);
+                }
+                JRightPadded<Expression> padded = JRightPadded.build((Expression) j);
+                arguments.add(padded);
+            }
+            args = JContainer.build(arguments);
+        }
+
+        FirBasedSymbol<?> symbol = namedReference instanceof FirResolvedNamedReference ?
+                ((FirResolvedNamedReference) namedReference).getResolvedSymbol() : null;
+        FirBasedSymbol<?> owner = null;
+        if (symbol instanceof FirNamedFunctionSymbol) {
+            FirNamedFunctionSymbol namedFunctionSymbol = (FirNamedFunctionSymbol) symbol;
+            ConeClassLikeLookupTag lookupTag = ClassMembersKt.containingClass(namedFunctionSymbol);
+            if (lookupTag != null) {
+                owner = symbols.toFirRegularClassSymbol(lookupTag);
+            } else if (currentFile != null) {
+                owner = getCurrentFile();
+            }
         }
 
-        throw new IllegalArgumentException("Unsupported function call.");
+        return new J.MethodInvocation(
+                nextId(),
+                prefix,
+                markers,
+                select,
+                typeParams,
+                name,
+                args,
+                typeMapping.methodInvocationType(functionCall, owner));
     }
 
     @Nullable
@@ -1225,7 +1332,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
             if (firExpression instanceof FirVarargArgumentsExpression) {
                 FirVarargArgumentsExpression argumentsExpression = (FirVarargArgumentsExpression) firExpressions.get(0);
                 args = JContainer.build(sourceBefore("("), argumentsExpression.getArguments().isEmpty() ?
-                        singletonList(padRight(new J.Empty(randomId(), sourceBefore(")"), Markers.EMPTY), EMPTY)) :
+                        singletonList(padRight(new J.Empty(nextId(), sourceBefore(")"), Markers.EMPTY), EMPTY)) :
                         convertAll(argumentsExpression.getArguments(), commaDelim, t -> sourceBefore(")"), ctx), Markers.EMPTY);
             } else {
                 args = JContainer.build(sourceBefore("("), convertAll(singletonList(firExpression), commaDelim, t -> sourceBefore(")"), ctx), Markers.EMPTY);
@@ -1233,24 +1340,24 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         } else {
             if (firExpressions.isEmpty()) {
                 args = JContainer.build(sourceBefore("("),
-                        singletonList(padRight(new J.Empty(randomId(), sourceBefore(")"), Markers.EMPTY), EMPTY)), Markers.EMPTY);
+                        singletonList(padRight(new J.Empty(nextId(), sourceBefore(")"), Markers.EMPTY), EMPTY)), Markers.EMPTY);
             } else {
                 Space containerPrefix = sourceBefore("(");
                 List<JRightPadded<Expression>> expressions = new ArrayList<>(firExpressions.size());
                 for (int i = 0; i < firExpressions.size(); i++) {
                     FirExpression expression = firExpressions.get(i);
                     if (i == firExpressions.size() - 1 && expression instanceof FirLambdaArgumentExpression) {
-                        int saveCursor = cursor;
+                        int saveCursor = cursor.position();
                         Space space = whitespace();
                         // Trailing lambda argument: https://kotlinlang.org/docs/lambdas.html#passing-trailing-lambdas
-                        if (source.startsWith(")", cursor)) {
-                            skip(")");
+                        if (cursor.startsWith(")")) {
+                            cursor.skip(")");
                             Expression expr = convert(expression, ctx);
-                            expr = expr.withMarkers(expr.getMarkers().addIfAbsent(new TrailingLambdaArgument(randomId())));
+                            expr = expr.withMarkers(expr.getMarkers().addIfAbsent(new TrailingLambdaArgument(nextId())));
                             expressions.add(padRight(expr, space));
                             break;
                         } else {
-                            cursor(saveCursor);
+                            cursor.moveTo(saveCursor);
                         }
                     }
 
@@ -1266,8 +1373,8 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
 
     private JContainer<Expression> mapTypeArguments(List<? extends FirElement> types) {
         Space prefix = whitespace();
-        if (source.startsWith("<", cursor)) {
-            skip("<");
+        if (cursor.startsWith("<")) {
+            cursor.skip("<");
         }
         List<JRightPadded<Expression>> parameters = new ArrayList<>(types.size());
 
@@ -1280,8 +1387,8 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
             parameters.add(padded);
         }
 
-        if (source.startsWith(">", cursor)) {
-            skip(">");
+        if (cursor.startsWith(">")) {
+            cursor.skip(">");
         }
         return JContainer.build(prefix, parameters, Markers.EMPTY);
     }
@@ -1295,8 +1402,8 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
 
         switch (name) {
             case "dec":
-                if (source.startsWith("--", cursor)) {
-                    skip("--");
+                if (cursor.startsWith("--")) {
+                    cursor.skip("--");
                     op = padLeft(EMPTY, J.Unary.Type.PreDecrement);
                     expr = (Expression) visitElement(functionCall.getDispatchReceiver(), ctx);
                 } else {
@@ -1304,17 +1411,17 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
                     // The J.Unary objects are all created here instead of interpreting the statements in visitBlock.
                     // The PRE operations have access to the correct property name, but the POST operations are set to "<unary>".
                     // So, we extract the name from the source based on the post operator.
-                    int saveCursor = cursor;
+                    int saveCursor = cursor.position();
                     String opName = sourceBefore("--").getWhitespace().trim();
-                    cursor(saveCursor);
+                    cursor.moveTo(saveCursor);
 
                     expr = createIdentifier(opName);
                     op = padLeft(sourceBefore("--"), J.Unary.Type.PostDecrement);
                 }
                 break;
             case "inc":
-                if (source.startsWith("++", cursor)) {
-                    skip("++");
+                if (cursor.startsWith("++")) {
+                    cursor.skip("++");
                     op = padLeft(EMPTY, J.Unary.Type.PreIncrement);
                     expr = (Expression) visitElement(functionCall.getDispatchReceiver(), ctx);
                 } else {
@@ -1322,26 +1429,26 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
                     // The J.Unary objects are all created here instead of interpreting the statements in visitBlock.
                     // The PRE operations have access to the correct property name, but the POST operations are set to "<unary>".
                     // So, we extract the name from the source based on the post operator.
-                    int saveCursor = cursor;
+                    int saveCursor = cursor.position();
                     String opName = sourceBefore("++").getWhitespace().trim();
-                    cursor(saveCursor);
+                    cursor.moveTo(saveCursor);
 
                     expr = createIdentifier(opName);
                     op = padLeft(sourceBefore("++"), J.Unary.Type.PostIncrement);
                 }
                 break;
             case "not":
-                skip("!");
+                cursor.skip("!");
                 op = padLeft(EMPTY, J.Unary.Type.Not);
                 expr = (Expression) visitElement(functionCall.getDispatchReceiver(), ctx);
                 break;
             case "unaryMinus":
-                skip("-");
+                cursor.skip("-");
                 op = padLeft(EMPTY, J.Unary.Type.Negative);
                 expr = (Expression) visitElement(functionCall.getDispatchReceiver(), ctx);
                 break;
             case "unaryPlus":
-                skip("+");
+                cursor.skip("+");
                 op = padLeft(EMPTY, J.Unary.Type.Positive);
                 expr = (Expression) visitElement(functionCall.getDispatchReceiver(), ctx);
                 break;
@@ -1350,7 +1457,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         }
 
         return new J.Unary(
-                randomId(),
+                nextId(),
                 prefix,
                 Markers.EMPTY,
                 op,
@@ -1372,7 +1479,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         if ("contains".equals(name)) {
             // Prevent SOE of methods with an implicit LHS that refers to the subject of a when expression.
             if (functionCall.getArgumentList().getArguments().get(0) instanceof FirWhenSubjectExpression) {
-                left = new J.Empty(randomId(), EMPTY, Markers.EMPTY);
+                left = new J.Empty(nextId(), EMPTY, Markers.EMPTY);
             } else {
                 left = (Expression) visitElement(functionCall.getArgumentList().getArguments().get(0), ctx);
             }
@@ -1402,7 +1509,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         }
 
         return new K.Binary(
-                randomId(),
+                nextId(),
                 prefix,
                 Markers.EMPTY,
                 left,
@@ -1412,57 +1519,92 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
                 typeMapping.type(functionCall));
     }
 
+    /**
+     * Map an arithmetic operation and the chain of operations on its left, such as a long string concatenation. The
+     * chain is unrolled into a work stack, so the length of the chain does not bound the depth of the Java stack.
+     */
     private J mapBinaryOperation(FirFunctionCall functionCall) {
-        Space prefix = whitespace();
-        Space binaryPrefix;
+        Deque<FirFunctionCall> operations = new ArrayDeque<>();
+        Deque<Space> prefixes = new ArrayDeque<>();
+        FirFunctionCall operation = functionCall;
+        while (true) {
+            operations.push(operation);
+            prefixes.push(whitespace());
+            if (!isBinaryOperation(operation.getDispatchReceiver())) {
+                break;
+            }
+            operation = (FirFunctionCall) operation.getDispatchReceiver();
+        }
 
-        boolean isParenthesized = false;
-        if (!(functionCall.getDispatchReceiver() instanceof FirFunctionCall) && source.startsWith("(", cursor)) {
-            isParenthesized = true;
-            skip("(");
+        // Only the innermost operation may open a parenthesis, since every other operation has a call as its receiver.
+        Space parenthesesPrefix = null;
+        Space binaryPrefix = prefixes.pop();
+        if (!(operation.getDispatchReceiver() instanceof FirFunctionCall) && cursor.startsWith("(")) {
+            parenthesesPrefix = binaryPrefix;
+            cursor.skip("(");
             // The next whitespace is prefix of the binary operation.
             binaryPrefix = whitespace();
-        } else {
-            binaryPrefix = prefix;
         }
 
-        Expression left = (Expression) visitElement(functionCall.getDispatchReceiver(), ctx);
+        Expression left = (Expression) visitElement(operation.getDispatchReceiver(), ctx);
+        while (true) {
+            operation = operations.pop();
+
+            Space opPrefix;
+            J.Binary.Type javaBinaryType;
+
+            String name = operation.getCalleeReference().getName().asString();
+            switch (name) {
+                case "div":
+                    javaBinaryType = J.Binary.Type.Division;
+                    opPrefix = sourceBefore("/");
+                    break;
+                case "minus":
+                    javaBinaryType = J.Binary.Type.Subtraction;
+                    opPrefix = sourceBefore("-");
+                    break;
+                case "plus":
+                    javaBinaryType = J.Binary.Type.Addition;
+                    opPrefix = sourceBefore("+");
+                    break;
+                case "times":
+                    javaBinaryType = J.Binary.Type.Multiplication;
+                    opPrefix = sourceBefore("*");
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported binary operator type.");
+            }
+            Expression right = (Expression) visitElement(operation.getArgumentList().getArguments().get(0), ctx);
 
-        Space opPrefix;
-        J.Binary.Type javaBinaryType;
+            J.Binary binary = new J.Binary(
+                    nextId(),
+                    binaryPrefix,
+                    Markers.EMPTY,
+                    left,
+                    padLeft(opPrefix, javaBinaryType),
+                    right,
+                    typeMapping.type(operation));
+            left = parenthesesPrefix == null ? binary : new J.Parentheses<Expression>(nextId(), parenthesesPrefix, Markers.EMPTY, padRight(binary, sourceBefore(")")));
+            parenthesesPrefix = null;
+
+            if (operations.isEmpty()) {
+                return left;
+            }
+            binaryPrefix = prefixes.pop();
+        }
+    }
 
-        String name = functionCall.getCalleeReference().getName().asString();
-        switch (name) {
-            case "div":
-                javaBinaryType = J.Binary.Type.Division;
-                opPrefix = sourceBefore("/");
-                break;
-            case "minus":
-                javaBinaryType = J.Binary.Type.Subtraction;
-                opPrefix = sourceBefore("-");
-                break;
-            case "plus":
-                javaBinaryType = J.Binary.Type.Addition;
-                opPrefix = sourceBefore("+");
-                break;
-            case "times":
-                javaBinaryType = J.Binary.Type.Multiplication;
-                opPrefix = sourceBefore("*");
-                break;
-            default:
-                throw new IllegalArgumentException("Unsupported binary operator type.");
+    /**
+     * @return true if the element is an operator call that {@link #visitFunctionCall} maps with {@link #mapBinaryOperation}.
+     */
+    private boolean isBinaryOperation(FirElement element) {
+        if (!(element instanceof FirFunctionCall) || element instanceof FirImplicitInvokeCall ||
+                ((FirFunctionCall) element).getOrigin() != FirFunctionCallOrigin.Operator) {
+            return false;
         }
-        Expression right = (Expression) visitElement(functionCall.getArgumentList().getArguments().get(0), ctx);
 
-        J.Binary binary = new J.Binary(
-                randomId(),
-                binaryPrefix,
-                Markers.EMPTY,
-                left,
-                padLeft(opPrefix, javaBinaryType),
-                right,
-                typeMapping.type(functionCall));
-        return !isParenthesized ? binary : new J.Parentheses<Expression>(randomId(), prefix, Markers.EMPTY, padRight(binary, sourceBefore(")")));
+        String name = ((FirFunctionCall) element).getCalleeReference().getName().asString();
+        return "div".equals(name) || "minus".equals(name) || "plus".equals(name) || "times".equals(name);
     }
 
     @Override
@@ -1473,12 +1615,12 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
             NameTree receiverName = (NameTree) visitElement(functionTypeRef.getReceiverTypeRef(), ctx);
             receiver = JRightPadded.build(receiverName)
                     .withAfter(whitespace());
-            skip(".");
+            cursor.skip(".");
         }
 
         Space prefix = whitespace();
-        boolean parenthesized = source.charAt(cursor) == '(';
-        skip("(");
+        boolean parenthesized = cursor.startsWith('(');
+        cursor.skip("(");
 
         JavaType closureType = typeMapping.type(functionTypeRef);
         if (!functionTypeRef.getValueParameters().isEmpty()) {
@@ -1493,18 +1635,18 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
             }
         }
 
-        J.Lambda.Parameters params = new J.Lambda.Parameters(randomId(), EMPTY, Markers.EMPTY, parenthesized, paramExprs);
+        J.Lambda.Parameters params = new J.Lambda.Parameters(nextId(), EMPTY, Markers.EMPTY, parenthesized, paramExprs);
         if (parenthesized && functionTypeRef.getValueParameters().isEmpty()) {
             params = params.getPadding().withParams(singletonList(JRightPadded
-                    .build((J)new J.Empty(randomId(), EMPTY, Markers.EMPTY))
+                    .build((J)new J.Empty(nextId(), EMPTY, Markers.EMPTY))
                     .withAfter(sourceBefore(")"))));
         }
 
         Space arrow = sourceBefore("->");
-        int saveCursor = cursor;
+        int saveCursor = cursor.position();
         whitespace();
         boolean omitBraces = !source.startsWith("{");
-        cursor(saveCursor);
+        cursor.moveTo(saveCursor);
 
         J body = visitElement(functionTypeRef.getReturnTypeRef(), ctx);
         if (body instanceof J.Block) {
@@ -1516,23 +1658,23 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         }
 
         J.Lambda lambda =  new J.Lambda(
-                randomId(),
+                nextId(),
                 prefix,
-                omitBraces ? Markers.EMPTY.addIfAbsent(new OmitBraces(randomId())) : Markers.EMPTY,
+                omitBraces ? Markers.EMPTY.addIfAbsent(new OmitBraces(nextId())) : Markers.EMPTY,
                 params,
                 arrow,
                 body,
                 closureType);
 
         return new K.FunctionType(
-                randomId(),
+                nextId(),
                 lambda,
                 receiver);
     }
 
     @Override
     public J visitImport(FirImport firImport, ExecutionContext ctx) {
-        Space prefix = sourceBefore("import");
+        Space prefix = sourceBefore("import", firImport);
         JLeftPadded<Boolean> statik = padLeft(EMPTY, false);
 
         Space space = whitespace();
@@ -1540,20 +1682,20 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
                 firImport.getImportedFqName().asString() + ".*" :
                 firImport.getImportedFqName().asString();
         J.FieldAccess qualid = TypeTree.build(packageName).withPrefix(space);
-        skip(qualid.toString());
+        cursor.skip(qualid.toString());
         JLeftPadded<J.Identifier> alias = null;
         if(firImport.getAliasName() != null) {
             Space asPrefix = sourceBefore("as");
             Space aliasPrefix = whitespace();
             String aliasText = firImport.getAliasName().asString();
-            cursor += aliasText.length();
+            cursor.advance(aliasText.length());
             // This feels not quite right, could probably record type information here
             J.Identifier aliasId = createIdentifier(aliasText)
                     .withPrefix(aliasPrefix);
             alias = padLeft(asPrefix, aliasId);
         }
         return new J.Import(
-                randomId(),
+                nextId(),
                 prefix,
                 Markers.EMPTY,
                 statik,
@@ -1564,13 +1706,13 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
     @Override
     public J visitPackageDirective(FirPackageDirective packageDirective, ExecutionContext ctx) {
         Space pkgPrefix = whitespace();
-        skip("package");
+        cursor.skip("package");
 
         Space pkgNamePrefix = whitespace();
         String packageName = packageDirective.getPackageFqName().asString();
-        skip(packageName);
+        cursor.skip(packageName);
         return new J.Package(
-                randomId(),
+                nextId(),
                 pkgPrefix,
                 Markers.EMPTY,
                 TypeTree.build(packageName).withPrefix(pkgNamePrefix),
@@ -1580,7 +1722,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
     @Override
     public J visitGetClassCall(FirGetClassCall getClassCall, ExecutionContext ctx) {
         return new J.MemberReference(
-                randomId(),
+                nextId(),
                 whitespace(),
                 Markers.EMPTY,
                 padRight((Expression) visitElement(getClassCall.getArgument(), ctx), sourceBefore("::")),
@@ -1594,7 +1736,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
     @Override
     public J visitLabel(FirLabel label, ExecutionContext ctx) {
         return new J.Label(
-                randomId(),
+                nextId(),
                 whitespace(),
                 Markers.EMPTY,
                 padRight(createIdentifier(label.getName()), sourceBefore("@")),
@@ -1613,7 +1755,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
     public J visitNamedArgumentExpression(FirNamedArgumentExpression namedArgumentExpression, ExecutionContext ctx) {
         Space prefix = whitespace();
         return new J.Assignment(
-                randomId(),
+                nextId(),
                 prefix,
                 Markers.EMPTY,
                 createIdentifier(namedArgumentExpression.getName().toString()),
@@ -1631,14 +1773,14 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
 
         JRightPadded<J.VariableDeclarations.NamedVariable> receiver = null;
         if (property.getReceiverTypeRef() != null) {
-            markers = markers.addIfAbsent(new ReceiverType(randomId()));
+            markers = markers.addIfAbsent(new ReceiverType(nextId()));
             J.Identifier receiverName = (J.Identifier) visitElement(property.getReceiverTypeRef(), ctx);
 
             // Temporary wrapper to move forward ...
             // The property receiver should be placed in the getter / setter.
             receiver = JRightPadded.build(
                     new J.VariableDeclarations.NamedVariable(
-                            randomId(),
+                            nextId(),
                             receiverName.getPrefix(),
                             Markers.EMPTY,
                             receiverName.withPrefix(EMPTY),
@@ -1661,10 +1803,10 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
             FirResolvedTypeRef typeRef = (FirResolvedTypeRef) property.getReturnTypeRef();
             if (typeRef.getDelegatedTypeRef() != null) {
                 Space delimiterPrefix = whitespace();
-                boolean addTypeReferencePrefix = source.startsWith(":", cursor);
-                skip(":");
+                boolean addTypeReferencePrefix = cursor.startsWith(":");
+                cursor.skip(":");
                 if (addTypeReferencePrefix) {
-                    markers = markers.addIfAbsent(new TypeReferencePrefix(randomId(), delimiterPrefix));
+                    markers = markers.addIfAbsent(new TypeReferencePrefix(nextId(), delimiterPrefix));
                 }
                 typeExpression = (TypeTree) visitElement(typeRef.getDelegatedTypeRef(), ctx);
             }
@@ -1676,23 +1818,23 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         List<JLeftPadded<Space>> dimensionsAfterName = emptyList();
 
         J expr = null;
-        int saveCursor = cursor;
+        int saveCursor = cursor.position();
         Space exprPrefix = whitespace();
-        if (property.getInitializer() != null && source.startsWith("=", cursor)) {
-            skip("=");
+        if (property.getInitializer() != null && cursor.startsWith("=")) {
+            cursor.skip("=");
             expr = visitElement(property.getInitializer(), ctx);
             if (expr instanceof Statement && !(expr instanceof Expression)) {
-                expr = new K.StatementExpression(randomId(), (Statement) expr);
+                expr = new K.StatementExpression(nextId(), (Statement) expr);
             }
         } else {
             exprPrefix = EMPTY;
-            cursor(saveCursor);
+            cursor.moveTo(saveCursor);
         }
 
         if (property.getGetter() != null && !(property.getGetter() instanceof FirDefaultPropertyGetter)) {
             expr =  visitElement(property.getGetter(), ctx);
             if (expr instanceof Statement && !(expr instanceof Expression)) {
-                expr = new K.StatementExpression(randomId(), (Statement) expr);
+                expr = new K.StatementExpression(nextId(), (Statement) expr);
             }
         }
 
@@ -1702,7 +1844,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
 
         JRightPadded<J.VariableDeclarations.NamedVariable> namedVariable = maybeSemicolon(
                 new J.VariableDeclarations.NamedVariable(
-                        randomId(),
+                        nextId(),
                         namePrefix,
                         Markers.EMPTY,
                         name,
@@ -1713,7 +1855,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         vars.add(namedVariable);
 
         return new J.VariableDeclarations(
-                randomId(),
+                nextId(),
                 prefix,
                 markers,
                 annotations,
@@ -1732,16 +1874,16 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
             Expression target = (Expression) visitElement(propertyAccessExpression.getExplicitReceiver(), ctx);
             Space before = whitespace();
             Markers markers = Markers.EMPTY;
-            if (source.startsWith(".", cursor)) {
-                skip(".");
-            } else if (source.startsWith("?.", cursor)) {
-                skip("?.");
-                markers = markers.addIfAbsent(new IsNullable(randomId(), EMPTY));
+            if (cursor.startsWith(".")) {
+                cursor.skip(".");
+            } else if (cursor.startsWith("?.")) {
+                cursor.skip("?.");
+                markers = markers.addIfAbsent(new IsNullable(nextId(), EMPTY));
             }
 
             JLeftPadded<J.Identifier> name = padLeft(before, (J.Identifier) visitElement(propertyAccessExpression.getCalleeReference(), ctx));
             return new J.FieldAccess(
-                    randomId(),
+                    nextId(),
                     prefix,
                     markers,
                     target,
@@ -1763,7 +1905,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
             JRightPadded<J.VariableDeclarations.NamedVariable> infixReceiver = null;
 
             J.TypeParameters typeParameters = propertyAccessor.getTypeParameters().isEmpty() ? null :
-                    new J.TypeParameters(randomId(), sourceBefore("<"), Markers.EMPTY,
+                    new J.TypeParameters(nextId(), sourceBefore("<"), Markers.EMPTY,
                             emptyList(),
                             convertAll(propertyAccessor.getTypeParameters(), commaDelim, t -> sourceBefore(">"), ctx));
 
@@ -1772,39 +1914,39 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
 
             JContainer<Statement> params;
             Space paramFmt = sourceBefore("(");
-            params = JContainer.build(paramFmt, singletonList(padRight(new J.Empty(randomId(), sourceBefore(")"), Markers.EMPTY), EMPTY)), Markers.EMPTY);
+            params = JContainer.build(paramFmt, singletonList(padRight(new J.Empty(nextId(), sourceBefore(")"), Markers.EMPTY), EMPTY)), Markers.EMPTY);
 
-            int saveCursor = cursor;
+            int saveCursor = cursor.position();
             Space nextPrefix = whitespace();
             TypeTree returnTypeExpression = null;
             // Only add the type reference if it exists in source code.
-            if (!(propertyAccessor.getReturnTypeRef() instanceof FirImplicitUnitTypeRef) && source.startsWith(":", cursor)) {
-                skip(":");
-                markers = markers.addIfAbsent(new TypeReferencePrefix(randomId(), nextPrefix));
+            if (!(propertyAccessor.getReturnTypeRef() instanceof FirImplicitUnitTypeRef) && cursor.startsWith(":")) {
+                cursor.skip(":");
+                markers = markers.addIfAbsent(new TypeReferencePrefix(nextId(), nextPrefix));
                 returnTypeExpression = (TypeTree) visitElement(propertyAccessor.getReturnTypeRef(), ctx);
             } else {
-                cursor(saveCursor);
+                cursor.moveTo(saveCursor);
             }
 
             J.Block body = null;
-            saveCursor = cursor;
+            saveCursor = cursor.position();
             Space blockPrefix = whitespace();
             if (propertyAccessor.getBody() instanceof FirSingleExpressionBlock) {
-                if (source.startsWith("=", cursor)) {
-                    skip("=");
-                    SingleExpressionBlock singleExpressionBlock = new SingleExpressionBlock(randomId());
+                if (cursor.startsWith("=")) {
+                    cursor.skip("=");
+                    SingleExpressionBlock singleExpressionBlock = new SingleExpressionBlock(nextId());
 
                     body = convertOrNull(propertyAccessor.getBody(), ctx);
                     body = body.withPrefix(blockPrefix);
                     body = body.withMarkers(body.getMarkers().addIfAbsent(singleExpressionBlock));
                 }
             } else {
-                cursor(saveCursor);
+                cursor.moveTo(saveCursor);
                 body = convertOrNull(propertyAccessor.getBody(), ctx);
             }
 
             return new J.MethodDeclaration(
-                    randomId(),
+                    nextId(),
                     prefix,
                     markers,
                     annotations == null ? emptyList() : annotations,
@@ -1833,12 +1975,12 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         if (returnExpression.getResult() instanceof FirUnitExpression) {
             Space prefix = whitespace();
             J.Identifier label = null;
-            if (source.startsWith("return@", cursor)) {
-                skip("return@");
+            if (cursor.startsWith("return@")) {
+                cursor.skip("return@");
                 label = createIdentifier(returnExpression.getTarget().getLabelName());
             }
 
-            return new K.KReturn(randomId(), new J.Return(randomId(), prefix, Markers.EMPTY, null), label);
+            return new K.KReturn(nextId(), new J.Return(nextId(), prefix, Markers.EMPTY, null), label);
         }
 
         return visitElement(returnExpression.getResult(), ctx);
@@ -1879,7 +2021,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         List<J.Annotation> annotations = mapModifiers(simpleFunction.getAnnotations(), simpleFunction.getName().asString());
 
         J.TypeParameters typeParameters = simpleFunction.getTypeParameters().isEmpty() ? null :
-                new J.TypeParameters(randomId(), sourceBefore("<"), Markers.EMPTY,
+                new J.TypeParameters(nextId(), sourceBefore("<"), Markers.EMPTY,
                         emptyList(),
                         convertAll(simpleFunction.getTypeParameters(), commaDelim, t -> sourceBefore(">"), ctx));
 
@@ -1888,13 +2030,13 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
             // Infix functions are de-sugared during the backend phase of the compiler.
             // The de-sugaring process moves the infix receiver to the first position of the method declaration.
             // The infix receiver is added as to the `J.MethodInvocation` parameters, and marked to distinguish the parameter.
-            markers = markers.addIfAbsent(new ReceiverType(randomId()));
+            markers = markers.addIfAbsent(new ReceiverType(nextId()));
             Expression receiver = (Expression) visitElement(simpleFunction.getReceiverTypeRef(), ctx);
             infixReceiver = JRightPadded.build(new J.VariableDeclarations.NamedVariable(
-                    randomId(),
+                    nextId(),
                     EMPTY,
-                    Markers.EMPTY.addIfAbsent(new ReceiverType(randomId())),
-                    new J.Identifier(randomId(), EMPTY, Markers.EMPTY, "<receiverType>", null, null),
+                    Markers.EMPTY.addIfAbsent(new ReceiverType(nextId())),
+                    new J.Identifier(nextId(), EMPTY, Markers.EMPTY, "<receiverType>", null, null),
                     emptyList(),
                     padLeft(EMPTY, receiver),
                     null))
@@ -1915,55 +2057,55 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         Space before = sourceBefore("(");
         params = !simpleFunction.getValueParameters().isEmpty() ?
                 JContainer.build(before, convertAll(simpleFunction.getValueParameters(), commaDelim, t -> sourceBefore(")"), ctx), Markers.EMPTY) :
-                JContainer.build(before, singletonList(padRight(new J.Empty(randomId(), sourceBefore(")"), Markers.EMPTY), EMPTY)), Markers.EMPTY);
+                JContainer.build(before, singletonList(padRight(new J.Empty(nextId(), sourceBefore(")"), Markers.EMPTY), EMPTY)), Markers.EMPTY);
 
         if (simpleFunction.getReceiverTypeRef() != null) {
             // Insert the infix receiver to the list of parameters.
             J.VariableDeclarations implicitParam = new J.VariableDeclarations(
-                    randomId(),
+                    nextId(),
                     EMPTY,
-                    Markers.EMPTY.addIfAbsent(new ReceiverType(randomId())),
+                    Markers.EMPTY.addIfAbsent(new ReceiverType(nextId())),
                     emptyList(),
                     emptyList(),
                     null,
                     null,
                     emptyList(),
                     singletonList(infixReceiver));
-            implicitParam = implicitParam.withMarkers(implicitParam.getMarkers().addIfAbsent(new TypeReferencePrefix(randomId(), EMPTY)));
+            implicitParam = implicitParam.withMarkers(implicitParam.getMarkers().addIfAbsent(new TypeReferencePrefix(nextId(), EMPTY)));
             List<JRightPadded<Statement>> newStatements = new ArrayList<>(params.getElements().size() + 1);
             newStatements.add(JRightPadded.build(implicitParam));
             newStatements.addAll(params.getPadding().getElements());
             params = params.getPadding().withElements(newStatements);
         }
 
-        int saveCursor = cursor;
+        int saveCursor = cursor.position();
         TypeTree returnTypeExpression = null;
         before = whitespace();
-        if (source.startsWith(":", cursor)) {
-            skip(":");
-            markers = markers.addIfAbsent(new TypeReferencePrefix(randomId(), before));
+        if (cursor.startsWith(":")) {
+            cursor.skip(":");
+            markers = markers.addIfAbsent(new TypeReferencePrefix(nextId(), before));
 
             returnTypeExpression = (TypeTree) visitElement(simpleFunction.getReturnTypeRef(), ctx);
 
-            saveCursor = cursor;
+            saveCursor = cursor.position();
             before = whitespace();
-            if (source.startsWith("?", cursor)) {
+            if (cursor.startsWith("?")) {
                 returnTypeExpression = returnTypeExpression.withMarkers(
-                        returnTypeExpression.getMarkers().addIfAbsent(new IsNullable(randomId(), before)));
+                        returnTypeExpression.getMarkers().addIfAbsent(new IsNullable(nextId(), before)));
             } else {
-                cursor(saveCursor);
+                cursor.moveTo(saveCursor);
             }
         } else {
-            cursor(saveCursor);
+            cursor.moveTo(saveCursor);
         }
 
         J.Block body;
-        saveCursor = cursor;
+        saveCursor = cursor.position();
         before = whitespace();
         if (simpleFunction.getBody() instanceof FirSingleExpressionBlock) {
-            if (source.startsWith("=", cursor)) {
-                skip("=");
-                SingleExpressionBlock singleExpressionBlock = new SingleExpressionBlock(randomId());
+            if (cursor.startsWith("=")) {
+                cursor.skip("=");
+                SingleExpressionBlock singleExpressionBlock = new SingleExpressionBlock(nextId());
 
                 body = convertOrNull(simpleFunction.getBody(), ctx);
                 body = body.withPrefix(before);
@@ -1972,12 +2114,12 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
                 throw new IllegalStateException("Unexpected single block expression.");
             }
         } else {
-            cursor(saveCursor);
+            cursor.moveTo(saveCursor);
             body = convertOrNull(simpleFunction.getBody(), ctx);
         }
 
         return new J.MethodDeclaration(
-                randomId(),
+                nextId(),
                 prefix,
                 markers,
                 annotations,
@@ -1995,41 +2137,41 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
     @Override
     public J visitStarProjection(FirStarProjection starProjection, ExecutionContext ctx) {
         Space prefix = whitespace();
-        skip("*");
-        return new J.Wildcard(randomId(), prefix, Markers.EMPTY, null, null);
+        cursor.skip("*");
+        return new J.Wildcard(nextId(), prefix, Markers.EMPTY, null, null);
     }
 
     @Override
     public J visitStringConcatenationCall(FirStringConcatenationCall stringConcatenationCall, ExecutionContext ctx) {
         Space prefix = whitespace();
         String delimiter;
-        if (source.startsWith("\"\"\"", cursor)) {
+        if (cursor.startsWith("\"\"\"")) {
             delimiter = "\"\"\"";
-        } else if (source.startsWith("$", cursor)) {
+        } else if (cursor.startsWith("$")) {
             delimiter = "$";
         } else {
             delimiter = "\"";
         }
-        cursor += delimiter.length();
+        cursor.advance(delimiter.length());
         List<J> values = new ArrayList<>(stringConcatenationCall.getArgumentList().getArguments().size());
         for (FirExpression e : stringConcatenationCall.getArgumentList().getArguments()) {
-            if (source.startsWith("$", cursor)) {
-                skip("$");
-                boolean inBraces = source.startsWith("{", cursor);
+            if (cursor.startsWith("$")) {
+                cursor.skip("$");
+                boolean inBraces = cursor.startsWith("{");
                 if (inBraces) {
-                    skip("{");
+                    cursor.skip("{");
                 }
-                values.add(new K.KString.Value(randomId(), Markers.EMPTY, visitElement(e, ctx), inBraces));
+                values.add(new K.KString.Value(nextId(), Markers.EMPTY, visitElement(e, ctx), inBraces));
                 if (inBraces) {
-                    skip("}");
+                    cursor.skip("}");
                 }
             } else {
                 values.add(visitElement(e, ctx));
             }
         }
-        cursor += delimiter.length();
+        cursor.advance(delimiter.length());
         return new K.KString(
-                randomId(),
+                nextId(),
                 prefix,
                 Markers.EMPTY,
                 delimiter,
@@ -2039,9 +2181,9 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
 
     @Override
     public J visitThisReceiverExpression(FirThisReceiverExpression thisReceiverExpression, ExecutionContext ctx) {
-        Space prefix = sourceBefore("this");
+        Space prefix = sourceBefore("this", thisReceiverExpression);
 
-        return new J.Identifier(randomId(),
+        return new J.Identifier(nextId(),
                 prefix,
                 Markers.EMPTY,
                 "this",
@@ -2065,14 +2207,14 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
                 break;
             case NOT_IS:
                 after = sourceBefore("!is");
-                markers = markers.addIfAbsent(new NotIs(randomId()));
+                markers = markers.addIfAbsent(new NotIs(nextId()));
                 break;
             case AS:
                 after = sourceBefore("as");
                 break;
             case SAFE_AS:
                 after = sourceBefore("as?");
-                markers = markers.addIfAbsent(new IsNullable(randomId(), EMPTY));
+                markers = markers.addIfAbsent(new IsNullable(nextId(), EMPTY));
                 break;
             default:
                 throw new IllegalArgumentException("Unsupported type operator " + typeOperatorCall.getOperation().name());
@@ -2080,11 +2222,11 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
 
         if (typeOperatorCall.getOperation() == FirOperation.AS || typeOperatorCall.getOperation() == FirOperation.SAFE_AS) {
             return new J.TypeCast(
-                    randomId(),
+                    nextId(),
                     prefix,
                     markers,
                     new J.ControlParentheses<>(
-                            randomId(),
+                            nextId(),
                             after,
                             Markers.EMPTY,
                             JRightPadded.build((TypeTree) visitElement(typeOperatorCall.getConversionTypeRef(), ctx))),
@@ -2095,7 +2237,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
             J clazz = visitElement(typeOperatorCall.getConversionTypeRef(), ctx);
             J pattern = null;
             return new J.InstanceOf(
-                    randomId(),
+                    nextId(),
                     prefix,
                     markers,
                     expr,
@@ -2118,7 +2260,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         if (typeParameter.isReified()) {
             // Add reified as an annotation to preserve whitespace.
             J.Identifier name = new J.Identifier(
-                    randomId(),
+                    nextId(),
                     EMPTY,
                     Markers.EMPTY,
                     "reified",
@@ -2126,7 +2268,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
                     null
             );
 
-            J.Annotation reified = new J.Annotation(randomId(), sourceBefore("reified"), Markers.EMPTY.addIfAbsent(new Modifier(randomId())), name, JContainer.empty());
+            J.Annotation reified = new J.Annotation(nextId(), sourceBefore("reified"), Markers.EMPTY.addIfAbsent(new Modifier(nextId())), name, JContainer.empty());
             annotations.add(reified);
         }
 
@@ -2142,18 +2284,18 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         }
 
         // Generate a J.WildCard if there is an implicit any bound.
-        if (hasImplicitAny && (source.startsWith("in", cursor) || source.startsWith("out", cursor))) {
+        if (hasImplicitAny && (cursor.startsWith("in") || cursor.startsWith("out"))) {
             J.Wildcard.Bound bound;
-            if (source.startsWith("in", cursor)) {
-                skip("in");
+            if (cursor.startsWith("in")) {
+                cursor.skip("in");
                 bound = J.Wildcard.Bound.Super;
             } else {
-                skip("out");
+                cursor.skip("out");
                 bound = J.Wildcard.Bound.Extends;
             }
             NameTree name = createIdentifier(typeParameter.getName().asString(), typeParameter);
             return new J.Wildcard(
-                    randomId(),
+                    nextId(),
                     prefix,
                     Markers.EMPTY,
                     padLeft(EMPTY, bound),
@@ -2169,7 +2311,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
             }
 
             return new J.TypeParameter(
-                    randomId(),
+                    nextId(),
                     prefix,
                     markers,
                     annotations,
@@ -2181,7 +2323,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
     @Override
     public J visitTryExpression(FirTryExpression tryExpression, ExecutionContext ctx) {
         Space prefix = whitespace();
-        skip("try");
+        cursor.skip("try");
 
         JContainer<J.Try.Resource> resources = null;
         J.Block block = (J.Block) visitElement(tryExpression.getTryBlock(), ctx);
@@ -2193,7 +2335,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         JLeftPadded<J.Block> finallyy = tryExpression.getFinallyBlock() == null ? null :
                 padLeft(sourceBefore("finally"), (J.Block) visitElement(tryExpression.getFinallyBlock(), ctx));
 
-        return new J.Try(randomId(),
+        return new J.Try(nextId(),
                 prefix,
                 Markers.EMPTY,
                 resources,
@@ -2225,7 +2367,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
 
         Space prefix = whitespace();
         NameTree nameTree = TypeTree.build(name.toString());
-        skip(name.toString());
+        cursor.skip(name.toString());
         FirQualifierPart part = userTypeRef.getQualifier().get(userTypeRef.getQualifier().size() - 1);
         if (!part.getTypeArgumentList().getTypeArguments().isEmpty()) {
             Space typeArgPrefix = sourceBefore("<");
@@ -2242,11 +2384,11 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
             }
 
             if (userTypeRef.isMarkedNullable()) {
-                markers = markers.addIfAbsent(new IsNullable(randomId(), sourceBefore("?")));
+                markers = markers.addIfAbsent(new IsNullable(nextId(), sourceBefore("?")));
             }
 
             return new J.ParameterizedType(
-                    randomId(),
+                    nextId(),
                     prefix,
                     markers,
                     nameTree,
@@ -2254,7 +2396,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
                     typeMapping.type(userTypeRef));
         } else {
             if (userTypeRef.isMarkedNullable()) {
-                markers = markers.addIfAbsent(new IsNullable(randomId(), sourceBefore("?")));
+                markers = markers.addIfAbsent(new IsNullable(nextId(), sourceBefore("?")));
             }
 
             return nameTree.withPrefix(prefix)
@@ -2291,16 +2433,16 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
             FirResolvedTypeRef typeRef = (FirResolvedTypeRef) valueParameter.getReturnTypeRef();
             if (typeRef.getDelegatedTypeRef() != null) {
                 Space delimiterPrefix = whitespace();
-                boolean addTypeReferencePrefix = source.startsWith(":", cursor);
-                skip(":");
+                boolean addTypeReferencePrefix = cursor.startsWith(":");
+                cursor.skip(":");
                 if (addTypeReferencePrefix) {
-                    markers = markers.addIfAbsent(new TypeReferencePrefix(randomId(), delimiterPrefix));
+                    markers = markers.addIfAbsent(new TypeReferencePrefix(nextId(), delimiterPrefix));
                 }
                 J j = visitElement(typeRef.getDelegatedTypeRef(), ctx);
                 if (j instanceof TypeTree) {
                     typeExpression = (TypeTree) j;
                 } else {
-                    typeExpression = new K.FunctionType(randomId(), (TypedTree) j, null);
+                    typeExpression = new K.FunctionType(nextId(), (TypedTree) j, null);
                 }
             }
         }
@@ -2311,7 +2453,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         FirExpression initializer = valueParameter.getInitializer() != null ? valueParameter.getInitializer() : valueParameter.getDefaultValue() != null ? valueParameter.getDefaultValue() : null;
         JRightPadded<J.VariableDeclarations.NamedVariable> namedVariable = maybeSemicolon(
                 new J.VariableDeclarations.NamedVariable(
-                        randomId(),
+                        nextId(),
                         namePrefix,
                         Markers.EMPTY,
                         name,
@@ -2323,7 +2465,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         vars.add(namedVariable);
 
         return new J.VariableDeclarations(
-                randomId(),
+                nextId(),
                 prefix,
                 markers,
                 annotations,
@@ -2351,7 +2493,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
                 Expression target = (Expression) visitElement(variableAssignment.getExplicitReceiver(), ctx);
                 JLeftPadded<J.Identifier> name = padLeft(sourceBefore("."), (J.Identifier) visitElement(variableAssignment.getLValue(), ctx));
                 variable = new J.FieldAccess(
-                        randomId(),
+                        nextId(),
                         EMPTY,
                         Markers.EMPTY,
                         target,
@@ -2361,28 +2503,28 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
                 variable = convert(variableAssignment.getLValue(), ctx);
             }
 
-            int saveCursor = cursor;
+            int saveCursor = cursor.position();
             whitespace();
-            boolean isCompoundAssignment = source.startsWith("-=", cursor) ||
-                    source.startsWith("+=", cursor) ||
-                    source.startsWith("*=", cursor) ||
-                    source.startsWith("/=", cursor);
-            cursor(saveCursor);
+            boolean isCompoundAssignment = cursor.startsWith("-=") ||
+                    cursor.startsWith("+=") ||
+                    cursor.startsWith("*=") ||
+                    cursor.startsWith("/=");
+            cursor.moveTo(saveCursor);
 
             if (isCompoundAssignment) {
                 Space opPrefix = whitespace();
                 J.AssignmentOperation.Type op;
-                if (source.startsWith("-=", cursor)) {
-                    skip("-=");
+                if (cursor.startsWith("-=")) {
+                    cursor.skip("-=");
                     op = J.AssignmentOperation.Type.Subtraction;
-                } else if (source.startsWith("+=", cursor)) {
-                    skip("+=");
+                } else if (cursor.startsWith("+=")) {
+                    cursor.skip("+=");
                     op = J.AssignmentOperation.Type.Addition;
-                } else if (source.startsWith("*=", cursor)) {
-                    skip("*=");
+                } else if (cursor.startsWith("*=")) {
+                    cursor.skip("*=");
                     op = J.AssignmentOperation.Type.Multiplication;
-                } else if (source.startsWith("/=", cursor)) {
-                    skip("/=");
+                } else if (cursor.startsWith("/=")) {
+                    cursor.skip("/=");
                     op = J.AssignmentOperation.Type.Division;
                 } else {
                     throw new IllegalArgumentException("Unexpected compound assignment.");
@@ -2395,7 +2537,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
 
                 FirElement rhs = ((FirFunctionCall) variableAssignment.getRValue()).getArgumentList().getArguments().get(0);
                 return new J.AssignmentOperation(
-                        randomId(),
+                        nextId(),
                         prefix,
                         Markers.EMPTY,
                         variable,
@@ -2404,7 +2546,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
                         typeMapping.type(variableAssignment));
             } else {
                 return new J.Assignment(
-                        randomId(),
+                        nextId(),
                         prefix,
                         Markers.EMPTY,
                         variable,
@@ -2417,8 +2559,8 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
     @Override
     public J visitWhenBranch(FirWhenBranch whenBranch, ExecutionContext ctx) {
         Space prefix = whitespace();
-        if (source.substring(cursor).startsWith("if")) {
-            skip("if");
+        if (cursor.startsWith("if")) {
+            cursor.skip("if");
         } else if (!(whenBranch.getCondition() instanceof FirElseIfTrueCondition ||
                 whenBranch.getCondition() instanceof FirEqualityOperatorCall)) {
             throw new IllegalArgumentException("Unsupported condition type.");
@@ -2435,10 +2577,10 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
             FirElement result = singleExpression ? ((FirSingleExpressionBlock) whenBranch.getResult()).getStatement() : whenBranch.getResult();
             J j = convert(result, ctx);
             if (!(j instanceof Statement) && j instanceof Expression) {
-                j = new K.ExpressionStatement(randomId(), (Expression) j);
+                j = new K.ExpressionStatement(nextId(), (Expression) j);
             }
             return new J.If(
-                    randomId(),
+                    nextId(),
                     prefix,
                     Markers.EMPTY,
                     controlParentheses,
@@ -2449,16 +2591,16 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
 
     @Override
     public J visitWhenExpression(FirWhenExpression whenExpression, ExecutionContext ctx) {
-        int saveCursor = cursor;
+        int saveCursor = cursor.position();
         Space prefix = whitespace();
-        if (source.startsWith("when", cursor)) {
+        if (cursor.startsWith("when")) {
             // Create the entire when expression here to simplify visiting `WhenBranch`, since `if` and `when` share the same data structure.
-            skip("when");
+            cursor.skip("when");
 
             J.ControlParentheses<Expression> controlParentheses = null;
             if (whenExpression.getSubject() != null) {
                 controlParentheses =  new J.ControlParentheses<>(
-                        randomId(),
+                        nextId(),
                         sourceBefore("("),
                         Markers.EMPTY,
                         padRight((Expression) visitElement(whenExpression.getSubject(), ctx), sourceBefore(")"))
@@ -2499,7 +2641,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
 
                 J body = visitElement(whenBranch.getResult(), ctx);
                 K.WhenBranch branch = new K.WhenBranch(
-                        randomId(),
+                        nextId(),
                         EMPTY,
                         Markers.EMPTY,
                         expressionContainer,
@@ -2509,7 +2651,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
             }
             Space bodySuffix = sourceBefore("}");
             J.Block body = new J.Block(
-                    randomId(),
+                    nextId(),
                     bodyPrefix,
                     Markers.EMPTY,
                     new JRightPadded<>(false, EMPTY, Markers.EMPTY),
@@ -2517,7 +2659,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
                     bodySuffix);
 
             return new K.When(
-                    randomId(),
+                    nextId(),
                     prefix,
                     Markers.EMPTY,
                     controlParentheses,
@@ -2526,7 +2668,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         }
 
         // Otherwise, create an if branch.
-        cursor(saveCursor);
+        cursor.moveTo(saveCursor);
 
         FirWhenBranch whenBranch = whenExpression.getBranches().get(0);
         J firstElement = visitElement(whenBranch, ctx);
@@ -2544,10 +2686,10 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
             Space elsePrefix = sourceBefore("else");
             J j = visitWhenBranch(branch, ctx);
             if (!(j instanceof Statement) && j instanceof Expression) {
-                j = new K.ExpressionStatement(randomId(), (Expression) j);
+                j = new K.ExpressionStatement(nextId(), (Expression) j);
             }
             J.If.Else ifElse = new J.If.Else(
-                    randomId(),
+                    nextId(),
                     elsePrefix,
                     Markers.EMPTY,
                     JRightPadded.build((Statement) j)
@@ -2575,25 +2717,31 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
     }
 
     private void mapBinaryExpressions(FirBinaryLogicExpression logicExpression, List<JRightPadded<Expression>> expressions) {
-        if (logicExpression.getLeftOperand() instanceof FirBinaryLogicExpression) {
-            mapBinaryExpressions((FirBinaryLogicExpression) logicExpression.getLeftOperand(), expressions);
-        } else if (logicExpression.getLeftOperand() instanceof FirEqualityOperatorCall) {
-            FirEqualityOperatorCall lhs = (FirEqualityOperatorCall) logicExpression.getLeftOperand();
+        Deque<FirBinaryLogicExpression> conditions = new ArrayDeque<>();
+        conditions.push(logicExpression);
+        while (conditions.peek().getLeftOperand() instanceof FirBinaryLogicExpression) {
+            conditions.push((FirBinaryLogicExpression) conditions.peek().getLeftOperand());
+        }
+
+        if (conditions.peek().getLeftOperand() instanceof FirEqualityOperatorCall) {
+            FirEqualityOperatorCall lhs = (FirEqualityOperatorCall) conditions.peek().getLeftOperand();
             Expression left = (Expression) visitElement(lhs.getArgumentList().getArguments().get(1), ctx);
             expressions.add(padRight(left, sourceBefore(",")));
         } else {
             throw new IllegalArgumentException("Unsupported logical operator from when expression.");
         }
 
-        FirEqualityOperatorCall rhs = (FirEqualityOperatorCall) logicExpression.getRightOperand();
-        Expression right = (Expression) visitElement(rhs.getArgumentList().getArguments().get(1), ctx);
-        Space after = whitespace();
-        if (source.startsWith(",", cursor)) {
-            skip(",");
-        } else {
-            skip("->");
+        while (!conditions.isEmpty()) {
+            FirEqualityOperatorCall rhs = (FirEqualityOperatorCall) conditions.pop().getRightOperand();
+            Expression right = (Expression) visitElement(rhs.getArgumentList().getArguments().get(1), ctx);
+            Space after = whitespace();
+            if (cursor.startsWith(",")) {
+                cursor.skip(",");
+            } else {
+                cursor.skip("->");
+            }
+            expressions.add(padRight(right, after));
         }
-        expressions.add(padRight(right, after));
     }
 
     @Override
@@ -2605,11 +2753,11 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         }
 
         Space prefix = whitespace();
-        skip("while");
+        cursor.skip("while");
         J.ControlParentheses<Expression> controlParentheses = mapControlParentheses(whileLoop.getCondition());
         Statement body = (Statement) visitElement(whileLoop.getBlock(), ctx);
         J.WhileLoop statement = new J.WhileLoop(
-                randomId(),
+                nextId(),
                 prefix,
                 Markers.EMPTY,
                 controlParentheses,
@@ -2626,115 +2774,117 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
      */
     @Override
     public J visitElement(FirElement firElement, ExecutionContext ctx) {
-        if (firElement instanceof FirErrorNamedReference) {
-            return visitErrorNamedReference((FirErrorNamedReference) firElement, ctx);
-        } else if (firElement instanceof FirAnnotationCall) {
-            return visitAnnotationCall((FirAnnotationCall) firElement, ctx);
-        } else if (firElement instanceof FirAnonymousFunction) {
-            return visitAnonymousFunction((FirAnonymousFunction) firElement, ctx);
-        } else if (firElement instanceof FirAnonymousFunctionExpression) {
-            return visitAnonymousFunctionExpression((FirAnonymousFunctionExpression) firElement, ctx);
-        } else if (firElement instanceof FirAnonymousObject) {
-            return visitAnonymousObject((FirAnonymousObject) firElement, ctx);
-        } else if (firElement instanceof FirAnonymousObjectExpression) {
-            return visitAnonymousObjectExpression((FirAnonymousObjectExpression) firElement, ctx);
-        } else if (firElement instanceof FirArrayOfCall) {
-            return visitArrayOfCall((FirArrayOfCall) firElement, ctx);
-        } else if (firElement instanceof FirBinaryLogicExpression) {
-            return visitBinaryLogicExpression((FirBinaryLogicExpression) firElement, ctx);
-        } else if (firElement instanceof FirBlock) {
-            return visitBlock((FirBlock) firElement, ctx);
-        } else if (firElement instanceof FirBreakExpression) {
-            return visitBreakExpression((FirBreakExpression) firElement, ctx);
-        } else if (firElement instanceof FirCallableReferenceAccess) {
-            return visitCallableReferenceAccess((FirCallableReferenceAccess) firElement, ctx);
-        } else if (firElement instanceof FirCatch) {
-            return visitCatch((FirCatch) firElement, ctx);
-        } else if (firElement instanceof FirCheckNotNullCall) {
-            return visitCheckNotNullCall((FirCheckNotNullCall) firElement, ctx);
-        } else if (firElement instanceof FirClass) {
-            return visitClass((FirClass) firElement, ctx);
-        } else if (firElement instanceof FirComparisonExpression) {
-            return visitComparisonExpression((FirComparisonExpression) firElement, ctx);
-        } else if (firElement instanceof FirConstExpression) {
-            return visitConstExpression((FirConstExpression<?>) firElement, ctx);
-        } else if (firElement instanceof FirContinueExpression) {
-            return visitContinueExpression((FirContinueExpression) firElement, ctx);
-        } else if (firElement instanceof FirDoWhileLoop) {
-            return visitDoWhileLoop((FirDoWhileLoop) firElement, ctx);
-        } else if (firElement instanceof FirElvisExpression) {
-            return visitElvisExpression((FirElvisExpression) firElement, ctx);
-        } else if (firElement instanceof FirEnumEntry) {
-            return visitEnumEntry((FirEnumEntry) firElement, ctx);
-        } else if (firElement instanceof FirEqualityOperatorCall) {
-            return visitEqualityOperatorCall((FirEqualityOperatorCall) firElement, ctx);
-        } else if (firElement instanceof FirSuperReference) {
-            return visitSuperReference((FirSuperReference) firElement, ctx);
-        } else if (firElement instanceof FirFunctionCall) {
-            return visitFunctionCall((FirFunctionCall) firElement, ctx);
-        } else if (firElement instanceof FirFunctionTypeRef) {
-            return visitFunctionTypeRef((FirFunctionTypeRef) firElement, ctx);
-        } else if (firElement instanceof FirGetClassCall) {
-            return visitGetClassCall((FirGetClassCall) firElement, ctx);
-        } else if (firElement instanceof FirLabel) {
-            return visitLabel((FirLabel) firElement, ctx);
-        } else if (firElement instanceof FirLambdaArgumentExpression) {
-            return visitLambdaArgumentExpression((FirLambdaArgumentExpression) firElement, ctx);
-        } else if (firElement instanceof FirNamedArgumentExpression) {
-            return visitNamedArgumentExpression((FirNamedArgumentExpression) firElement, ctx);
-        } else if (firElement instanceof FirProperty) {
-            return visitProperty((FirProperty) firElement, ctx);
-        } else if (firElement instanceof FirPropertyAccessExpression) {
-            return visitPropertyAccessExpression((FirPropertyAccessExpression) firElement, ctx);
-        } else if (firElement instanceof FirPropertyAccessor) {
-            return visitPropertyAccessor((FirPropertyAccessor) firElement, ctx);
-        } else if (firElement instanceof FirResolvedNamedReference) {
-            return visitResolvedNamedReference((FirResolvedNamedReference) firElement, ctx);
-        } else if (firElement instanceof FirResolvedTypeRef) {
-            return visitResolvedTypeRef((FirResolvedTypeRef) firElement, ctx);
-        } else if (firElement instanceof FirResolvedQualifier) {
-            return visitResolvedQualifier((FirResolvedQualifier) firElement, ctx);
-        } else if (firElement instanceof FirReturnExpression) {
-            return visitReturnExpression((FirReturnExpression) firElement, ctx);
-        } else if (firElement instanceof FirSafeCallExpression) {
-            return visitSafeCallExpression((FirSafeCallExpression) firElement, ctx);
-        } else if (firElement instanceof FirCheckedSafeCallSubject) {
-            return visitCheckedSafeCallSubject((FirCheckedSafeCallSubject) firElement, ctx);
-        } else if (firElement instanceof FirSimpleFunction) {
-            return visitSimpleFunction((FirSimpleFunction) firElement, ctx);
-        } else if (firElement instanceof FirStarProjection) {
-            return visitStarProjection((FirStarProjection) firElement, ctx);
-        } else if (firElement instanceof FirStringConcatenationCall) {
-            return visitStringConcatenationCall((FirStringConcatenationCall) firElement, ctx);
-        } else if (firElement instanceof FirThisReceiverExpression) {
-            return visitThisReceiverExpression((FirThisReceiverExpression) firElement, ctx);
-        } else if (firElement instanceof FirTypeOperatorCall) {
-            return visitTypeOperatorCall((FirTypeOperatorCall) firElement, ctx);
-        } else if (firElement instanceof FirTypeParameter) {
-            return visitTypeParameter((FirTypeParameter) firElement, ctx);
-        } else if (firElement instanceof FirTryExpression) {
-            return visitTryExpression((FirTryExpression) firElement, ctx);
-        } else if (firElement instanceof FirTypeProjectionWithVariance) {
-            return visitTypeProjectionWithVariance((FirTypeProjectionWithVariance) firElement, ctx);
-        } else if (firElement instanceof FirUserTypeRef) {
-            return visitUserTypeRef((FirUserTypeRef) firElement, ctx);
-        } else if (firElement instanceof FirValueParameter) {
-            return visitValueParameter((FirValueParameter) firElement, ctx);
-        } else if (firElement instanceof FirVariableAssignment) {
-            return visitVariableAssignment((FirVariableAssignment) firElement, ctx);
-        }  else if (firElement instanceof FirWhenBranch) {
-            return visitWhenBranch((FirWhenBranch) firElement, ctx);
-        } else if (firElement instanceof FirWhenExpression) {
-            return visitWhenExpression((FirWhenExpression) firElement, ctx);
-        } else if (firElement instanceof FirWhenSubjectExpression) {
-            return visitWhenSubjectExpression((FirWhenSubjectExpression) firElement, ctx);
-        } else if (firElement instanceof FirWhileLoop) {
-            return visitWhileLoop((FirWhileLoop) firElement, ctx);
-        }
-
-        throw new IllegalArgumentException("Unsupported FirElement.");
+        TypeVisit typeVisit = visitsByType.get(firElement.getClass());
+        if (typeVisit == null) {
+            throw new IllegalArgumentException("Unsupported FirElement.");
+        }
+        return typeVisit.visit.visit(this, firElement, ctx);
+    }
+
+    /**
+     * @return the type of element in {@link #typeVisits} that elements of the class are visited as, or null when they
+     * are not supported.
+     */
+    @Nullable
+    static Class<?> visitedAs(Class<? extends FirElement> elementType) {
+        TypeVisit typeVisit = visitsByType.get(elementType);
+        return typeVisit == null ? null : typeVisit.type;
+    }
+
+    @FunctionalInterface
+    private interface ElementVisit<E extends FirElement> {
+        J visit(KotlinParserVisitor visitor, E element, ExecutionContext ctx);
     }
 
+    private static final class TypeVisit {
+        private final Class<?> type;
+        private final ElementVisit<FirElement> visit;
+
+        private TypeVisit(Class<?> type, ElementVisit<FirElement> visit) {
+            this.type = type;
+            this.visit = visit;
+        }
+    }
+
+    private static <E extends FirElement> TypeVisit visit(Class<E> type, ElementVisit<E> visit) {
+        return new TypeVisit(type, (visitor, element, ctx) -> visit.visit(visitor, type.cast(element), ctx));
+    }
+
+    /**
+     * The visit of each type of element, in the order in which they are matched. An element is visited by the first
+     * entry whose type it is an instance of.
+     */
+    private static final List<TypeVisit> typeVisits = Arrays.asList(
+            visit(FirErrorNamedReference.class, KotlinParserVisitor::visitErrorNamedReference),
+            visit(FirAnnotationCall.class, KotlinParserVisitor::visitAnnotationCall),
+            visit(FirAnonymousFunction.class, KotlinParserVisitor::visitAnonymousFunction),
+            visit(FirAnonymousFunctionExpression.class, KotlinParserVisitor::visitAnonymousFunctionExpression),
+            visit(FirAnonymousObject.class, KotlinParserVisitor::visitAnonymousObject),
+            visit(FirAnonymousObjectExpression.class, KotlinParserVisitor::visitAnonymousObjectExpression),
+            visit(FirArrayOfCall.class, KotlinParserVisitor::visitArrayOfCall),
+            visit(FirBinaryLogicExpression.class, KotlinParserVisitor::visitBinaryLogicExpression),
+            visit(FirBlock.class, KotlinParserVisitor::visitBlock),
+            visit(FirBreakExpression.class, KotlinParserVisitor::visitBreakExpression),
+            visit(FirCallableReferenceAccess.class, KotlinParserVisitor::visitCallableReferenceAccess),
+            visit(FirCatch.class, KotlinParserVisitor::visitCatch),
+            visit(FirCheckNotNullCall.class, KotlinParserVisitor::visitCheckNotNullCall),
+            visit(FirClass.class, KotlinParserVisitor::visitClass),
+            visit(FirComparisonExpression.class, KotlinParserVisitor::visitComparisonExpression),
+            visit(FirConstExpression.class, (visitor, element, ctx) -> visitor.visitConstExpression((FirConstExpression<?>) element, ctx)),
+            visit(FirContinueExpression.class, KotlinParserVisitor::visitContinueExpression),
+            visit(FirDoWhileLoop.class, KotlinParserVisitor::visitDoWhileLoop),
+            visit(FirElvisExpression.class, KotlinParserVisitor::visitElvisExpression),
+            visit(FirEnumEntry.class, KotlinParserVisitor::visitEnumEntry),
+            visit(FirEqualityOperatorCall.class, KotlinParserVisitor::visitEqualityOperatorCall),
+            visit(FirSuperReference.class, KotlinParserVisitor::visitSuperReference),
+            visit(FirFunctionCall.class, KotlinParserVisitor::visitFunctionCall),
+            visit(FirFunctionTypeRef.class, KotlinParserVisitor::visitFunctionTypeRef),
+            visit(FirGetClassCall.class, KotlinParserVisitor::visitGetClassCall),
+            visit(FirLabel.class, KotlinParserVisitor::visitLabel),
+            visit(FirLambdaArgumentExpression.class, KotlinParserVisitor::visitLambdaArgumentExpression),
+            visit(FirNamedArgumentExpression.class, KotlinParserVisitor::visitNamedArgumentExpression),
+            visit(FirProperty.class, KotlinParserVisitor::visitProperty),
+            visit(FirPropertyAccessExpression.class, KotlinParserVisitor::visitPropertyAccessExpression),
+            visit(FirPropertyAccessor.class, KotlinParserVisitor::visitPropertyAccessor),
+            visit(FirResolvedNamedReference.class, KotlinParserVisitor::visitResolvedNamedReference),
+            visit(FirResolvedTypeRef.class, KotlinParserVisitor::visitResolvedTypeRef),
+            visit(FirResolvedQualifier.class, KotlinParserVisitor::visitResolvedQualifier),
+            visit(FirReturnExpression.class, KotlinParserVisitor::visitReturnExpression),
+            visit(FirSafeCallExpression.class, KotlinParserVisitor::visitSafeCallExpression),
+            visit(FirCheckedSafeCallSubject.class, KotlinParserVisitor::visitCheckedSafeCallSubject),
+            visit(FirSimpleFunction.class, KotlinParserVisitor::visitSimpleFunction),
+            visit(FirStarProjection.class, KotlinParserVisitor::visitStarProjection),
+            visit(FirStringConcatenationCall.class, KotlinParserVisitor::visitStringConcatenationCall),
+            visit(FirThisReceiverExpression.class, KotlinParserVisitor::visitThisReceiverExpression),
+            visit(FirTypeOperatorCall.class, KotlinParserVisitor::visitTypeOperatorCall),
+            visit(FirTypeParameter.class, KotlinParserVisitor::visitTypeParameter),
+            visit(FirTryExpression.class, KotlinParserVisitor::visitTryExpression),
+            visit(FirTypeProjectionWithVariance.class, KotlinParserVisitor::visitTypeProjectionWithVariance),
+            visit(FirUserTypeRef.class, KotlinParserVisitor::visitUserTypeRef),
+            visit(FirValueParameter.class, KotlinParserVisitor::visitValueParameter),
+            visit(FirVariableAssignment.class, KotlinParserVisitor::visitVariableAssignment),
+            visit(FirWhenBranch.class, KotlinParserVisitor::visitWhenBranch),
+            visit(FirWhenExpression.class, KotlinParserVisitor::visitWhenExpression),
+            visit(FirWhenSubjectExpression.class, KotlinParserVisitor::visitWhenSubjectExpression),
+            visit(FirWhileLoop.class, KotlinParserVisitor::visitWhileLoop)
+    );
+
+    /**
+     * The visit of each concrete FIR class, found once per class rather than by testing the element against every type.
+     */
+    private static final ClassValue<TypeVisit> visitsByType = new ClassValue<TypeVisit>() {
+        @Nullable
+        @Override
+        protected TypeVisit computeValue(Class<?> type) {
+            for (TypeVisit typeVisit : typeVisits) {
+                if (typeVisit.type.isAssignableFrom(type)) {
+                    return typeVisit;
+                }
+            }
+            return null;
+        }
+    };
+
     private J.Identifier createIdentifier(String name) {
         return createIdentifier(name, null, null);
     }
@@ -2746,21 +2896,21 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
     @SuppressWarnings("SameParameterValue")
     private J.Identifier createIdentifier(String name, @Nullable JavaType type, @Nullable JavaType.Variable fieldType) {
         Space prefix = whitespace();
-        boolean isQuotedSymbol = source.startsWith("`", cursor);
+        boolean isQuotedSymbol = cursor.startsWith("`");
         String value;
         if (isQuotedSymbol) {
-            skip("`");
-            value = source.substring(cursor, cursor + source.substring(cursor).indexOf('`'));
-            skip(value);
-            skip("`");
+            cursor.skip("`");
+            value = cursor.region(cursor.indexOf('`'));
+            cursor.skip(value);
+            cursor.skip("`");
             value = "`" + value + "`";
         } else {
             value = name;
-            skip(value);
+            cursor.skip(value);
         }
 
         return new J.Identifier(
-                randomId(),
+                nextId(),
                 prefix,
                 Markers.EMPTY,
                 value,
@@ -2770,7 +2920,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
     }
 
     private J.Annotation convertToAnnotation(K.Modifier modifier) {
-        J.Identifier name = new J.Identifier(randomId(),
+        J.Identifier name = new J.Identifier(nextId(),
                 EMPTY,
                 Markers.EMPTY,
                 modifier.getType().name().toLowerCase(),
@@ -2778,9 +2928,9 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
                 null);
 
         return new J.Annotation(
-                randomId(),
+                nextId(),
                 modifier.getPrefix(),
-                Markers.EMPTY.addIfAbsent(new Modifier(randomId())),
+                Markers.EMPTY.addIfAbsent(new Modifier(nextId())),
                 name,
                 JContainer.empty());
     }
@@ -2813,8 +2963,8 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
 
     private J.ControlParentheses<Expression> mapControlParentheses(FirElement firElement) {
         Space controlParenPrefix = whitespace();
-        skip("(");
-        return new J.ControlParentheses<>(randomId(), controlParenPrefix, Markers.EMPTY,
+        cursor.skip("(");
+        return new J.ControlParentheses<>(nextId(), controlParenPrefix, Markers.EMPTY,
                 convert(firElement, t -> sourceBefore(")"), ctx));
     }
 
@@ -2829,14 +2979,15 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         }
 
         Space prefix = whitespace();
-        skip("for");
+        cursor.skip("for");
         Space controlPrefix = sourceBefore("(");
 
         J.VariableDeclarations variable;
 
         int additionalVariables = 0;
         if ("<destruct>".equals(receiver.getName().asString())) {
-            additionalVariables = source.substring(cursor, cursor + source.substring(cursor).indexOf(")") + 1).split(",").length;
+            int closeParen = cursor.indexOf(')');
+            additionalVariables = cursor.region(closeParen < 0 ? cursor.position() : closeParen + 1).split(",").length;
 
             Space variablePrefix = sourceBefore("(");
             List<FirStatement> statements = forLoop.getBlock().getStatements();
@@ -2853,7 +3004,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
             }
 
             variable = new J.VariableDeclarations(
-                    randomId(),
+                    nextId(),
                     variablePrefix,
                     Markers.EMPTY,
                     emptyList(),
@@ -2879,7 +3030,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
 
         Space afterExpression = sourceBefore(")");
         J.ForEachLoop.Control control = new J.ForEachLoop.Control(
-                randomId(),
+                nextId(),
                 controlPrefix,
                 Markers.EMPTY,
                 padRight(variable, afterVariable),
@@ -2898,7 +3049,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         }
 
         J.ForEachLoop statement = new J.ForEachLoop(
-                randomId(),
+                nextId(),
                 prefix,
                 Markers.EMPTY,
                 control,
@@ -2918,36 +3069,36 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         List<J.Annotation> modifiers = new ArrayList<>();
         int count = 0;
         while (count < 10) {
-            int saveCursor = cursor;
+            int saveCursor = cursor.position();
             Space prefix = whitespace();
 
-            if (cursor == source.length() -1 ||
+            if (cursor.position() == source.length() - 1 ||
                     // Matched stop word.
-                    (source.startsWith(stopWord, cursor) && (source.length() - 1 == cursor + stopWord.length() ||
-                            (Character.isWhitespace(source.charAt(cursor + stopWord.length())) ||
-                                    isDelimiter(source.charAt(cursor + stopWord.length())))))) {
-                cursor(saveCursor);
+                    (cursor.startsWith(stopWord) && (source.length() - 1 == cursor.position() + stopWord.length() ||
+                            (Character.isWhitespace(cursor.peek(stopWord.length())) ||
+                                    isDelimiter(cursor.peek(stopWord.length())))))) {
+                cursor.moveTo(saveCursor);
                 return modifiers;
-            } else if (source.startsWith("@", cursor)) {
-                cursor(saveCursor);
+            } else if (cursor.startsWith("@")) {
+                cursor.moveTo(saveCursor);
                 J.Annotation annotation = mapAnnotation(findMatch);
                 modifiers.add(annotation);
-            } else if ((source.startsWith("val", cursor) || source.startsWith("var", cursor)) &&
-                    (Character.isWhitespace(source.charAt(cursor + 3)) ||
-                            isDelimiter(source.charAt(cursor + 3)))) {
-                String word = source.startsWith("val", cursor) ? "val" : "var";
+            } else if ((cursor.startsWith("val") || cursor.startsWith("var")) &&
+                    (Character.isWhitespace(cursor.peek(3)) ||
+                            isDelimiter(cursor.peek(3)))) {
+                String word = cursor.startsWith("val") ? "val" : "var";
 
                 J.Identifier name = createIdentifier(word);
                 modifiers.add(new J.Annotation(
-                        randomId(),
+                        nextId(),
                         prefix,
-                        Markers.EMPTY.addIfAbsent(new Modifier(randomId())),
+                        Markers.EMPTY.addIfAbsent(new Modifier(nextId())),
                         name,
                         JContainer.empty()));
             } else {
                 K.Modifier modifier = mapModifier(prefix, emptyList());
                 if (modifier == null) {
-                    cursor(saveCursor);
+                    cursor.moveTo(saveCursor);
                     return modifiers;
                 }
                 J.Annotation annotation = convertToAnnotation(modifier);
@@ -2968,93 +3119,93 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
     private K.Modifier mapModifier(Space prefix, List<J.Annotation> annotations) {
         K.Modifier.Type type;
         // Ordered based on kotlin requirements.
-        if (source.startsWith("public", cursor)) {
+        if (cursor.startsWith("public")) {
             type = K.Modifier.Type.Public;
-        } else if (source.startsWith("protected", cursor)) {
+        } else if (cursor.startsWith("protected")) {
             type = K.Modifier.Type.Protected;
-        } else if (source.startsWith("private", cursor)) {
+        } else if (cursor.startsWith("private")) {
             type = K.Modifier.Type.Private;
-        } else if (source.startsWith("internal", cursor)) {
+        } else if (cursor.startsWith("internal")) {
             type = K.Modifier.Type.Internal;
-        } else if (source.startsWith("expect", cursor)) {
+        } else if (cursor.startsWith("expect")) {
             type = K.Modifier.Type.Expect;
-        } else if (source.startsWith("actual", cursor)) {
+        } else if (cursor.startsWith("actual")) {
             type = K.Modifier.Type.Actual;
-        } else if (source.startsWith("final", cursor)) {
+        } else if (cursor.startsWith("final")) {
             type = K.Modifier.Type.Final;
-        } else if (source.startsWith("open", cursor)) {
+        } else if (cursor.startsWith("open")) {
             type = K.Modifier.Type.Open;
-        } else if (source.startsWith("abstract", cursor)) {
+        } else if (cursor.startsWith("abstract")) {
             type = K.Modifier.Type.Abstract;
-        } else if (source.startsWith("sealed", cursor)) {
+        } else if (cursor.startsWith("sealed")) {
             type = K.Modifier.Type.Sealed;
-        } else if (source.startsWith("const", cursor)) {
+        } else if (cursor.startsWith("const")) {
             type = K.Modifier.Type.Const;
-        } else if (source.startsWith("external", cursor)) {
+        } else if (cursor.startsWith("external")) {
             type = K.Modifier.Type.External;
-        } else if (source.startsWith("override", cursor)) {
+        } else if (cursor.startsWith("override")) {
             type = K.Modifier.Type.Override;
-        } else if (source.startsWith("lateinit", cursor)) {
+        } else if (cursor.startsWith("lateinit")) {
             type = K.Modifier.Type.LateInit;
-        } else if (source.startsWith("tailrec", cursor)) {
+        } else if (cursor.startsWith("tailrec")) {
             type = K.Modifier.Type.TailRec;
-        } else if (source.startsWith("vararg", cursor)) {
+        } else if (cursor.startsWith("vararg")) {
             type = K.Modifier.Type.Vararg;
-        } else if (source.startsWith("suspend", cursor)) {
+        } else if (cursor.startsWith("suspend")) {
             type = K.Modifier.Type.Suspend;
-        } else if (source.startsWith("inner", cursor)) {
+        } else if (cursor.startsWith("inner")) {
             type = K.Modifier.Type.Inner;
-        } else if (source.startsWith("enum", cursor)) {
+        } else if (cursor.startsWith("enum")) {
             type = K.Modifier.Type.Enum;
-        } else if (source.startsWith("annotation", cursor)) {
+        } else if (cursor.startsWith("annotation")) {
             type = K.Modifier.Type.Annotation;
-        } else if (source.startsWith("fun", cursor)) {
+        } else if (cursor.startsWith("fun")) {
             type = K.Modifier.Type.Fun;
-        } else if (source.startsWith("companion", cursor)) {
+        } else if (cursor.startsWith("companion")) {
             type = K.Modifier.Type.Companion;
-        } else if (source.startsWith("inline", cursor)) {
+        } else if (cursor.startsWith("inline")) {
             type = K.Modifier.Type.Inline;
-        } else if (source.startsWith("value", cursor)) {
+        } else if (cursor.startsWith("value")) {
             type = K.Modifier.Type.Value;
-        } else if (source.startsWith("infix", cursor)) {
+        } else if (cursor.startsWith("infix")) {
             type = K.Modifier.Type.Infix;
-        } else if (source.startsWith("operator", cursor)) {
+        } else if (cursor.startsWith("operator")) {
             type = K.Modifier.Type.Operator;
-        } else if (source.startsWith("data", cursor)) {
+        } else if (cursor.startsWith("data")) {
             type = K.Modifier.Type.Data;
         } else {
             return null;
         }
 
-        cursor += type.name().length();
-        return new K.Modifier(randomId(), prefix, Markers.EMPTY, type, annotations);
+        cursor.advance(type.name().length());
+        return new K.Modifier(nextId(), prefix, Markers.EMPTY, type, annotations);
     }
 
     private J.Binary.Type mapOperation(FirOperation firOp) {
         J.Binary.Type op = null;
         switch (firOp) {
             case EQ:
-                skip("=");
+                cursor.skip("=");
                 op = J.Binary.Type.Equal;
                 break;
             case NOT_EQ:
-                skip("!=");
+                cursor.skip("!=");
                 op = J.Binary.Type.NotEqual;
                 break;
             case GT:
-                skip(">");
+                cursor.skip(">");
                 op = J.Binary.Type.GreaterThan;
                 break;
             case GT_EQ:
-                skip(">=");
+                cursor.skip(">=");
                 op = J.Binary.Type.GreaterThanOrEqual;
                 break;
             case LT:
-                skip("<");
+                cursor.skip("<");
                 op = J.Binary.Type.LessThan;
                 break;
             case LT_EQ:
-                skip("<=");
+                cursor.skip("<=");
                 op = J.Binary.Type.LessThan;
                 break;
             default:
@@ -3080,16 +3231,6 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
     private final Function<FirElement, Space> commaDelim = ignored -> sourceBefore(",");
     private final Function<FirElement, Space> noDelim = ignored -> EMPTY;
 
-    private void skip(@Nullable String token) {
-        if (token != null && source.startsWith(token, cursor)) {
-            cursor += token.length();
-        }
-    }
-
-    private void cursor(int n) {
-        cursor = n;
-    }
-
     private int endPos(FirElement t) {
         if (t instanceof FirThisReceiverExpression) {
             return 0;
@@ -3110,7 +3251,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
         @SuppressWarnings("ConstantConditions")
         JRightPadded<J2> rightPadded = j == null ? null :
                 new JRightPadded<>(j, suffix.apply(t), Markers.EMPTY);
-        cursor(max(endPos(t), cursor)); // if there is a non-empty suffix, the cursor may have already moved past it
+        cursor.moveTo(max(endPos(t), cursor.position())); // if there is a non-empty suffix, the cursor may have already moved past it
         return rightPadded;
     }
 
@@ -3134,15 +3275,15 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
     }
 
     private <K2 extends J> JRightPadded<K2> maybeSemicolon(K2 k) {
-        int saveCursor = cursor;
+        int saveCursor = cursor.position();
         Space beforeSemi = whitespace();
         Semicolon semicolon = null;
-        if (cursor < source.length() && source.charAt(cursor) == ';') {
-            semicolon = new Semicolon(randomId());
-            cursor++;
+        if (cursor.startsWith(';')) {
+            semicolon = new Semicolon(nextId());
+            cursor.advance(1);
         } else {
             beforeSemi = EMPTY;
-            cursor(saveCursor);
+            cursor.moveTo(saveCursor);
         }
 
         JRightPadded<K2> padded = JRightPadded.build(k).withAfter(beforeSemi);
@@ -3167,48 +3308,7 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
     }
 
     private int positionOfNext(String untilDelim, @Nullable Character stop) {
-        boolean inMultiLineComment = false;
-        boolean inSingleLineComment = false;
-
-        int delimIndex = cursor;
-        for (; delimIndex < source.length() - untilDelim.length() + 1; delimIndex++) {
-            if (inSingleLineComment) {
-                if (source.charAt(delimIndex) == '\n') {
-                    inSingleLineComment = false;
-                }
-            } else {
-                if (source.length() - untilDelim.length() > delimIndex + 1) {
-                    char c1 = source.charAt(delimIndex);
-                    char c2 = source.charAt(delimIndex + 1);
-                    if (c1 == '/') {
-                        if (c2 == '/') {
-                            inSingleLineComment = true;
-                            delimIndex++;
-                        } else if (c2 == '*') {
-                            inMultiLineComment = true;
-                            delimIndex++;
-                        }
-                    } else if (c1 == '*') {
-                        if (c2 == '/') {
-                            inMultiLineComment = false;
-                            delimIndex += 2;
-                        }
-                    }
-                }
-
-                if (!inMultiLineComment && !inSingleLineComment) {
-                    if (stop != null && source.charAt(delimIndex) == stop) {
-                        return -1;
-                    } // reached stop word before finding the delimiter
-
-                    if (source.startsWith(untilDelim, delimIndex)) {
-                        break; // found it!
-                    }
-                }
-            }
-        }
-
-        return delimIndex > source.length() - untilDelim.length() ? -1 : delimIndex;
+        return comments.indexOf(cursor.position(), untilDelim, stop == null ? -1 : stop);
     }
 
     private Space sourceBefore(String untilDelim) {
@@ -3217,9 +3317,36 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
             return EMPTY; // unable to find this delimiter
         }
 
-        String prefix = source.substring(cursor, delimIndex);
-        cursor += prefix.length() + untilDelim.length(); // advance past the delimiter
-        return Space.format(prefix);
+        Space prefix = consumePrefix(delimIndex);
+        cursor.advance(untilDelim.length()); // advance past the delimiter
+        return prefix;
+    }
+
+    /**
+     * Consume the prefix of an element and the token it starts with.
+     * <p>
+     * When the element has a real source element, its start offset says where the token is, and the prefix is used as is
+     * once the comment index confirms, jumping over its comments, that it holds only whitespace and comments. Elements with a
+     * fake source element, which the compiler generates, and elements that do not start where they are expected to,
+     * are found by scanning for the token.
+     */
+    private Space sourceBefore(String token, @Nullable FirElement element) {
+        int start = realStartOffset(element);
+        if (start >= cursor.position() && comments.isWhitespaceOrComments(cursor.position(), start) &&
+                source.startsWith(token, start)) {
+            Space prefix = consumePrefix(start);
+            cursor.advance(token.length());
+            return prefix;
+        }
+        return sourceBefore(token);
+    }
+
+    private int realStartOffset(@Nullable FirElement element) {
+        KtSourceElement sourceElement = element == null ? null : element.getSource();
+        if (sourceElement == null || sourceElement.getKind() instanceof KtFakeSourceElementKind) {
+            return -1;
+        }
+        return sourceElement.getStartOffset();
     }
 
     /**
@@ -3234,18 +3361,41 @@ public class KotlinParserVisitor extends FirDefaultVisitor<J, ExecutionContext>
             return EMPTY; // unable to find this delimiter
         }
 
-        if (delimIndex == cursor) {
-            cursor += untilDelim.length();
+        if (delimIndex == cursor.position()) {
+            cursor.advance(untilDelim.length());
             return EMPTY;
         }
-        String prefix = source.substring(cursor, delimIndex);
-        cursor += prefix.length() + untilDelim.length(); // advance past the delimiter
-        return Space.format(prefix);
+        Space prefix = consumePrefix(delimIndex);
+        cursor.advance(untilDelim.length()); // advance past the delimiter
+        return prefix;
+    }
+
+    private UUID nextId() {
+        return deterministicIds ? new UUID(idPrefix, idCount++) : Tree.randomId();
+    }
+
+    /**
+     * 64-bit FNV-1a of the path and the source.
+     */
+    private static long hash(String sourcePath, String source) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < sourcePath.length(); i++) {
+            hash = (hash ^ sourcePath.charAt(i)) * 0x100000001b3L;
+        }
+        hash = (hash ^ 0xffff) * 0x100000001b3L;
+        for (int i = 0; i < source.length(); i++) {
+            hash = (hash ^ source.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
     }
 
     private Space whitespace() {
-        String prefix = source.substring(cursor, indexOfNextNonWhitespace(cursor, source));
-        cursor += prefix.length();
-        return format(prefix);
+        return consumePrefix(comments.indexOfNextNonWhitespace(cursor.position()));
+    }
+
+    private Space consumePrefix(int end) {
+        Space prefix = Space.format(source.substring(cursor.position(), end));
+        cursor.moveTo(end);
+        return prefix;
     }
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2023 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openrewrite.kotlin.internal;
+
+import org.openrewrite.internal.lang.Nullable;
+
+/**
+ * A position in the source of a file that is being mapped to an LST.
+ * <p>
+ * Matching and scanning operate on the source in place, so looking ahead never copies the remaining text of the file.
+ * Only the regions that become part of the LST, like the whitespace and comments of a prefix, are copied.
+ */
+final class SourceCursor {
+    private final String source;
+    private int position;
+
+    SourceCursor(String source) {
+        this.source = source;
+    }
+
+    int position() {
+        return position;
+    }
+
+    void moveTo(int position) {
+        this.position = position;
+    }
+
+    void advance(int n) {
+        position += n;
+    }
+
+    boolean atEnd() {
+        return position >= source.length();
+    }
+
+    boolean startsWith(String token) {
+        return source.startsWith(token, position);
+    }
+
+    boolean startsWith(char c) {
+        return position < source.length() && source.charAt(position) == c;
+    }
+
+    /**
+     * @return the character {@code offset} characters after the cursor.
+     */
+    char peek(int offset) {
+        return source.charAt(position + offset);
+    }
+
+    /**
+     * Advance past the token if the source continues with it.
+     */
+    void skip(@Nullable String token) {
+        if (token != null && startsWith(token)) {
+            position += token.length();
+        }
+    }
+
+    /**
+     * @return the index in the source of the next occurrence of the character at or after the cursor, or -1.
+     */
+    int indexOf(char c) {
+        return source.indexOf(c, position);
+    }
+
+    /**
+     * @return the source from the cursor to {@code end}, without moving the cursor.
+     */
+    String region(int end) {
+        return source.substring(position, end);
+    }
+
+    /**
+     * @return the source from the cursor to {@code end}, and move the cursor to {@code end}.
+     */
+    String consume(int end) {
+        String region = source.substring(position, end);
+        position = end;
+        return region;
+    }
+
+    /**
+     * @return the source from the cursor to the end of the file.
+     */
+    String remaining() {
+        return source.substring(position);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2023 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openrewrite.kotlin.table;
+
+import lombok.Value;
+import org.openrewrite.Column;
+import org.openrewrite.DataTable;
+import org.openrewrite.Recipe;
+
+public class KotlinParseBatches extends DataTable<KotlinParseBatches.Row> {
+
+    public KotlinParseBatches(Recipe recipe) {
+        super(recipe, "Kotlin parse batches",
+                "Time and allocations of each phase of parsing a batch of Kotlin sources.");
+    }
+
+    @Value
+    public static class Row {
+        @Column(displayName = "Source files",
+                description = "The number of source files mapped to LSTs in the batch.")
+        long sourceFiles;
+
+        @Column(displayName = "Lines",
+                description = "The number of lines of the source files mapped to LSTs in the batch.")
+        long lines;
+
+        @Column(displayName = "Environment setup (ms)",
+                description = "Time spent creating or acquiring the compiler environment.")
+        long environmentSetupMillis;
+
+        @Column(displayName = "Environment setup allocations (bytes)",
+                description = "Bytes allocated while creating or acquiring the compiler environment.")
+        long environmentSetupAllocatedBytes;
+
+        @Column(displayName = "FIR analysis (ms)",
+                description = "Time spent by the compiler building and resolving the FIR.")
+        long firAnalysisMillis;
+
+        @Column(displayName = "FIR analysis allocations (bytes)",
+                description = "Bytes allocated by the compiler building and resolving the FIR.")
+        long firAnalysisAllocatedBytes;
+
+        @Column(displayName = "IR conversion (ms)",
+                description = "Time spent converting the FIR to IR, when the parser is configured to do so.")
+        long irConversionMillis;
+
+        @Column(displayName = "IR conversion allocations (bytes)",
+                description = "Bytes allocated converting the FIR to IR.")
+        long irConversionAllocatedBytes;
+
+        @Column(displayName = "LST mapping (ms)",
+                description = "Time spent mapping the FIR to LSTs, summed over all mapping threads.")
+        long lstMappingMillis;
+
+        @Column(displayName = "LST mapping allocations (bytes)",
+                description = "Bytes allocated mapping the FIR to LSTs.")
+        long lstMappingAllocatedBytes;
+
+        @Column(displayName = "Type mapping (ms)",
+                description = "The part of the LST mapping time spent mapping types.")
+        long typeMappingMillis;
+
+        @Column(displayName = "Type mapping allocations (bytes)",
+                description = "The part of the LST mapping allocations made mapping types.")
+        long typeMappingAllocatedBytes;
+    }
+}
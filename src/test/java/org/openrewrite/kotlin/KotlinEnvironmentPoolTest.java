@@ -0,0 +1,89 @@
+/*
+ * Copyright 2023 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openrewrite.kotlin;
+
+import org.junit.jupiter.api.Test;
+import org.openrewrite.InMemoryExecutionContext;
+import org.openrewrite.kotlin.tree.K;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class KotlinEnvironmentPoolTest {
+
+    @Test
+    void reuseEnvironmentAcrossParses() {
+        try (KotlinEnvironmentPool pool = new KotlinEnvironmentPool(2, Duration.ofMinutes(1))) {
+            KotlinParser parser = KotlinParser.builder()
+              .environmentPool(pool)
+              .build();
+
+            List<K.CompilationUnit> first = parser.parse(new InMemoryExecutionContext(), "class A { val s: String = \"a\" }");
+            assertThat(pool.size()).isEqualTo(1);
+
+            List<K.CompilationUnit> second = parser.parse(new InMemoryExecutionContext(), "class B { val s: String = \"b\" }");
+            assertThat(pool.size()).isEqualTo(1);
+
+            assertThat(first.get(0).printAll()).isEqualTo("class A { val s: String = \"a\" }");
+            assertThat(second.get(0).printAll()).isEqualTo("class B { val s: String = \"b\" }");
+            assertThat(second.get(0).getClasses().get(0).getType()).isNotNull();
+        }
+    }
+
+    @Test
+    void parsersThatLogCompilerMessagesDoNotShareEnvironmentsWithParsersThatDoNot() {
+        try (KotlinEnvironmentPool pool = new KotlinEnvironmentPool(2, Duration.ofMinutes(1))) {
+            KotlinParser quiet = KotlinParser.builder()
+              .environmentPool(pool)
+              .build();
+            KotlinParser logging = KotlinParser.builder()
+              .environmentPool(pool)
+              .logCompilationWarningsAndErrors(true)
+              .build();
+
+            quiet.parse(new InMemoryExecutionContext(), "class A");
+            logging.parse(new InMemoryExecutionContext(), "class B");
+            assertThat(pool.size()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    void closedParserReleasesItsPool() {
+        KotlinParser parser = KotlinParser.builder()
+          .pooledEnvironments(1, Duration.ofMinutes(1))
+          .build();
+        assertThat(parser.parse(new InMemoryExecutionContext(), "class A")).hasSize(1);
+
+        parser.close();
+        assertThatThrownBy(() -> parser.parse(new InMemoryExecutionContext(), "class A"))
+          .isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void closedSharedPoolIsNotSilentlyIgnored() {
+        KotlinEnvironmentPool pool = new KotlinEnvironmentPool(1, Duration.ofMinutes(1));
+        KotlinParser parser = KotlinParser.builder()
+          .environmentPool(pool)
+          .build();
+
+        pool.close();
+        assertThatThrownBy(() -> parser.parse(new InMemoryExecutionContext(), "class A"))
+          .isInstanceOf(IllegalStateException.class);
+    }
+}
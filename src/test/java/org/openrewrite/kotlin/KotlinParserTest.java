@@ -0,0 +1,503 @@
+/*
+ * Copyright 2023 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openrewrite.kotlin;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.module.paramnames.ParameterNamesModule;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openrewrite.ExecutionContext;
+import org.openrewrite.InMemoryExecutionContext;
+import org.openrewrite.Parser;
+import org.openrewrite.java.internal.JavaTypeCache;
+import org.openrewrite.java.tree.J;
+import org.openrewrite.java.tree.JavaType;
+import org.openrewrite.java.tree.Space;
+import org.openrewrite.java.tree.TypedTree;
+import org.openrewrite.kotlin.tree.K;
+import org.openrewrite.tree.ParsingExecutionContextView;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class KotlinParserTest {
+
+    @Test
+    void parallelMappingPreservesInputOrder() {
+        String[] sources = IntStream.range(0, 16)
+          .mapToObj(i -> "class A" + i + " {\n    fun f(): String = \"" + i + "\".plus(" + i + ")\n}")
+          .toArray(String[]::new);
+
+        try (KotlinParser parser = KotlinParser.builder().mappingParallelism(4).build()) {
+            List<K.CompilationUnit> cus = parser.parse(new InMemoryExecutionContext(), sources);
+            assertThat(cus.stream().map(K.CompilationUnit::printAll).collect(toList())).containsExactly(sources);
+            assertThat(cus.get(3).getClasses().get(0).getType().toString()).isEqualTo("A3");
+        }
+    }
+
+    @Test
+    void parallelMappingIsFasterThanSerialMapping() {
+        assumeTrue(Runtime.getRuntime().availableProcessors() >= 4);
+        String[] sources = IntStream.range(0, 64)
+          .mapToObj(i -> {
+              StringBuilder source = new StringBuilder("class A" + i + " {\n");
+              for (int j = 0; j < 50; j++) {
+                  source.append("    fun f").append(j).append("(s: String, l: List<Int>) = s.plus(l.map { it.toString() }.joinToString()).length\n");
+              }
+              return source.append("}\n").toString();
+          })
+          .toArray(String[]::new);
+
+        // The first parse of each loads the classpath and warms up the JIT.
+        long serial = Long.MAX_VALUE;
+        long parallel = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            serial = Math.min(serial, mappingNanos(1, sources));
+            parallel = Math.min(parallel, mappingNanos(4, sources));
+        }
+        assertThat(parallel).isLessThan(serial);
+    }
+
+    private static long mappingNanos(int parallelism, String... sources) {
+        ExecutionContext ctx = KotlinParsingExecutionContextView.view(new InMemoryExecutionContext()).setCollectParseMetrics(true);
+        try (KotlinParser parser = KotlinParser.builder().mappingParallelism(parallelism).build()) {
+            long start = System.nanoTime();
+            assertThat(parser.parse(ctx, sources)).hasSize(sources.length);
+            long elapsed = System.nanoTime() - start;
+            // Compilation is the same for both, so only the time spent outside of it is compared.
+            return elapsed - KotlinParsingExecutionContextView.view(ctx).getParseMetrics().getElapsed(KotlinParseMetrics.Phase.FIR_ANALYSIS).toNanos();
+        }
+    }
+
+    @Test
+    void streamMapsSourcesAsTheyAreConsumed() {
+        List<String> parsed = new ArrayList<>();
+        ExecutionContext ctx = new InMemoryExecutionContext();
+        ParsingExecutionContextView.view(ctx).setParsingListener((input, sourceFile) -> parsed.add(sourceFile.getSourcePath().toString()));
+
+        try (KotlinParser parser = KotlinParser.builder().build();
+             Stream<K.CompilationUnit> cus = parser.parseInputsToStream(Arrays.asList(
+          new Parser.Input(Paths.get("A.kt"), () -> new ByteArrayInputStream("class A".getBytes(StandardCharsets.UTF_8))),
+          new Parser.Input(Paths.get("B.kt"), () -> new ByteArrayInputStream("class B".getBytes(StandardCharsets.UTF_8)))
+        ), null, ctx)) {
+            Iterator<K.CompilationUnit> iterator = cus.iterator();
+            assertThat(parsed).isEmpty();
+
+            assertThat(iterator.next().printAll()).isEqualTo("class A");
+            assertThat(parsed).containsExactly("A.kt");
+
+            assertThat(iterator.next().printAll()).isEqualTo("class B");
+            assertThat(iterator.hasNext()).isFalse();
+            assertThat(parsed).containsExactly("A.kt", "B.kt");
+        }
+    }
+
+    @Test
+    void parseMetricsAreAccumulatedInTheExecutionContext() {
+        ExecutionContext ctx = KotlinParsingExecutionContextView.view(new InMemoryExecutionContext()).setCollectParseMetrics(true);
+        try (KotlinParser parser = KotlinParser.builder().build()) {
+            parser.parse(ctx, "class A {\n    val s = \"a\".length\n}", "class B");
+        }
+
+        KotlinParseMetrics metrics = KotlinParsingExecutionContextView.view(ctx).getParseMetrics();
+        assertThat(metrics.getFiles(KotlinParseMetrics.Phase.FIR_ANALYSIS)).isEqualTo(2);
+        assertThat(metrics.getFiles(KotlinParseMetrics.Phase.LST_MAPPING)).isEqualTo(2);
+        assertThat(metrics.getLines(KotlinParseMetrics.Phase.LST_MAPPING)).isEqualTo(4);
+        assertThat(metrics.getElapsed(KotlinParseMetrics.Phase.FIR_ANALYSIS)).isPositive();
+        assertThat(metrics.getElapsed(KotlinParseMetrics.Phase.TYPE_MAPPING)).isPositive();
+    }
+
+    @Test
+    void firAnalysisAttributesTheSameTypesAsIrConversion() {
+        String source = "class A {\n    val n = listOf(\"a\", \"b\").map { it.length }.sum()\n    fun f(s: String): String = s.plus(n)\n}";
+        ExecutionContext firCtx = KotlinParsingExecutionContextView.view(new InMemoryExecutionContext()).setCollectParseMetrics(true);
+        ExecutionContext irCtx = KotlinParsingExecutionContextView.view(new InMemoryExecutionContext()).setCollectParseMetrics(true);
+
+        try (KotlinParser fir = KotlinParser.builder().analysisDepth(KotlinParser.AnalysisDepth.FIR).build();
+             KotlinParser ir = KotlinParser.builder().analysisDepth(KotlinParser.AnalysisDepth.IR).build()) {
+            List<String> firTypes = attributedTypes(fir.parse(firCtx, source).get(0));
+            List<String> irTypes = attributedTypes(ir.parse(irCtx, source).get(0));
+
+            assertThat(firTypes).contains("MethodInvocation kotlin.Int", "MethodInvocation kotlin.String");
+            assertThat(firTypes).isEqualTo(irTypes);
+        }
+
+        assertThat(KotlinParsingExecutionContextView.view(firCtx).getParseMetrics().getFiles(KotlinParseMetrics.Phase.IR_CONVERSION)).isEqualTo(0);
+        assertThat(KotlinParsingExecutionContextView.view(irCtx).getParseMetrics().getFiles(KotlinParseMetrics.Phase.IR_CONVERSION)).isEqualTo(1);
+    }
+
+    private static List<String> attributedTypes(K.CompilationUnit cu) {
+        List<String> types = new ArrayList<>();
+        new KotlinIsoVisitor<List<String>>() {
+            @Override
+            public J preVisit(J tree, List<String> types) {
+                if (tree instanceof TypedTree) {
+                    types.add(tree.getClass().getSimpleName() + " " + ((TypedTree) tree).getType());
+                }
+                if (tree instanceof J.MethodInvocation) {
+                    types.add(String.valueOf(((J.MethodInvocation) tree).getMethodType()));
+                }
+                return tree;
+            }
+        }.visit(cu, types);
+        return types;
+    }
+
+    @Test
+    void largeFile() {
+        StringBuilder source = new StringBuilder("class Large {\n");
+        for (int i = 0; i < 2_500; i++) {
+            source.append("    // function ").append(i).append("\n");
+            source.append("    fun f").append(i).append("(`p q`: Int): Int = if (`p q` > ").append(i).append(") `p q` else ").append(i).append("\n");
+        }
+        source.append("}\n");
+
+        try (KotlinParser parser = KotlinParser.builder().build()) {
+            List<K.CompilationUnit> cus = parser.parse(new InMemoryExecutionContext(), source.toString());
+            assertThat(cus).hasSize(1);
+            assertThat(cus.get(0).printAll()).isEqualTo(source.toString());
+        }
+    }
+
+    @Test
+    void whitespacePrefixesAreSharedWithoutAParserCache() {
+        String[] sources = IntStream.range(0, 8)
+          .mapToObj(i -> "class A" + i + " {\n    val a = 1\n\n    fun f(s: String): Int {\n        return s.length + a\n    }\n}\n")
+          .toArray(String[]::new);
+        List<K.CompilationUnit> cus;
+        try (KotlinParser parser = KotlinParser.builder().build()) {
+            cus = parser.parse(new InMemoryExecutionContext(), sources);
+        }
+
+        // Space.build interns comment-free whitespace, so every equal whitespace prefix of every file is one instance.
+        List<Space> prefixes = new ArrayList<>();
+        for (K.CompilationUnit cu : cus) {
+            new KotlinIsoVisitor<List<Space>>() {
+                @Override
+                public Space visitSpace(Space space, Space.Location loc, List<Space> spaces) {
+                    if (space.getComments().isEmpty() && !space.getWhitespace().isEmpty()) {
+                        spaces.add(space);
+                    }
+                    return space;
+                }
+            }.visit(cu, prefixes);
+        }
+        Set<Space> instances = Collections.newSetFromMap(new IdentityHashMap<>());
+        instances.addAll(prefixes);
+        assertThat(prefixes).hasSizeGreaterThan(8 * 10);
+        assertThat(instances).hasSize((int) prefixes.stream().map(Space::getWhitespace).distinct().count());
+    }
+
+    @Test
+    void deterministicIds() {
+        String source = "class A {\n    fun f(s: String) = s.length\n}";
+        K.CompilationUnit first;
+        try (KotlinParser parser = KotlinParser.builder().deterministicIds(true).build()) {
+            first = parser.parse(source).get(0);
+        }
+        K.CompilationUnit second;
+        try (KotlinParser parser = KotlinParser.builder().deterministicIds(true).build()) {
+            second = parser.parse(source).get(0);
+        }
+
+        assertThat(second.getId()).isEqualTo(first.getId());
+        assertThat(second.getClasses().get(0).getBody().getId()).isEqualTo(first.getClasses().get(0).getBody().getId());
+        assertThat(second.getClasses().get(0).getBody().getId()).isNotEqualTo(second.getId());
+    }
+
+    @Test
+    void lazyTypeAttribution() {
+        try (KotlinParser parser = KotlinParser.builder().lazyTypeAttribution(true).build()) {
+            K.CompilationUnit cu = parser.parse("class A {\n    fun f(s: String) = s.length\n}").get(0);
+
+            JavaType.FullyQualified a = cu.getClasses().get(0).getType();
+            assertThat(a.getFullyQualifiedName()).isEqualTo("A");
+            assertThat(a.getMethods()).extracting(JavaType.Method::getName).contains("f");
+        }
+    }
+
+    @Test
+    void lazyClassTypesOfOlderBatchesAreResolvedWhenTheirEnvironmentIsReleased() {
+        try (KotlinParser parser = KotlinParser.builder().lazyTypeAttribution(true).build()) {
+            List<K.CompilationUnit> cus = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                cus.add(parser.parse("class A" + i + " {\n    fun f(s: String) = s.length\n}").get(0));
+            }
+            for (K.CompilationUnit cu : cus) {
+                assertThat(cu.getClasses().get(0).getType().getMethods()).extracting(JavaType.Method::getName).contains("f");
+            }
+        }
+    }
+
+    @Test
+    void lazyClassTypesSerializeAndCopyAsPlainClasses() throws IOException {
+        ObjectMapper mapper = JsonMapper.builder()
+          .addModule(new ParameterNamesModule())
+          .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+          .visibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE)
+          .visibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY)
+          .build();
+        String source = "class A {\n    fun f(s: String) = s.length\n}";
+
+        String eager;
+        try (KotlinParser parser = KotlinParser.builder().build()) {
+            eager = mapper.writeValueAsString(parser.parse(source).get(0).getClasses().get(0).getType());
+        }
+        try (KotlinParser parser = KotlinParser.builder().lazyTypeAttribution(true).build()) {
+            JavaType.FullyQualified a = parser.parse(source).get(0).getClasses().get(0).getType();
+            assertThat(a.withFullyQualifiedName("B").getMethods()).extracting(JavaType.Method::getName).contains("f");
+
+            String lazy = mapper.writeValueAsString(a);
+            assertThat(mapper.readTree(lazy)).isEqualTo(mapper.readTree(eager));
+
+            JavaType read = mapper.readValue(lazy, JavaType.class);
+            assertThat(read.getClass()).isEqualTo(JavaType.Class.class);
+            assertThat(((JavaType.Class) read).getMethods()).extracting(JavaType.Method::getName).contains("f");
+        }
+    }
+
+    @Test
+    void syntaxOnly() {
+        String source = "class A {\n    val n = 1\n    fun f(s: String) = s.plus(n)\n}";
+        K.CompilationUnit cu;
+        try (KotlinParser parser = KotlinParser.builder().syntaxOnly(true).build()) {
+            cu = parser.parse(source).get(0);
+        }
+
+        assertThat(cu.printAll()).isEqualTo(source);
+        assertThat(cu.getClasses().get(0).getType()).isInstanceOf(JavaType.Unknown.class);
+    }
+
+    @Test
+    void syntaxOnlyMapsCallsToUnresolvedClasspathDeclarations() {
+        String source = "import com.example.widgets.Widget\nimport com.example.widgets.render\n\n" +
+                        "fun f(w: Widget) = w.resize(2).render(\"a\").trim()\n";
+        K.CompilationUnit cu;
+        try (KotlinParser parser = KotlinParser.builder().syntaxOnly(true).build()) {
+            cu = parser.parse(source).get(0);
+        }
+
+        assertThat(cu.printAll()).isEqualTo(source);
+        assertThat(cu.getImports()).hasSize(2);
+    }
+
+    @Test
+    void syntaxOnlyMapsJdkTypes() {
+        String source = "import java.io.File\n\nclass A(val file: File) {\n    val name = file.name.substring(1)\n" +
+                        "    fun child(name: String) = File(file, name)\n}\n";
+        K.CompilationUnit cu;
+        try (KotlinParser parser = KotlinParser.builder().syntaxOnly(true).build()) {
+            cu = parser.parse(source).get(0);
+        }
+
+        assertThat(cu.printAll()).isEqualTo(source);
+        assertThat(cu.getClasses().get(0).getType()).isInstanceOf(JavaType.Unknown.class);
+    }
+
+    @Test
+    void moduleSeesTheSourcesOfItsDependencies() {
+        List<K.CompilationUnit> cus;
+        try (KotlinParser parser = KotlinParser.builder()
+          .addModule(new KotlinParser.SourceModule("lib", singletonList(Paths.get("lib")), emptyList(), emptyList(), emptyList()))
+          .addModule(new KotlinParser.SourceModule("app", singletonList(Paths.get("app")), singletonList("lib"), emptyList(), emptyList()))
+          .build()) {
+            cus = parser.parseInputs(Arrays.asList(
+              new Parser.Input(Paths.get("app/App.kt"), () -> new ByteArrayInputStream("class App {\n    val s = Lib().greet()\n}".getBytes(StandardCharsets.UTF_8))),
+              new Parser.Input(Paths.get("lib/Lib.kt"), () -> new ByteArrayInputStream("class Lib {\n    fun greet(): String = \"hi\"\n}".getBytes(StandardCharsets.UTF_8)))
+            ), null, new InMemoryExecutionContext(Throwable::printStackTrace));
+        }
+
+        // modules are compiled in dependency order, but their sources are returned in input order.
+        assertThat(cus.stream().map(cu -> cu.getSourcePath().toString()).collect(toList()))
+          .containsExactly(Paths.get("app/App.kt").toString(), Paths.get("lib/Lib.kt").toString());
+        K.CompilationUnit app = cus.get(0);
+        assertThat(app.printAll()).isEqualTo("class App {\n    val s = Lib().greet()\n}");
+        J.VariableDeclarations s = (J.VariableDeclarations) app.getClasses().get(0).getBody().getStatements().get(0);
+        assertThat(s.getVariables().get(0).getVariableType().getType().toString()).isEqualTo("kotlin.String");
+    }
+
+    @Test
+    void classpathIndexIsReusedByLaterParsers(@TempDir Path indexDirectory) throws IOException {
+        String source = "class A {\n    val l = listOf(1).first()\n}";
+        try (KotlinParser parser = KotlinParser.builder().classpathIndex(indexDirectory).build()) {
+            assertThat(parser.parse(new InMemoryExecutionContext(), source)).hasSize(1);
+        }
+
+        List<Path> indexes;
+        try (Stream<Path> files = Files.list(indexDirectory)) {
+            indexes = files.collect(toList());
+        }
+        assertThat(indexes).hasSize(1);
+
+        try (KotlinParser parser = KotlinParser.builder().classpathIndex(indexDirectory).build()) {
+            assertThat(parser.parse(new InMemoryExecutionContext(), source).get(0).printAll()).isEqualTo(source);
+        }
+        try (Stream<Path> files = Files.list(indexDirectory)) {
+            assertThat(files.collect(toList())).isEqualTo(indexes);
+        }
+    }
+
+    @Test
+    void classDirectoryFingerprintFollowsNestedFiles(@TempDir Path classes) throws IOException {
+        Path classFile = Files.createDirectories(classes.resolve("a")).resolve("A.class");
+        Files.write(classFile, new byte[]{1});
+        String fingerprint = IndexedPackagePartProvider.fingerprint(singletonList(classes.toFile()));
+        assertThat(IndexedPackagePartProvider.fingerprint(singletonList(classes.toFile()))).isEqualTo(fingerprint);
+
+        Files.write(classFile, new byte[]{1, 2});
+        assertThat(IndexedPackagePartProvider.fingerprint(singletonList(classes.toFile()))).isNotEqualTo(fingerprint);
+    }
+
+    @Test
+    void typeTableWarmsLaterParsers(@TempDir Path tableDirectory) {
+        String source = "class A {\n    val l = listOf(1).first()\n}";
+        try (KotlinParser parser = KotlinParser.builder().typeTable(tableDirectory).build()) {
+            assertThat(parser.parse(new InMemoryExecutionContext(), source)).hasSize(1);
+        }
+
+        JavaTypeCache typeCache = new JavaTypeCache();
+        try (KotlinParser parser = KotlinParser.builder().typeTable(tableDirectory).typeCache(typeCache).build()) {
+            JavaType.Class list = typeCache.get("kotlin.collections.List");
+            assertThat(list).isNotNull();
+            assertThat(list.getMethods()).isNotEmpty();
+            assertThat(list.getKind()).isEqualTo(JavaType.FullyQualified.Kind.Interface);
+            assertThat((Object) typeCache.get("A")).isNull();
+
+            K.CompilationUnit cu = parser.parse(new InMemoryExecutionContext(), source).get(0);
+            J.VariableDeclarations l = (J.VariableDeclarations) cu.getClasses().get(0).getBody().getStatements().get(0);
+            assertThat(l.getVariables().get(0).getVariableType().getType().toString()).isEqualTo("kotlin.Int");
+        }
+    }
+
+    @Test
+    void referencedMembersOnly() {
+        JavaTypeCache typeCache = new JavaTypeCache();
+        try (KotlinParser parser = KotlinParser.builder().referencedMembersOnly(true).typeCache(typeCache).build()) {
+            List<K.CompilationUnit> cus = parser.parse(new InMemoryExecutionContext(), "class A {\n    val n = \"a\".length\n    fun f() = 1\n}");
+            assertThat(cus.get(0).printAll()).isEqualTo("class A {\n    val n = \"a\".length\n    fun f() = 1\n}");
+        }
+
+        JavaType.Class string = typeCache.get("kotlin.String");
+        assertThat(string).isNotNull();
+        assertThat(string.getMembers()).extracting(JavaType.Variable::getName).containsExactly("length");
+        assertThat(string.getMethods()).isEmpty();
+
+        JavaType.Class a = typeCache.get("A");
+        assertThat(a.getMethods()).extracting(JavaType.Method::getName).contains("f");
+    }
+
+    @Test
+    void referencedMembersOnlyIncludesTheAccessorsOfJavaProperties() {
+        JavaTypeCache typeCache = new JavaTypeCache();
+        try (KotlinParser parser = KotlinParser.builder().referencedMembersOnly(true).typeCache(typeCache).build()) {
+            parser.parse(new InMemoryExecutionContext(), "fun f(file: java.io.File) = file.name");
+        }
+
+        JavaType.Class file = typeCache.get("java.io.File");
+        assertThat(file).isNotNull();
+        assertThat(file.getMethods()).extracting(JavaType.Method::getName).contains("getName");
+    }
+
+    @Test
+    void referencedMembersOfLaterBatchesAreAddedToCachedClasses() {
+        JavaTypeCache typeCache = new JavaTypeCache();
+        try (KotlinParser parser = KotlinParser.builder().referencedMembersOnly(true).typeCache(typeCache).build()) {
+            parser.parse(new InMemoryExecutionContext(), "val n = \"a\".length");
+            parser.parse(new InMemoryExecutionContext(), "val s = \"a\".plus(\"b\")");
+        }
+
+        JavaType.Class string = typeCache.get("kotlin.String");
+        assertThat(string.getMembers()).extracting(JavaType.Variable::getName).containsExactly("length");
+        assertThat(string.getMethods()).extracting(JavaType.Method::getName).containsExactly("plus");
+
+        try (KotlinParser parser = KotlinParser.builder().typeCache(typeCache).build()) {
+            parser.parse(new InMemoryExecutionContext(), "val c = \"a\".compareTo(\"b\")");
+        }
+        assertThat(string.getMethods()).extracting(JavaType.Method::getName).contains("plus", "compareTo", "get");
+    }
+
+    @Test
+    void diskBackedSources(@TempDir Path sourceDirectory) throws IOException {
+        String source = "class A {\n    val s = \"a\".length\n}\n";
+        Path sourceFile = Files.write(sourceDirectory.resolve("A.kt"), source.getBytes(StandardCharsets.UTF_8));
+
+        List<K.CompilationUnit> cus;
+        try (KotlinParser parser = KotlinParser.builder().diskBackedSources(true).build()) {
+            cus = parser.parseInputs(
+              singletonList(new Parser.Input(sourceFile, () -> {
+                  try {
+                      return Files.newInputStream(sourceFile);
+                  } catch (IOException e) {
+                      throw new UncheckedIOException(e);
+                  }
+              })),
+              sourceDirectory,
+              new InMemoryExecutionContext(Throwable::printStackTrace));
+        }
+
+        assertThat(cus.get(0).printAll()).isEqualTo(source);
+        assertThat(cus.get(0).getSourcePath()).isEqualTo(Paths.get("A.kt"));
+    }
+
+    @Test
+    void diskBackedSourcesWithCarriageReturnsAreCompiledFromMemory(@TempDir Path sourceDirectory) throws IOException {
+        String source = "class A {\r\n    val s = \"a\".length\r\n}\r\n";
+        Path sourceFile = Files.write(sourceDirectory.resolve("A.kt"), source.getBytes(StandardCharsets.UTF_8));
+
+        List<K.CompilationUnit> cus;
+        try (KotlinParser parser = KotlinParser.builder().diskBackedSources(true).build()) {
+            cus = parser.parseInputs(
+              singletonList(new Parser.Input(sourceFile, () -> {
+                  try {
+                      return Files.newInputStream(sourceFile);
+                  } catch (IOException e) {
+                      throw new UncheckedIOException(e);
+                  }
+              })),
+              sourceDirectory,
+              new InMemoryExecutionContext(Throwable::printStackTrace));
+        }
+
+        assertThat(cus).hasSize(1);
+        assertThat(cus.get(0).printAll()).isEqualTo(source);
+        J.VariableDeclarations s = (J.VariableDeclarations) cus.get(0).getClasses().get(0).getBody().getStatements().get(0);
+        assertThat(s.getVariables().get(0).getVariableType().getType().toString()).isEqualTo("kotlin.Int");
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2023 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openrewrite.kotlin;
+
+import org.junit.jupiter.api.Test;
+import org.openrewrite.InMemoryExecutionContext;
+import org.openrewrite.java.tree.JavaType;
+import org.openrewrite.kotlin.tree.K;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class KotlinTypeCacheTest {
+
+    @Test
+    void evictedTypesThatAreStillReferencedAreReturnedAgain() {
+        KotlinTypeCache cache = new KotlinTypeCache(2);
+        JavaType.Primitive a = JavaType.Primitive.Int;
+        cache.put("a", a);
+        cache.put("b", JavaType.Primitive.Long);
+        cache.put("c", JavaType.Primitive.Short);
+
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.getEvictions()).isEqualTo(1);
+
+        assertThat(cache.<JavaType>get("a")).isSameAs(a);
+        assertThat(cache.getResurrections()).isEqualTo(1);
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.<JavaType>get("d")).isNull();
+        assertThat(cache.getMisses()).isEqualTo(1);
+    }
+
+    @Test
+    void boundedCacheKeepsTheIdentityOfTypesInTrees() {
+        KotlinTypeCache cache = new KotlinTypeCache(8);
+        KotlinParser parser = KotlinParser.builder().typeCache(cache).build();
+
+        K.CompilationUnit first = parser.parse(new InMemoryExecutionContext(), "class A { val s: String = \"a\" }").get(0);
+        K.CompilationUnit second = parser.parse(new InMemoryExecutionContext(), "class B { val s: String = \"b\" }").get(0);
+
+        assertThat(cache.size()).isLessThanOrEqualTo(8);
+        assertThat(cache.getEvictions()).isPositive();
+        JavaType.Variable a = first.getClasses().get(0).getType().getMembers().get(0);
+        JavaType.Variable b = second.getClasses().get(0).getType().getMembers().get(0);
+        assertThat(b.getType()).isSameAs(a.getType());
+    }
+}
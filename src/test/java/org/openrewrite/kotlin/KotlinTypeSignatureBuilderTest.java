@@ -19,6 +19,8 @@ import org.jetbrains.kotlin.com.intellij.openapi.Disposable;
 import org.jetbrains.kotlin.com.intellij.openapi.util.Disposer;
 import org.jetbrains.kotlin.fir.FirSession;
 import org.jetbrains.kotlin.fir.declarations.*;
+import org.jetbrains.kotlin.fir.types.FirTypeRef;
+import org.jetbrains.kotlin.name.ClassId;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Disabled;
@@ -31,6 +33,7 @@ import org.openrewrite.tree.ParsingExecutionContextView;
 import java.io.ByteArrayInputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -140,6 +143,67 @@ public class KotlinTypeSignatureBuilderTest {
                 .getSymbol());
     }
 
+    @Test
+    public void classSymbolsAreSharedBetweenSignatureBuilders() {
+        FirSymbolCache symbols = new FirSymbolCache(cu.keySet().iterator().next());
+        FirSimpleFunction parameterized = getCompiledSource().getDeclarations().stream()
+                .map(FirRegularClass.class::cast)
+                .flatMap(it -> it.getDeclarations().stream())
+                .filter(FirSimpleFunction.class::isInstance)
+                .map(FirSimpleFunction.class::cast)
+                .filter(it -> "parameterizedRecursive".equals(it.getName().asString()))
+                .findFirst()
+                .orElseThrow();
+
+        String signature = new KotlinTypeSignatureBuilder(symbols).methodDeclarationSignature(parameterized.getSymbol());
+        long misses = symbols.getMisses();
+        assertThat(misses).isPositive();
+
+        assertThat(new KotlinTypeSignatureBuilder(symbols).methodDeclarationSignature(parameterized.getSymbol())).isEqualTo(signature);
+        assertThat(symbols.getMisses()).isEqualTo(misses);
+        assertThat(symbols.getHits()).isPositive();
+    }
+
+    @Test
+    public void signaturesAreBuiltOnce() {
+        KotlinTypeSignatureBuilder signatureBuilder = signatureBuilder();
+        FirTypeRef parameterType = getCompiledSource().getDeclarations().stream()
+                .map(FirRegularClass.class::cast)
+                .flatMap(it -> it.getDeclarations().stream())
+                .filter(FirSimpleFunction.class::isInstance)
+                .map(FirSimpleFunction.class::cast)
+                .filter(it -> "parameterized".equals(it.getName().asString()))
+                .findFirst()
+                .orElseThrow()
+                .getValueParameters()
+                .get(0)
+                .getReturnTypeRef();
+
+        String signature = signatureBuilder.signature(parameterType);
+        assertThat(signature).isEqualTo("org.openrewrite.kotlin.PT<org.openrewrite.kotlin.C>");
+        assertThat(signatureBuilder.signature(parameterType)).isSameAs(signature);
+    }
+
+    @Test
+    public void convertKotlinFqToJavaFq() {
+        for (String kotlinFqn : Arrays.asList("", "String", "/Root", "/Root.Nested", "kotlin/String", "kotlin/String?",
+                "kotlin/collections/Map.Entry", "kotlin/collections/Map.Entry?", "?/Root", "//Root", "a.b/c.d")) {
+            assertThat(KotlinTypeSignatureBuilder.convertKotlinFqToJavaFq(kotlinFqn))
+                    .as(kotlinFqn)
+                    .isEqualTo(replaceKotlinFqSeparators(kotlinFqn));
+        }
+        assertThat(KotlinTypeSignatureBuilder.convertClassIdToFqn(ClassId.fromString("kotlin/collections/Map.Entry")))
+                .isEqualTo("kotlin.collections.Map$Entry");
+    }
+
+    private static String replaceKotlinFqSeparators(String kotlinFqn) {
+        String cleanedFqn = kotlinFqn
+                .replace(".", "$")
+                .replace("/", ".")
+                .replace("?", "");
+        return cleanedFqn.startsWith(".") ? cleanedFqn.replaceFirst(".", "") : cleanedFqn;
+    }
+
     @Test
     public void constructor() {
         assertThat(constructorSignature())
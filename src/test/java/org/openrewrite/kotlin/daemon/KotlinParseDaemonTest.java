@@ -0,0 +1,128 @@
+/*
+ * Copyright 2023 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openrewrite.kotlin.daemon;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class KotlinParseDaemonTest {
+
+    @Test
+    void parseAndShutdown(@TempDir Path directory) throws Exception {
+        Path portFile = directory.resolve("daemon.port");
+        try (KotlinParseDaemon daemon = KotlinParseDaemon.builder().portFile(portFile).build()) {
+            daemon.start();
+            KotlinParseClient client = KotlinParseClient.fromPortFile(portFile);
+
+            Map<Path, String> sources = new LinkedHashMap<>();
+            sources.put(Paths.get("A.kt"), "class A {\n    val s = \"a\".length\n}");
+            sources.put(Paths.get("B.kt"), "class B");
+
+            for (int i = 0; i < 2; i++) {
+                List<KotlinParseClient.ParseResult> results = client.parse(sources);
+                assertThat(results.stream().map(KotlinParseClient.ParseResult::getPrinted).collect(toList()))
+                  .containsExactlyElementsOf(sources.values());
+            }
+
+            client.shutdown();
+            assertThat(daemon.awaitTermination(Duration.ofSeconds(30))).isTrue();
+            assertThat(portFile).doesNotExist();
+        }
+    }
+
+    @Test
+    void rejectsRequestsWithoutTheSecret() throws Exception {
+        try (KotlinParseDaemon daemon = KotlinParseDaemon.builder().build()) {
+            int port = daemon.start();
+            byte[] secret = daemon.getSecret();
+            secret[0]++;
+
+            Map<Path, String> sources = new LinkedHashMap<>();
+            sources.put(Paths.get("A.kt"), "class A");
+            assertThatThrownBy(() -> new KotlinParseClient(port, secret).parse(sources)).isInstanceOf(IOException.class);
+            assertThat(new KotlinParseClient(port, daemon.getSecret()).parse(sources).get(0).getPrinted()).isEqualTo("class A");
+        }
+    }
+
+    @Test
+    void rejectsOversizedAndStalledRequests() throws Exception {
+        try (KotlinParseDaemon daemon = KotlinParseDaemon.builder().readTimeout(Duration.ofMillis(200)).build()) {
+            int port = daemon.start();
+
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+                 DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
+                out.writeInt(Protocol.VERSION);
+                Protocol.writeSecret(out, daemon.getSecret());
+                out.writeByte(Protocol.PARSE);
+                out.writeInt(1);
+                out.writeInt(Integer.MAX_VALUE);
+                out.flush();
+                assertThat(socket.getInputStream().read()).isEqualTo(-1);
+            }
+
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                socket.setSoTimeout(30_000);
+                assertThat(socket.getInputStream().read()).isEqualTo(-1);
+            }
+
+            Map<Path, String> sources = new LinkedHashMap<>();
+            sources.put(Paths.get("A.kt"), "class A");
+            assertThat(new KotlinParseClient(port, daemon.getSecret()).parse(sources).get(0).getPrinted()).isEqualTo("class A");
+        }
+    }
+
+    @Test
+    void stopsWhenIdle() throws Exception {
+        try (KotlinParseDaemon daemon = KotlinParseDaemon.builder().idleTimeout(Duration.ofMillis(100)).build()) {
+            daemon.start();
+            assertThat(daemon.awaitTermination(Duration.ofSeconds(30))).isTrue();
+        }
+    }
+
+    @Test
+    void restartsUnderMemoryPressure() throws Exception {
+        try (KotlinParseDaemon daemon = KotlinParseDaemon.builder().memoryPressureThreshold(0).build()) {
+            KotlinParseClient client = new KotlinParseClient(daemon.start(), daemon.getSecret());
+            System.gc();
+
+            Map<Path, String> sources = new LinkedHashMap<>();
+            sources.put(Paths.get("A.kt"), "class A");
+            assertThat(client.parse(sources).get(0).getPrinted()).isEqualTo("class A");
+
+            // The parser is recreated after the response is sent.
+            for (int i = 0; i < 100 && daemon.getRestarts() == 0; i++) {
+                Thread.sleep(50);
+            }
+            assertThat(daemon.getRestarts()).isPositive();
+            assertThat(client.parse(sources).get(0).getPrinted()).isEqualTo("class A");
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2023 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openrewrite.kotlin.internal;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CommentIndexTest {
+
+    @Test
+    void unterminatedStringEndsWithItsLine() {
+        String source = "val a = \"// unterminated\nval b = 1 // ; =\n;";
+        CommentIndex comments = new CommentIndex(source);
+
+        assertThat(comments.indexOf(0, ";", -1)).isEqualTo(source.lastIndexOf(';'));
+        assertThat(comments.isWhitespaceOrComments(source.indexOf("1 ") + 1, source.lastIndexOf(';'))).isTrue();
+    }
+
+    @Test
+    void unterminatedCharacterEndsWithItsLine() {
+        String source = "val a = '/* \nval b = 1 /* ; */ ;";
+        CommentIndex comments = new CommentIndex(source);
+
+        assertThat(comments.indexOf(0, ";", -1)).isEqualTo(source.lastIndexOf(';'));
+    }
+
+    @Test
+    void unterminatedRawStringRunsToTheEndOfTheFile() {
+        String source = "val a = 1 // ;\nval b = \"\"\"\n// ;";
+        CommentIndex comments = new CommentIndex(source);
+
+        assertThat(comments.indexOf(0, ";", -1)).isEqualTo(source.lastIndexOf(';'));
+    }
+
+    @Test
+    void unterminatedBlockCommentRunsToTheEndOfTheFile() {
+        String source = "val a = 1 /* ; \"";
+        CommentIndex comments = new CommentIndex(source);
+
+        assertThat(comments.indexOf(0, ";", -1)).isEqualTo(-1);
+        assertThat(comments.isWhitespaceOrComments(source.indexOf('1') + 1, source.length())).isTrue();
+        assertThat(comments.indexOfNextNonWhitespace(source.indexOf('1') + 1)).isEqualTo(source.length());
+    }
+
+    @Test
+    void rangeStartingInsideAComment() {
+        String source = "a /* b */ c";
+        CommentIndex comments = new CommentIndex(source);
+
+        assertThat(comments.isWhitespaceOrComments(source.indexOf('b'), source.indexOf('c'))).isTrue();
+        assertThat(comments.isWhitespaceOrComments(source.indexOf('b'), source.length())).isFalse();
+    }
+}
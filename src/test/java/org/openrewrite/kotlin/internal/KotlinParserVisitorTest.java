@@ -0,0 +1,82 @@
+/*
+ * Copyright 2023 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openrewrite.kotlin.internal;
+
+import org.jetbrains.kotlin.fir.declarations.*;
+import org.jetbrains.kotlin.fir.declarations.impl.FirDefaultPropertyGetter;
+import org.jetbrains.kotlin.fir.declarations.impl.FirDefaultPropertySetter;
+import org.jetbrains.kotlin.fir.expressions.*;
+import org.jetbrains.kotlin.fir.references.FirErrorNamedReference;
+import org.jetbrains.kotlin.fir.references.FirResolvedNamedReference;
+import org.jetbrains.kotlin.fir.references.FirSuperReference;
+import org.jetbrains.kotlin.fir.types.FirErrorTypeRef;
+import org.jetbrains.kotlin.fir.types.FirResolvedTypeRef;
+import org.jetbrains.kotlin.fir.types.impl.FirImplicitNullableAnyTypeRef;
+import org.jetbrains.kotlin.fir.types.impl.FirImplicitUnitTypeRef;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Elements are visited as the first type in the dispatch table that they are an instance of, so a type must come
+ * before its supertypes in the table.
+ */
+class KotlinParserVisitorTest {
+
+    @Test
+    void anonymousObjectsAreNotVisitedAsClasses() {
+        assertThat(KotlinParserVisitor.visitedAs(FirAnonymousObject.class)).isEqualTo(FirAnonymousObject.class);
+        assertThat(KotlinParserVisitor.visitedAs(FirRegularClass.class)).isEqualTo(FirClass.class);
+    }
+
+    @Test
+    void subtypesOfFunctionCallsAreVisitedAsFunctionCalls() {
+        assertThat(KotlinParserVisitor.visitedAs(FirImplicitInvokeCall.class)).isEqualTo(FirFunctionCall.class);
+        assertThat(KotlinParserVisitor.visitedAs(FirIntegerLiteralOperatorCall.class)).isEqualTo(FirFunctionCall.class);
+        assertThat(KotlinParserVisitor.visitedAs(FirComponentCall.class)).isEqualTo(FirFunctionCall.class);
+    }
+
+    @Test
+    void errorElementsAreVisitedAsTheirResolvedSupertypes() {
+        assertThat(KotlinParserVisitor.visitedAs(FirErrorTypeRef.class)).isEqualTo(FirResolvedTypeRef.class);
+        assertThat(KotlinParserVisitor.visitedAs(FirErrorResolvedQualifier.class)).isEqualTo(FirResolvedQualifier.class);
+        assertThat(KotlinParserVisitor.visitedAs(FirErrorNamedReference.class)).isEqualTo(FirErrorNamedReference.class);
+        assertThat(KotlinParserVisitor.visitedAs(FirResolvedNamedReference.class)).isEqualTo(FirResolvedNamedReference.class);
+    }
+
+    @Test
+    void implicitElementsAreVisitedAsTheirSupertypes() {
+        assertThat(KotlinParserVisitor.visitedAs(FirImplicitUnitTypeRef.class)).isEqualTo(FirResolvedTypeRef.class);
+        assertThat(KotlinParserVisitor.visitedAs(FirImplicitNullableAnyTypeRef.class)).isEqualTo(FirResolvedTypeRef.class);
+        assertThat(KotlinParserVisitor.visitedAs(FirDefaultPropertyGetter.class)).isEqualTo(FirPropertyAccessor.class);
+        assertThat(KotlinParserVisitor.visitedAs(FirDefaultPropertySetter.class)).isEqualTo(FirPropertyAccessor.class);
+        assertThat(KotlinParserVisitor.visitedAs(FirLazyBlock.class)).isEqualTo(FirBlock.class);
+    }
+
+    @Test
+    void expressionsAreVisitedAsThemselves() {
+        assertThat(KotlinParserVisitor.visitedAs(FirAnonymousFunctionExpression.class)).isEqualTo(FirAnonymousFunctionExpression.class);
+        assertThat(KotlinParserVisitor.visitedAs(FirAnonymousObjectExpression.class)).isEqualTo(FirAnonymousObjectExpression.class);
+        assertThat(KotlinParserVisitor.visitedAs(FirSuperReference.class)).isEqualTo(FirSuperReference.class);
+        assertThat(KotlinParserVisitor.visitedAs(FirCheckedSafeCallSubject.class)).isEqualTo(FirCheckedSafeCallSubject.class);
+        assertThat(KotlinParserVisitor.visitedAs(FirSafeCallExpression.class)).isEqualTo(FirSafeCallExpression.class);
+    }
+
+    @Test
+    void unsupportedElements() {
+        assertThat(KotlinParserVisitor.visitedAs(FirDelegatedConstructorCall.class)).isNull();
+    }
+}
@@ -19,6 +19,9 @@ import org.junit.jupiter.api.Test;
 import org.openrewrite.Issue;
 import org.openrewrite.test.RewriteTest;
 
+import java.util.stream.IntStream;
+
+import static java.util.stream.Collectors.joining;
 import static org.openrewrite.kotlin.tree.ParserAssertions.kotlin;
 
 public class BinaryTest implements RewriteTest {
@@ -190,4 +193,13 @@ public class BinaryTest implements RewriteTest {
           )
         );
     }
+
+    @Test
+    void longOperatorChains() {
+        rewriteRun(
+          kotlin("val s = \"\"" + IntStream.range(0, 200).mapToObj(i -> " + \"" + i + "\"").collect(joining())),
+          kotlin("fun f(b: Boolean) = b" + IntStream.range(0, 200).mapToObj(i -> i % 2 == 0 ? " && b" : " || b").collect(joining())),
+          kotlin("val i = (1 + 2)" + IntStream.range(0, 200).mapToObj(i -> (i % 2 == 0 ? " * " : " - ") + i).collect(joining()))
+        );
+    }
 }
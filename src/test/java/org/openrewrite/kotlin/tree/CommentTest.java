@@ -52,4 +52,82 @@ class CommentTest implements RewriteTest {
         );
     }
 
+    @Test
+    void delimitersInsideComments() {
+        rewriteRun(
+          kotlin(
+            """
+            /**
+             * Returns a value; see {@link Test} = (unused).
+             */
+            class Test {
+                val url = "https://example.com/*" // ; ) =
+                val n /* = 0 */ = 1
+            }
+            """
+          )
+        );
+    }
+
+    @Test
+    void commentDelimitersInsideStrings() {
+        rewriteRun(
+          kotlin(
+            """
+            class Test {
+                val a = "// not a comment" /* = */ + "/* nor this */"
+                val b = "\"//" // ; =
+            }
+            """
+          )
+        );
+    }
+
+    @Test
+    void commentDelimitersInsideRawStrings() {
+        rewriteRun(
+          kotlin(
+            """
+            class Test {
+                val a = \"""
+                    // not a comment
+                    /* nor this ""\" // ; =
+                val b = \"""quoted ""\"\"" /* = */
+            }
+            """
+          )
+        );
+    }
+
+    @Test
+    void commentDelimitersInsideNestedTemplates() {
+        rewriteRun(
+          kotlin(
+            """
+            class Test {
+                val s = "//"
+                val a = "${s + "${s + "/*"}" + s}//" // ; =
+                val b = "${listOf(1).map { "${it}//" }}" /* = */
+                val c = \"""${"${s}"}/*\""" // ; =
+            }
+            """
+          )
+        );
+    }
+
+    @Test
+    void unmatchedQuotesInCommentsAndCharacterLiterals() {
+        rewriteRun(
+          kotlin(
+            """
+            class Test {
+                // it's a quote: "
+                val a = '"' // ; =
+                /* an unmatched ' and " */
+                val b = "'" // ; =
+            }
+            """
+          )
+        );
+    }
 }
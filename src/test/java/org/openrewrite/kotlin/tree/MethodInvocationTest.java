@@ -18,6 +18,9 @@ package org.openrewrite.kotlin.tree;
 import org.junit.jupiter.api.Test;
 import org.openrewrite.test.RewriteTest;
 
+import java.util.stream.IntStream;
+
+import static java.util.stream.Collectors.joining;
 import static org.openrewrite.kotlin.tree.ParserAssertions.kotlin;
 
 public class MethodInvocationTest implements RewriteTest {
@@ -294,4 +297,11 @@ public class MethodInvocationTest implements RewriteTest {
           )
         );
     }
+
+    @Test
+    void longCallChain() {
+        rewriteRun(
+          kotlin("val s = StringBuilder()" + IntStream.range(0, 200).mapToObj(i -> "\n    .append(" + i + ")").collect(joining()) + ".toString()")
+        );
+    }
 }